@@ -4,8 +4,10 @@ import android.bluetooth.BluetoothGatt;
 
 import java.util.List;
 
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanResult;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusView;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiVersionResponse;
 
 public abstract class BlufiCallback {
@@ -15,6 +17,7 @@ public abstract class BlufiCallback {
     public static final int CODE_CATCH_EXCEPTION = -1001;
     public static final int CODE_WRITE_DATA_FAILED = -1002;
     public static final int CODE_INVALID_DATA = -1003;
+    public static final int CODE_NOTIFICATION_RESYNC = -1004;
 
     public static final int CODE_NEG_POST_FAILED = -2000;
     public static final int CODE_NEG_ERR_DEV_KEY = -2001;
@@ -32,8 +35,21 @@ public abstract class BlufiCallback {
     public static final int CODE_GATT_DISCOVER_NOTIFY_CHAR_FAILED = -4003;
     public static final int CODE_GATT_ERR_OPEN_NOTIFY = -4004;
 
+    // The deadline of the operation exceeded, the code tells the stage it was waiting for
+    public static final int CODE_TIMEOUT_QUEUED = -5000;
+    public static final int CODE_TIMEOUT_WRITE = -5001;
+    public static final int CODE_TIMEOUT_ACK = -5002;
+    public static final int CODE_TIMEOUT_DEVICE_KEY = -5003;
+    public static final int CODE_TIMEOUT_RESPONSE = -5004;
+    public static final int CODE_TIMEOUT_KEY_GENERATION = -5005;
+
     public static final int CODE_WIFI_SCAN_FAIL = 11;
 
+    // The messages a configure posted, see BlufiClient#setConfigureIfChanged(boolean)
+    public static final int CONFIGURE_FULL = 0;
+    public static final int CONFIGURE_PARTIAL = 1;
+    public static final int CONFIGURE_UNCHANGED = 2;
+
     /**
      * Callback invoked after BluetoothGattCallback receive onServicesDiscovered
      * User can post Blufi packet now.
@@ -87,6 +103,18 @@ public abstract class BlufiCallback {
     public void onPostConfigureParams(BlufiClient client, int status) {
     }
 
+    /**
+     * Callback invoked before {@link #onPostConfigureParams(BlufiClient, int)} when the configure
+     * messages are decided
+     *
+     * @param client BlufiClient
+     * @param path {@link #CONFIGURE_FULL} if all the messages are posted, {@link #CONFIGURE_PARTIAL} if
+     * only the fields which differ from the device status are posted, {@link #CONFIGURE_UNCHANGED} if
+     * the device is already configured and nothing is posted
+     */
+    public void onConfigurePath(BlufiClient client, int path) {
+    }
+
     /**
      * Callback invoked when received device version
      *
@@ -107,6 +135,20 @@ public abstract class BlufiCallback {
     public void onDeviceStatusResponse(BlufiClient client, int status, BlufiStatusResponse response) {
     }
 
+    /**
+     * Callback invoked when received device status, before the BlufiStatusResponse is built.
+     * It is invoked on the protocol event loop thread, and the view is only valid during the call.
+     *
+     * @param client BlufiClient
+     * @param status {@link #STATUS_SUCCESS} means response is valid
+     * @param view a reused view over the status data
+     * @return true if the callback consumed the status, false to build the BlufiStatusResponse and invoke
+     * {@link #onDeviceStatusResponse(BlufiClient, int, BlufiStatusResponse)}
+     */
+    public boolean onDeviceStatusView(BlufiClient client, int status, BlufiStatusView view) {
+        return false;
+    }
+
     /**
      * Callback invoked when received device scan results
      *
@@ -117,6 +159,28 @@ public abstract class BlufiCallback {
     public void onDeviceScanResult(BlufiClient client, int status, List<BlufiScanResult> results) {
     }
 
+    /**
+     * Callback invoked when received device scan results, the results are decoded in place as columns.
+     * The default implementation adapts them to {@link #onDeviceScanResult(BlufiClient, int, List)}.
+     *
+     * @param client BlufiClient
+     * @param status {@link #STATUS_SUCCESS} means response is valid
+     * @param results scan result columns
+     */
+    public void onDeviceScanList(BlufiClient client, int status, BlufiScanList results) {
+        onDeviceScanResult(client, status, results.asList());
+    }
+
+    /**
+     * Callback invoked when received a part of the device scan results while the device is still sending,
+     * only if enabled by {@link BlufiClient#setScanResultBatchSize(int)}
+     *
+     * @param client BlufiClient
+     * @param results the scan results received since last partial result
+     */
+    public void onDeviceScanPartialResult(BlufiClient client, BlufiScanList results) {
+    }
+
     /**
      * Callback invoked when post custom data over
      *
@@ -136,4 +200,48 @@ public abstract class BlufiCallback {
      */
     public void onReceiveCustomData(BlufiClient client, int status, byte[] data) {
     }
+
+    /**
+     * Callback invoked when post a message on a channel over
+     *
+     * @param client BlufiClient
+     * @param channel the channel id
+     * @param status {@link #STATUS_SUCCESS} means post data success
+     * @param data posted
+     */
+    public void onPostChannelDataResult(BlufiClient client, int channel, int status, byte[] data) {
+    }
+
+    /**
+     * Callback invoked when received a whole message on an open channel
+     *
+     * @param client BlufiClient
+     * @param channel the channel id
+     * @param data received
+     */
+    public void onReceiveChannelData(BlufiClient client, int channel, byte[] data) {
+    }
+
+    /**
+     * Callback invoked when the connection priority, the PHY or the connection interval of the link changed
+     *
+     * @param client BlufiClient
+     * @param priority the requested {@code BluetoothGatt.CONNECTION_PRIORITY_*}
+     * @param txPhy the transmitter {@code BluetoothDevice.PHY_LE_*}
+     * @param rxPhy the receiver {@code BluetoothDevice.PHY_LE_*}
+     * @param interval the connection interval in milliseconds, see {@link BlufiClient#getConnectionInterval()}
+     */
+    public void onLinkProfileChanged(BlufiClient client, int priority, int txPhy, int rxPhy, float interval) {
+    }
+
+    /**
+     * Callback invoked when the link grade changed, the client sizes and spaces the frames for it
+     *
+     * @param client BlufiClient
+     * @param grade {@link BlufiClient#LINK_GRADE_GOOD}, {@link BlufiClient#LINK_GRADE_FAIR} or
+     *              {@link BlufiClient#LINK_GRADE_POOR}
+     * @param rssi the smoothed RSSI in dBm, {@link Integer#MIN_VALUE} if not sampled
+     */
+    public void onLinkGradeChanged(BlufiClient client, int grade, int rssi) {
+    }
 }
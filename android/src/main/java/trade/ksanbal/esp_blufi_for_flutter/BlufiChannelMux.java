@@ -0,0 +1,363 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multiplex logical channels over the custom data of a session.
+ * <p>
+ * Every custom data message carries one fragment of a channel message, after a five bytes header:
+ * the {@link #MAGIC} marker, the channel id and the flags, {@link #FLAG_START} on the first fragment
+ * and {@link #FLAG_END} on the last one. Only the custom data starting with the marker and an open
+ * channel is taken by the mux, the other payloads stay ordinary custom data of the app. The messages of a channel are delivered in order on both sides. Outbound fragments
+ * are scheduled by deficit round robin: each turn a channel may post up to its weight times
+ * {@link #FRAGMENT_LENGTH} bytes, so a file transfer can't hold back the commands and the telemetry.
+ * Only one fragment is queued to the client at a time, so the other messages of the client are not
+ * held back either. All the methods but the getters are called on the event loop thread.
+ */
+class BlufiChannelMux {
+    static final int CHANNEL_MAX = 0xff;
+    /**
+     * The marker starting every fragment, custom data of the app must not start with it.
+     */
+    static final byte[] MAGIC = {'B', 'F', 'M'};
+    static final int HEADER_LENGTH = MAGIC.length + 2;
+    /**
+     * The payload length of a fragment, and the bytes a channel of weight 1 may post each turn.
+     */
+    static final int FRAGMENT_LENGTH = 128;
+
+    private static final String TAG = "BlufiChannelMux";
+
+    private static final int FLAG_START = 0b01;
+    private static final int FLAG_END = 0b10;
+
+    private final BlufiClock mClock;
+    private final Host mHost;
+
+    private final Channel[] mChannels = new Channel[CHANNEL_MAX + 1];
+    private final ArrayDeque<Channel> mActive = new ArrayDeque<>();
+    private Message mInFlight;
+
+    BlufiChannelMux(BlufiClock clock, Host host) {
+        mClock = clock;
+        mHost = host;
+    }
+
+    /**
+     * Open the channel, or change the weight of the open channel.
+     *
+     * @param weight the share of the link against the other channels, at least 1
+     */
+    void open(int id, int weight) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            channel = new Channel(id);
+            mChannels[id] = channel;
+        }
+        channel.weight = Math.max(weight, 1);
+    }
+
+    /**
+     * Close the channel, its queued messages fail.
+     */
+    void close(int id) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            return;
+        }
+        mChannels[id] = null;
+        mActive.remove(channel);
+        failQueued(channel);
+    }
+
+    boolean isOpen(int id) {
+        return mChannels[id] != null;
+    }
+
+    /**
+     * Queue a message on the channel, the result is notified by {@link Host#onPosted(int, int, byte[])}.
+     */
+    void post(int id, byte[] data, BlufiDeadline deadline) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            Log.w(TAG, "post: channel " + id + " is not open");
+            mHost.onPosted(id, BlufiCallback.CODE_WRITE_DATA_FAILED, data);
+            return;
+        }
+        if (channel.queue.isEmpty()) {
+            channel.activeSince = mClock.nanoTime();
+            mActive.add(channel);
+        }
+        channel.queue.add(new Message(channel, data, deadline));
+        postNext();
+    }
+
+    /**
+     * The fragment posted by {@link Host#postFragment(byte[], BlufiDeadline)} completed.
+     */
+    void onFragmentPosted(int status) {
+        Message message = mInFlight;
+        mInFlight = null;
+        if (message == null) {
+            return;
+        }
+        if (message.cancelled) {
+            // The channel was closed or the session lost meanwhile
+            postNext();
+            return;
+        }
+        Channel channel = message.channel;
+        if (status != BlufiCallback.STATUS_SUCCESS) {
+            removeMessage(message);
+            mHost.onPosted(channel.id, status, message.data);
+        } else {
+            message.offset += message.fragmentLength;
+            channel.countSent(message.fragmentLength);
+            if (message.offset >= message.data.length) {
+                removeMessage(message);
+                mHost.onPosted(channel.id, BlufiCallback.STATUS_SUCCESS, message.data);
+            }
+        }
+        postNext();
+    }
+
+    /**
+     * @return false if the data is not a fragment of an open channel
+     */
+    boolean onReceive(byte[] data) {
+        if (!isFragment(data)) {
+            return false;
+        }
+        Channel channel = mChannels[data[MAGIC.length] & 0xff];
+        if (channel == null) {
+            return false;
+        }
+        int flags = data[MAGIC.length + 1] & 0xff;
+        if ((flags & FLAG_START) != 0) {
+            channel.received.reset();
+            channel.receiving = true;
+        } else if (!channel.receiving) {
+            Log.w(TAG, "onReceive: drop a fragment without start on channel " + channel.id);
+            return true;
+        }
+        channel.received.write(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+        channel.countReceived(data.length - HEADER_LENGTH);
+        if ((flags & FLAG_END) != 0) {
+            channel.receiving = false;
+            byte[] message = channel.received.toByteArray();
+            channel.received.reset();
+            mHost.onReceived(channel.id, message);
+        }
+        return true;
+    }
+
+    private static boolean isFragment(byte[] data) {
+        if (data.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The session is lost, the queued messages fail and the partly received ones are dropped.
+     */
+    void onDisconnected() {
+        mActive.clear();
+        for (Channel channel : mChannels) {
+            if (channel != null) {
+                channel.receiving = false;
+                channel.received.reset();
+                failQueued(channel);
+            }
+        }
+    }
+
+    /**
+     * @return the payload bytes posted on the channel, -1 if the channel is not open
+     */
+    long getSentBytes(int id) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            return -1;
+        }
+        synchronized (channel) {
+            return channel.sentBytes;
+        }
+    }
+
+    /**
+     * @return the payload bytes received on the channel, -1 if the channel is not open
+     */
+    long getReceivedBytes(int id) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            return -1;
+        }
+        synchronized (channel) {
+            return channel.receivedBytes;
+        }
+    }
+
+    /**
+     * @return the bytes per second posted while the channel had messages queued, -1 if not measured
+     */
+    long getThroughput(int id) {
+        Channel channel = mChannels[id];
+        if (channel == null) {
+            return -1;
+        }
+        synchronized (channel) {
+            long nanos = channel.activeNanos;
+            return nanos <= 0 ? -1 : channel.sentBytes * 1000000000L / nanos;
+        }
+    }
+
+    private void postNext() {
+        if (mInFlight != null) {
+            return;
+        }
+        Message message = nextMessage();
+        if (message == null) {
+            return;
+        }
+        mInFlight = message;
+        int remain = message.data.length - message.offset;
+        int length = Math.min(remain, FRAGMENT_LENGTH);
+        int flags = 0;
+        if (message.offset == 0) {
+            flags |= FLAG_START;
+        }
+        if (length == remain) {
+            flags |= FLAG_END;
+        }
+        byte[] fragment = new byte[HEADER_LENGTH + length];
+        System.arraycopy(MAGIC, 0, fragment, 0, MAGIC.length);
+        fragment[MAGIC.length] = (byte) message.channel.id;
+        fragment[MAGIC.length + 1] = (byte) flags;
+        System.arraycopy(message.data, message.offset, fragment, HEADER_LENGTH, length);
+        message.fragmentLength = length;
+        mHost.postFragment(fragment, message.deadline);
+    }
+
+    /**
+     * Pick the channel of the next fragment by deficit round robin.
+     */
+    private Message nextMessage() {
+        while (!mActive.isEmpty()) {
+            Channel channel = mActive.peek();
+            if (!channel.inTurn) {
+                channel.deficit += channel.weight * FRAGMENT_LENGTH;
+                channel.inTurn = true;
+            }
+            Message message = channel.queue.peek();
+            int length = Math.min(message.data.length - message.offset, FRAGMENT_LENGTH);
+            if (length <= channel.deficit) {
+                channel.deficit -= length;
+                return message;
+            }
+            // The turn is over, the unused deficit is kept for the next one
+            mActive.poll();
+            channel.inTurn = false;
+            mActive.add(channel);
+        }
+        return null;
+    }
+
+    private void removeMessage(Message message) {
+        Channel channel = message.channel;
+        channel.queue.remove(message);
+        if (channel.queue.isEmpty()) {
+            mActive.remove(channel);
+            channel.deficit = 0;
+            channel.inTurn = false;
+            channel.addActiveTime(mClock.nanoTime() - channel.activeSince);
+        }
+    }
+
+    private void failQueued(Channel channel) {
+        if (channel.queue.isEmpty()) {
+            return;
+        }
+        List<Message> messages = new ArrayList<>(channel.queue);
+        channel.queue.clear();
+        for (Message message : messages) {
+            // The fragment in flight is still reported, it is ignored then
+            message.cancelled = true;
+        }
+        channel.deficit = 0;
+        channel.inTurn = false;
+        channel.addActiveTime(mClock.nanoTime() - channel.activeSince);
+        for (Message message : messages) {
+            mHost.onPosted(channel.id, BlufiCallback.CODE_WRITE_DATA_FAILED, message.data);
+        }
+    }
+
+    private static class Channel {
+        final int id;
+        final ArrayDeque<Message> queue = new ArrayDeque<>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        int weight = 1;
+        int deficit;
+        boolean inTurn;
+        boolean receiving;
+        long activeSince;
+
+        long sentBytes;
+        long receivedBytes;
+        long activeNanos;
+
+        Channel(int id) {
+            this.id = id;
+        }
+
+        synchronized void countSent(int bytes) {
+            sentBytes += bytes;
+        }
+
+        synchronized void countReceived(int bytes) {
+            receivedBytes += bytes;
+        }
+
+        synchronized void addActiveTime(long nanos) {
+            activeNanos += nanos;
+        }
+    }
+
+    private static class Message {
+        final Channel channel;
+        final byte[] data;
+        final BlufiDeadline deadline;
+
+        int offset;
+        int fragmentLength;
+        boolean cancelled;
+
+        Message(Channel channel, byte[] data, BlufiDeadline deadline) {
+            this.channel = channel;
+            this.data = data;
+            this.deadline = deadline;
+        }
+    }
+
+    interface Host {
+        /**
+         * Post the fragment as custom data, then call {@link #onFragmentPosted(int)}.
+         */
+        void postFragment(byte[] fragment, BlufiDeadline deadline);
+
+        void onPosted(int channel, int status, byte[] data);
+
+        void onReceived(int channel, byte[] data);
+    }
+}
@@ -4,17 +4,49 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCallback;
 import android.content.Context;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import trade.ksanbal.esp_blufi_for_flutter.params.BlufiConfigureParams;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiVersionResponse;
 
 public class BlufiClient {
+    /**
+     * Strong link, the frames are posted with the full package length and no spacing.
+     */
+    public static final int LINK_GRADE_GOOD = BlufiLinkQuality.GRADE_GOOD;
+    /**
+     * Degraded link, the frames are shortened and spaced by the frame pacing.
+     */
+    public static final int LINK_GRADE_FAIR = BlufiLinkQuality.GRADE_FAIR;
+    /**
+     * Weak link, the frames are the shortest and spaced the most.
+     */
+    public static final int LINK_GRADE_POOR = BlufiLinkQuality.GRADE_POOR;
+
     private final BlufiClientImpl mImpl;
 
     public BlufiClient(Context context, BluetoothDevice device) {
-        mImpl = new BlufiClientImpl(this, context, device);
+        this(context, device, null);
+    }
+
+    /**
+     * Create a client which invokes the {@link BlufiCallback} on the given executor.
+     *
+     * @param callbackExecutor the executor to run the BlufiCallback on, such as {@code Runnable::run} to
+     *                         run directly on the protocol thread, null for the main thread
+     */
+    public BlufiClient(Context context, BluetoothDevice device, Executor callbackExecutor) {
+        mImpl = new BlufiClientImpl(this, context, device, callbackExecutor);
+    }
+
+    BlufiClient(BlufiTransport transport, BlufiClock clock, Executor callbackExecutor) {
+        mImpl = new BlufiClientImpl(this, transport, clock, callbackExecutor);
     }
 
     /**
@@ -53,6 +85,36 @@ public class BlufiClient {
         mImpl.setPostPackageLengthLimit(lengthLimit);
     }
 
+    /**
+     * Enable or disable the automatic package length sizing. The client will apply the negotiated MTU,
+     * then probe the candidate lengths on real transfers and settle on the fastest reliable one for
+     * the device model. It takes effect only if no limit is set by {@link #setPostPackageLengthLimit(int)}.
+     *
+     * @param enable true to probe the package length automatically
+     */
+    public void setPackageLengthAutoTuning(boolean enable) {
+        mImpl.setPackageLengthAutoTuning(enable);
+    }
+
+    /**
+     * Get the maximum length of each Blufi packet the client currently posts.
+     *
+     * @return the package length in bytes
+     */
+    public int getPostPackageLength() {
+        return mImpl.getPostPackageLength();
+    }
+
+    /**
+     * Check the GATT connection state. It is already false when the failures of the operations
+     * interrupted by a disconnection are notified.
+     *
+     * @return true if the GATT is connected
+     */
+    public boolean isConnected() {
+        return mImpl.isConnected();
+    }
+
     /**
      * Set gatt write timeout.
      * If timeout, {@link BlufiCallback#onError(BlufiClient, int)} will be invoked,
@@ -64,6 +126,28 @@ public class BlufiClient {
         mImpl.setGattWriteTimeout(timeout);
     }
 
+    /**
+     * Set the default deadline of the operations called without a timeout.
+     * Every stage of an operation waits at most the remaining time, if the deadline is exceeded the
+     * result status is one of the {@code CODE_TIMEOUT_*} codes telling the stage, and
+     * {@link BlufiCallback#onError(BlufiClient, int)} is invoked with the same code.
+     *
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void setOperationTimeout(long timeout) {
+        mImpl.setOperationTimeout(timeout);
+    }
+
+    /**
+     * Set the interval between two frames of a message on a degraded link, the replay harness sets 0 to run
+     * faster than real time. A good link posts without waiting and a poor link waits longer.
+     *
+     * @param pacing in milliseconds
+     */
+    void setFramePacing(long pacing) {
+        mImpl.setFramePacing(pacing);
+    }
+
     /**
      * Establish a BLE connection with BluetoothDevice
      */
@@ -83,7 +167,16 @@ public class BlufiClient {
      * {@link BlufiCallback#onNegotiateSecurityResult(BlufiClient, int)}
      */
     public void negotiateSecurity() {
-        mImpl.negotiateSecurity();
+        mImpl.negotiateSecurity(mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Negotiate security with device within the timeout.
+     *
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void negotiateSecurity(long timeout) {
+        mImpl.negotiateSecurity(timeout);
     }
 
     /**
@@ -95,18 +188,209 @@ public class BlufiClient {
 
     /**
      * Request to get device version. The result will notified in
-     * {@link BlufiCallback#onDeviceVersionResponse(BlufiClient, int, BlufiVersionResponse)}
+     * {@link BlufiCallback#onDeviceVersionResponse(BlufiClient, int, BlufiVersionResponse)}.
+     * If a version request is in flight, this one joins it and gets the same result.
      */
     public void requestDeviceVersion() {
-        mImpl.requestDeviceVersion();
+        mImpl.requestDeviceVersion(mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Request to get device version within the timeout.
+     *
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void requestDeviceVersion(long timeout) {
+        mImpl.requestDeviceVersion(timeout);
     }
 
     /**
      * Request to get device current status. The result will be notified in
-     * {@link BlufiCallback#onDeviceStatusResponse(BlufiClient, int, BlufiStatusResponse)}
+     * {@link BlufiCallback#onDeviceStatusResponse(BlufiClient, int, BlufiStatusResponse)}.
+     * If a status request is in flight, this one joins it and gets the same result.
      */
     public void requestDeviceStatus() {
-        mImpl.requestDeviceStatus();
+        mImpl.requestDeviceStatus(mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Request to get device current status within the timeout.
+     *
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void requestDeviceStatus(long timeout) {
+        mImpl.requestDeviceStatus(timeout);
+    }
+
+    /**
+     * Enable the retransmission of the frames whose write failed or timed out. The frame is written again
+     * with the same sequence after the backoff, which doubles on every retry of the same frame.
+     * The message fails only if the retry budgets are used up.
+     *
+     * @param frameRetries the max retries of one frame, 0 to disable the retransmission
+     * @param messageRetries the max retries of all the frames of one message
+     * @param backoff the wait before the first retry of a frame, in milliseconds
+     */
+    public void setFrameRetransmission(int frameRetries, int messageRetries, long backoff) {
+        mImpl.setFrameRetransmission(frameRetries, messageRetries, backoff);
+    }
+
+    /**
+     * Get the count of frames written again after a failed or timed out write.
+     *
+     * @return retransmitted frame count
+     */
+    public long getRetransmittedFrameCount() {
+        return mImpl.getRetransmittedFrameCount();
+    }
+
+    /**
+     * Get the count of messages failed because the retry budgets were used up.
+     *
+     * @return exhausted message count
+     */
+    public long getRetransmitExhaustedCount() {
+        return mImpl.getRetransmitExhaustedCount();
+    }
+
+    /**
+     * Enable or disable the receive sequence resynchronisation. If enabled, the duplicated notifications
+     * are dropped, and on a sequence gap the client realigns to the device sequence instead of rejecting
+     * every later notification. The message broken by the gap is discarded,
+     * {@link BlufiCallback#onError(BlufiClient, int)} is invoked with {@link BlufiCallback#CODE_NOTIFICATION_RESYNC},
+     * and the version, status and wifi scan requests waiting for response are posted again.
+     *
+     * @param enable true to resynchronise the receive sequence
+     */
+    public void setReceiveResync(boolean enable) {
+        mImpl.setReceiveResync(enable);
+    }
+
+    /**
+     * Get the count of the duplicated notifications dropped by the receive resynchronisation.
+     *
+     * @return duplicated notification count
+     */
+    public long getDuplicateNotificationCount() {
+        return mImpl.getDuplicateNotificationCount();
+    }
+
+    /**
+     * Get the count of the sequence gaps the receive resynchronisation realigned.
+     *
+     * @return resync count
+     */
+    public long getResyncCount() {
+        return mImpl.getResyncCount();
+    }
+
+    /**
+     * Set when the link drops to a slower connection priority. The client keeps the high priority
+     * while it negotiates security or transfers data, drops to balanced after the idle delay and to
+     * low power after the low power delay. Status and version polls don't raise the priority.
+     *
+     * @param idleDelay in milliseconds
+     * @param lowPowerDelay in milliseconds
+     */
+    public void setLinkIdleDelays(long idleDelay, long lowPowerDelay) {
+        mImpl.setLinkIdleDelays(idleDelay, lowPowerDelay);
+    }
+
+    /**
+     * Get the connection priority the client requested.
+     *
+     * @return {@code BluetoothGatt.CONNECTION_PRIORITY_*}, -1 if not connected
+     */
+    public int getConnectionPriority() {
+        return mImpl.getConnectionPriority();
+    }
+
+    /**
+     * Get the transmitter PHY of the link.
+     *
+     * @return {@code BluetoothDevice.PHY_LE_*}
+     */
+    public int getTxPhy() {
+        return mImpl.getTxPhy();
+    }
+
+    /**
+     * Get the receiver PHY of the link.
+     *
+     * @return {@code BluetoothDevice.PHY_LE_*}
+     */
+    public int getRxPhy() {
+        return mImpl.getRxPhy();
+    }
+
+    /**
+     * Get the connection interval. It is the one reported by the stack if any, otherwise the
+     * longest interval of the requested priority.
+     *
+     * @return the interval in milliseconds, -1 if not connected
+     */
+    public float getConnectionInterval() {
+        return mImpl.getConnectionInterval();
+    }
+
+    /**
+     * Get the throughput of the frames written and received while the priority was requested,
+     * the idle time between transfers is not counted.
+     *
+     * @param priority {@code BluetoothGatt.CONNECTION_PRIORITY_*}
+     * @return bytes per second, -1 if nothing was transferred with the priority
+     */
+    public long getLinkThroughput(int priority) {
+        return mImpl.getLinkThroughput(priority);
+    }
+
+    /**
+     * Get the link grade, from the RSSI sampled while connected, the write latency and the write
+     * failure rate. The package length and the frame spacing follow the grade.
+     *
+     * @return {@link #LINK_GRADE_GOOD}, {@link #LINK_GRADE_FAIR} or {@link #LINK_GRADE_POOR}
+     */
+    public int getLinkGrade() {
+        return mImpl.getLinkGrade();
+    }
+
+    /**
+     * Get the smoothed RSSI of the device.
+     *
+     * @return the RSSI in dBm, {@link Integer#MIN_VALUE} if not sampled
+     */
+    public int getRemoteRssi() {
+        return mImpl.getRemoteRssi();
+    }
+
+    /**
+     * Get the count of version and status requests actually posted to device.
+     * A request made while an identical one is in flight joins it instead of posting again.
+     *
+     * @return issued request count
+     */
+    public long getIssuedQueryCount() {
+        return mImpl.getIssuedQueryCount();
+    }
+
+    /**
+     * Get the count of version and status requests joined to the identical one in flight.
+     *
+     * @return coalesced request count
+     */
+    public long getCoalescedQueryCount() {
+        return mImpl.getCoalescedQueryCount();
+    }
+
+    /**
+     * Write the recently posted and received frames in btsnoop layout, it can be decoded by
+     * {@link BlufiFrameTrace#read(java.io.InputStream)}
+     *
+     * @param out the output stream, it will not be closed
+     * @throws IOException if write failed
+     */
+    public void dumpFrameTrace(OutputStream out) throws IOException {
+        mImpl.dumpFrameTrace(out);
     }
 
     /**
@@ -114,7 +398,41 @@ public class BlufiClient {
      * {@link BlufiCallback#onDeviceScanResult(BlufiClient, int, List)}
      */
     public void requestDeviceWifiScan() {
-        mImpl.requestDeviceWifiScan();
+        mImpl.requestDeviceWifiScan(mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Request to get wifi list that the device scanned within the timeout.
+     *
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void requestDeviceWifiScan(long timeout) {
+        mImpl.requestDeviceWifiScan(timeout);
+    }
+
+    /**
+     * Enable or disable the progressive wifi scan results. If enabled, the complete records will be
+     * notified in {@link BlufiCallback#onDeviceScanPartialResult(BlufiClient, BlufiScanList)} while the
+     * device is still sending the list. The whole list is still notified in
+     * {@link BlufiCallback#onDeviceScanResult(BlufiClient, int, List)} at the end.
+     *
+     * @param batchSize the minimum records of each partial result. If 0 or negative, disable the progressive results
+     */
+    public void setScanResultBatchSize(int batchSize) {
+        mImpl.setScanResultBatchSize(batchSize);
+    }
+
+    /**
+     * Enable or disable the configure of the changed fields only. If enabled, a configure reads the
+     * device status first and posts only the fields which differ from it. A station already connected
+     * to the SSID is not told to connect again, so it doesn't drop its connection. The path taken is
+     * notified in {@link BlufiCallback#onConfigurePath(BlufiClient, int)}. All the fields are posted if
+     * the op mode differs or the device doesn't report its status.
+     *
+     * @param enable true to post the changed fields only, disabled by default
+     */
+    public void setConfigureIfChanged(boolean enable) {
+        mImpl.setConfigureIfChanged(enable);
     }
 
     /**
@@ -124,7 +442,37 @@ public class BlufiClient {
      * @param params the config parameter
      */
     public void configure(final BlufiConfigureParams params) {
-        mImpl.configure(params);
+        mImpl.configure(BlufiProfile.from(null, params), mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Configure the device to a station or soft AP within the timeout.
+     *
+     * @param params the config parameter
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void configure(final BlufiConfigureParams params, long timeout) {
+        mImpl.configure(BlufiProfile.from(null, params), timeout);
+    }
+
+    /**
+     * Configure the device with a profile whose fields are already encoded. The posted result will be
+     * notified in {@link BlufiCallback#onPostConfigureParams(BlufiClient, int)}
+     *
+     * @param profile the profile, the same one can configure any number of devices
+     */
+    public void configure(final BlufiProfile profile) {
+        mImpl.configure(profile, mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Configure the device with a profile within the timeout.
+     *
+     * @param profile the profile, the same one can configure any number of devices
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void configure(final BlufiProfile profile, long timeout) {
+        mImpl.configure(profile, timeout);
     }
 
     /**
@@ -134,6 +482,161 @@ public class BlufiClient {
      * @param data the custom data
      */
     public void postCustomData(byte[] data) {
-        mImpl.postCustomData(data);
+        mImpl.postCustomData(data, mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Request to post custom data to device within the timeout.
+     *
+     * @param data the custom data
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void postCustomData(byte[] data, long timeout) {
+        mImpl.postCustomData(data, timeout);
+    }
+
+    /**
+     * Compress the custom data, including the channel messages, with DEFLATE if the device supports
+     * it. The compression is negotiated with the device before the first custom data of each
+     * connection, a payload which doesn't shrink is posted uncompressed.
+     * <p>
+     * The negotiation request is posted as custom data, so a device without the compression receives
+     * its six bytes, "BFZ?" followed by the protocol version and the codecs, as an ordinary custom
+     * data message before the data is posted raw.
+     * Use {@link #setCustomDataCompression(boolean, int, int)} to only ask the devices whose firmware
+     * is known to support it.
+     *
+     * @param enable true to compress, disabled by default
+     */
+    public void setCustomDataCompression(boolean enable) {
+        mImpl.setCustomDataCompression(enable, 0);
+    }
+
+    /**
+     * Compress the custom data like {@link #setCustomDataCompression(boolean)}, but only ask a device
+     * reporting the version or a later one. The device version is requested before the first custom
+     * data of each connection unless it was read already, a device with an earlier version or none
+     * never receives the negotiation request and gets the custom data raw.
+     *
+     * @param enable true to compress, disabled by default
+     * @param minMajor the major of the lowest device version supporting the compression
+     * @param minMinor the minor of the lowest device version supporting the compression
+     */
+    public void setCustomDataCompression(boolean enable, int minMajor, int minMinor) {
+        if (minMajor < 0 || minMajor > 0xff || minMinor < 0 || minMinor > 0xff) {
+            throw new IllegalArgumentException("Invalid version " + minMajor + "." + minMinor);
+        }
+        mImpl.setCustomDataCompression(enable, minMajor << 8 | minMinor);
+    }
+
+    /**
+     * @return true if the device accepted the compression on this connection
+     */
+    public boolean isCustomDataCompressed() {
+        return mImpl.isCustomDataCompressed();
+    }
+
+    /**
+     * Get the bytes posted over the bytes of the custom data, such as 0.25 if the data was compressed to
+     * a quarter.
+     *
+     * @return the ratio, -1 if no custom data was posted
+     */
+    public float getCompressionRatio() {
+        return mImpl.getCompressionRatio();
+    }
+
+    /**
+     * Get the custom data bytes, before the compression, posted per second of transfer.
+     *
+     * @return bytes per second, -1 if no custom data was posted
+     */
+    public long getCustomDataGoodput() {
+        return mImpl.getCustomDataGoodput();
+    }
+
+    /**
+     * Open a logical channel over the custom data, or change the weight of the open channel. Once a
+     * channel is open, the custom data received with its header is delivered in
+     * {@link BlufiCallback#onReceiveChannelData(BlufiClient, int, byte[])} instead of
+     * {@link BlufiCallback#onReceiveCustomData(BlufiClient, int, byte[])}. The header starts with
+     * the reserved marker "BFM", other custom data is never taken for channel data.
+     *
+     * @param channel the channel id, 0 ~ 255
+     * @param weight the share of the link the channel gets while other channels are posting too, at least 1
+     */
+    public void openChannel(int channel, int weight) {
+        checkChannel(channel);
+        mImpl.openChannel(channel, weight);
+    }
+
+    /**
+     * Close the channel, its queued messages fail.
+     *
+     * @param channel the channel id, 0 ~ 255
+     */
+    public void closeChannel(int channel) {
+        checkChannel(channel);
+        mImpl.closeChannel(channel);
+    }
+
+    /**
+     * Post a message on the channel. The messages of a channel are posted in order, the messages of
+     * different channels share the link by their weights. The posted result will be notified in
+     * {@link BlufiCallback#onPostChannelDataResult(BlufiClient, int, int, byte[])}
+     *
+     * @param channel the open channel id
+     * @param data the message
+     */
+    public void postChannelData(int channel, byte[] data) {
+        checkChannel(channel);
+        mImpl.postChannelData(channel, data, mImpl.getOperationTimeout());
+    }
+
+    /**
+     * Post a message on the channel within the timeout.
+     *
+     * @param channel the open channel id
+     * @param data the message
+     * @param timeout in milliseconds, less than or equal to 0 means no deadline
+     */
+    public void postChannelData(int channel, byte[] data, long timeout) {
+        checkChannel(channel);
+        mImpl.postChannelData(channel, data, timeout);
+    }
+
+    /**
+     * @param channel the channel id, 0 ~ 255
+     * @return the message bytes posted on the channel, -1 if the channel is not open
+     */
+    public long getChannelSentBytes(int channel) {
+        checkChannel(channel);
+        return mImpl.getChannelSentBytes(channel);
+    }
+
+    /**
+     * @param channel the channel id, 0 ~ 255
+     * @return the message bytes received on the channel, -1 if the channel is not open
+     */
+    public long getChannelReceivedBytes(int channel) {
+        checkChannel(channel);
+        return mImpl.getChannelReceivedBytes(channel);
+    }
+
+    /**
+     * Get the throughput of the channel, counted while it had messages to post.
+     *
+     * @param channel the channel id, 0 ~ 255
+     * @return bytes per second, -1 if nothing was posted on the channel
+     */
+    public long getChannelThroughput(int channel) {
+        checkChannel(channel);
+        return mImpl.getChannelThroughput(channel);
+    }
+
+    private static void checkChannel(int channel) {
+        if (channel < 0 || channel > BlufiChannelMux.CHANNEL_MAX) {
+            throw new IllegalArgumentException("Invalid channel " + channel);
+        }
     }
 }
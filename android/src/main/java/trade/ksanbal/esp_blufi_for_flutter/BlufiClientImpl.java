@@ -13,29 +13,29 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import io.flutter.BuildConfig;
-import trade.ksanbal.esp_blufi_for_flutter.params.BlufiConfigureParams;
 import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
-import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanResult;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusView;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiVersionResponse;
 import trade.ksanbal.esp_blufi_for_flutter.security.BlufiAES;
 import trade.ksanbal.esp_blufi_for_flutter.security.BlufiCRC;
@@ -51,6 +51,27 @@ class BlufiClientImpl implements BlufiParameter {
     private static final int PACKAGE_LENGTH_MAX = 255;
     private static final int PACKAGE_HEADER_LENGTH = 4;
 
+    private static final long SINGLE_FLIGHT_STALE_TIMEOUT = 10000L;
+    private static final long FRAME_PACING_DEFAULT = 10L;
+    private static final int RETRY_BACKOFF_MAX_SHIFT = 4;
+    private static final long RSSI_SAMPLE_INTERVAL = 2000L;
+    private static final long RSSI_READ_TIMEOUT = 500L;
+    /**
+     * The wait for the device to answer the compression request, or the version request before it,
+     * after it is posted.
+     */
+    private static final long COMPRESSION_NEGOTIATE_TIMEOUT = 1000L;
+    /**
+     * The wait for the device status before a configure posts all the messages anyway.
+     */
+    private static final long CONFIGURE_STATUS_TIMEOUT = 1000L;
+
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_REQUESTED = 1;
+    private static final int COMPRESSION_ON = 2;
+    private static final int COMPRESSION_UNSUPPORTED = 3;
+    private static final int COMPRESSION_VERSION_CHECK = 4;
+
     private static final byte NEG_SECURITY_SET_TOTAL_LENGTH = 0x00;
     private static final byte NEG_SECURITY_SET_ALL_DATA = 0x01;
 
@@ -72,17 +93,25 @@ class BlufiClientImpl implements BlufiParameter {
     private volatile BlufiCallback mUserBlufiCallback;
 
     private BluetoothGatt mGatt;
+    private final BlufiTransport mTransport;
+    private final BlufiClock mClock;
     private BluetoothGattCharacteristic mWriteChar;
-    private final LinkedBlockingQueue<Boolean> mWriteResultQueue;
     private BluetoothGattCharacteristic mNotifyChar;
     private long mWriteTimeout = -1;
+    private long mFramePacing = FRAME_PACING_DEFAULT;
+    private volatile int mFrameRetries = 0;
+    private volatile int mMessageRetries = 0;
+    private volatile long mRetryBackoff = 0;
+    private final AtomicLong mRetransmitCount = new AtomicLong();
+    private final AtomicLong mRetransmitExhaustedCount = new AtomicLong();
 
     private int mPackageLengthLimit = -1;
     private int mBlufiMTU = -1;
+    private volatile BlufiPackageLengthTuner mPackageLengthTuner;
+    private volatile int mScanBatchSize = -1;
 
     private final AtomicInteger mSendSequence;
     private final AtomicInteger mReadSequence;
-    private LinkedBlockingQueue<Integer> mAck;
 
     private volatile BlufiNotifyData mNotifyData;
 
@@ -93,31 +122,108 @@ class BlufiClientImpl implements BlufiParameter {
 
     private boolean mRequireAck = false;
 
-    private final SecurityCallback mSecurityCallback;
-    private final LinkedBlockingQueue<BigInteger> mDevicePublicKeyQueue;
-
-    private ExecutorService mThreadPool;
-    private final Handler mUIHandler;
-
-    private int mConnectState = BluetoothGatt.STATE_DISCONNECTED;
-
-    BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device) {
+    private BlufiDH mNegotiatingDH;
+    private BlufiDeadline mNegotiatingDeadline;
+    private ScheduledFuture<?> mDeviceKeyTimer;
+    private ScheduledFuture<?> mVersionTimer;
+    private ScheduledFuture<?> mStatusTimer;
+    private ScheduledFuture<?> mScanTimer;
+    private volatile long mOperationTimeout = -1;
+
+    private boolean mVersionPending;
+    private boolean mStatusPending;
+    private boolean mScanPending;
+    private volatile boolean mReceiveResync = false;
+    private volatile boolean mConfigureIfChanged = false;
+    private ConfigureCheck mConfigureCheck;
+    private boolean mResyncing;
+    private final AtomicLong mDuplicateNotificationCount = new AtomicLong();
+    private final AtomicLong mResyncCount = new AtomicLong();
+
+    private final BlufiEventLoop mLoop;
+    private final ArrayDeque<Post> mPostQueue;
+    private Post mPost;
+    private ScheduledFuture<?> mFrameTimer;
+    private volatile boolean mClosed = false;
+    private final Executor mCallbackExecutor;
+
+    private final BlufiSingleFlight mVersionFlight;
+    private final BlufiSingleFlight mStatusFlight;
+    private final BlufiStatusView mStatusView;
+    private final BlufiFrameTrace mFrameTrace;
+    private final BlufiLinkController mLinkController;
+    private final BlufiLinkQuality mLinkQuality = new BlufiLinkQuality();
+    private final BlufiChannelMux mChannelMux;
+    private final BlufiCompression mCompression = new BlufiCompression();
+    private volatile boolean mCompressionEnabled;
+    /**
+     * The lowest device version, major << 8 | minor, which is asked for the compression, 0 to ask any.
+     */
+    private volatile int mCompressionMinVersion;
+    /**
+     * The version reported by the device on this connection, major << 8 | minor, -1 if unknown.
+     */
+    private int mDeviceVersion = -1;
+    private volatile int mCompressionState = COMPRESSION_NONE;
+    private final List<PendingCustomData> mCompressionPending = new ArrayList<>();
+    private ScheduledFuture<?> mCompressionTimer;
+    private ScheduledFuture<?> mRssiTimer;
+    private ScheduledFuture<?> mRssiReadTimer;
+    private boolean mRssiReading;
+    private Post mDeferredWrite;
+
+    private volatile int mConnectState = BluetoothGatt.STATE_DISCONNECTED;
+
+    /**
+     * @param callbackExecutor the executor to run the BlufiCallback on, null for the main thread
+     */
+    BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device, Executor callbackExecutor) {
+        this(client, context, device, null, BlufiClock.SYSTEM, callbackExecutor);
+    }
+
+    /**
+     * Create the client over a transport other than GATT, the transport is regarded as connected.
+     *
+     * @param callbackExecutor the executor to run the BlufiCallback on
+     */
+    BlufiClientImpl(BlufiClient client, BlufiTransport transport, BlufiClock clock, Executor callbackExecutor) {
+        this(client, null, null, transport, clock, callbackExecutor);
+        mTransport.open(new TransportListener());
+        mConnectState = BluetoothGatt.STATE_CONNECTED;
+        mLoop.execute(() -> mLinkController.onConnected(null));
+        int mtu = transport.getMtu();
+        if (mtu > 0) {
+            onMtuChanged(mtu);
+        }
+    }
+
+    private BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device,
+                            BlufiTransport transport, BlufiClock clock, Executor callbackExecutor) {
         mClient = client;
         mContext = context;
         mDevice = device;
         mInnerGattCallback = new InnerGattCallback();
+        mTransport = transport != null ? transport : new GattTransport();
+        mClock = clock;
+        if (callbackExecutor != null) {
+            mCallbackExecutor = callbackExecutor;
+        } else {
+            Handler uiHandler = new Handler(Looper.getMainLooper());
+            mCallbackExecutor = uiHandler::post;
+        }
 
         mSendSequence = new AtomicInteger(-1);
         mReadSequence = new AtomicInteger(-1);
-        mAck = new LinkedBlockingQueue<>();
 
-        mSecurityCallback = new SecurityCallback();
-        mDevicePublicKeyQueue = new LinkedBlockingQueue<>();
+        mLoop = BlufiEventLoop.getDefault();
+        mPostQueue = new ArrayDeque<>();
 
-        mThreadPool = Executors.newSingleThreadExecutor();
-        mUIHandler = new Handler(Looper.getMainLooper());
-
-        mWriteResultQueue = new LinkedBlockingQueue<>();
+        mVersionFlight = new BlufiSingleFlight(SINGLE_FLIGHT_STALE_TIMEOUT, clock);
+        mStatusFlight = new BlufiSingleFlight(SINGLE_FLIGHT_STALE_TIMEOUT, clock);
+        mStatusView = new BlufiStatusView();
+        mFrameTrace = new BlufiFrameTrace(BlufiFrameTrace.DEFAULT_CAPACITY, clock);
+        mLinkController = new BlufiLinkController(mLoop, clock, new LinkHost());
+        mChannelMux = new BlufiChannelMux(clock, new MuxHost());
     }
 
     void printDebugLog(boolean enable) {
@@ -133,7 +239,7 @@ class BlufiClientImpl implements BlufiParameter {
     }
 
     synchronized void connect() {
-        if (mThreadPool == null) {
+        if (mClosed) {
             throw new IllegalStateException("The BlufiClient has closed");
         }
 
@@ -145,23 +251,18 @@ class BlufiClientImpl implements BlufiParameter {
     }
 
     synchronized void close() {
+        mClosed = true;
         mConnectState = BluetoothGatt.STATE_DISCONNECTED;
 
-        mWriteResultQueue.clear();
-        if (mThreadPool != null) {
-            mThreadPool.shutdownNow();
-            mThreadPool = null;
-        }
+        mLoop.execute(this::failPosts);
+        mLoop.execute(mLinkController::onDisconnected);
+        mLoop.execute(this::stopRssiSampling);
         if (mGatt != null) {
             mGatt.close();
             mGatt = null;
         }
         mNotifyChar = null;
         mWriteChar = null;
-        if (mAck != null) {
-            mAck.clear();
-            mAck = null;
-        }
         mClient = null;
         mUserBlufiCallback = null;
         mInnerGattCallback = null;
@@ -174,6 +275,76 @@ class BlufiClientImpl implements BlufiParameter {
         mWriteTimeout = timeout;
     }
 
+    /**
+     * Set the interval between two frames of the messages on a degraded link, 0 to post without waiting.
+     * A good link posts without waiting and a poor link waits longer, see {@link BlufiLinkQuality}.
+     */
+    void setFramePacing(long pacing) {
+        mFramePacing = pacing;
+    }
+
+    void setFrameRetransmission(int frameRetries, int messageRetries, long backoff) {
+        mFrameRetries = Math.max(frameRetries, 0);
+        mMessageRetries = Math.max(messageRetries, 0);
+        mRetryBackoff = Math.max(backoff, 0L);
+    }
+
+    void setReceiveResync(boolean enable) {
+        mReceiveResync = enable;
+    }
+
+    void setConfigureIfChanged(boolean enable) {
+        mConfigureIfChanged = enable;
+    }
+
+    long getDuplicateNotificationCount() {
+        return mDuplicateNotificationCount.get();
+    }
+
+    long getResyncCount() {
+        return mResyncCount.get();
+    }
+
+    void setLinkIdleDelays(long idleDelay, long lowPowerDelay) {
+        mLoop.execute(() -> mLinkController.setIdleDelays(idleDelay, lowPowerDelay));
+    }
+
+    int getConnectionPriority() {
+        return mLinkController.getPriority();
+    }
+
+    int getTxPhy() {
+        return mLinkController.getTxPhy();
+    }
+
+    int getRxPhy() {
+        return mLinkController.getRxPhy();
+    }
+
+    float getConnectionInterval() {
+        return mLinkController.getInterval();
+    }
+
+    long getLinkThroughput(int priority) {
+        return mLinkController.getThroughput(priority);
+    }
+
+    int getLinkGrade() {
+        return mLinkQuality.getGrade();
+    }
+
+    int getRemoteRssi() {
+        return mLinkQuality.getRssi();
+    }
+
+    long getRetransmittedFrameCount() {
+        return mRetransmitCount.get();
+    }
+
+    long getRetransmitExhaustedCount() {
+        return mRetransmitExhaustedCount.get();
+    }
+
     void setPostPackageLengthLimit(int lengthLimit) {
         if (lengthLimit < 0) {
             mPackageLengthLimit = -1;
@@ -186,69 +357,145 @@ class BlufiClientImpl implements BlufiParameter {
         );
     }
 
-    void requestDeviceVersion() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceVersion();
+    synchronized void setPackageLengthAutoTuning(boolean enable) {
+        if (!enable) {
+            mPackageLengthTuner = null;
+            return;
+        }
+        if (mPackageLengthTuner == null) {
+            BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner(
+                    mDevice == null ? null : mDevice.getAddress(), PACKAGE_LENGTH_MIN);
+            if (mBlufiMTU > 0) {
+                tuner.setMaxLength(mBlufiMTU);
             }
-        });
+            mPackageLengthTuner = tuner;
+        }
     }
 
-    void requestDeviceStatus() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceStatus();
+    /**
+     * The length set by the user wins. Otherwise the tuner's length is limited by the link grade once
+     * the tuner has settled. While it probes the candidate is posted as it is, the tuner only takes
+     * the results of its candidate and would never settle on a degraded link.
+     */
+    int getPostPackageLength() {
+        if (mPackageLengthLimit > 0) {
+            return mPackageLengthLimit;
+        }
+        BlufiPackageLengthTuner tuner = mPackageLengthTuner;
+        if (tuner != null) {
+            int length = tuner.getLength();
+            if (length > 0) {
+                return tuner.getSettledLength() < 0 ? length : mLinkQuality.limitPackageLength(length);
             }
-        });
+        }
+        return mLinkQuality.limitPackageLength(mBlufiMTU > 0 ? mBlufiMTU : PACKAGE_LENGTH_DEFAULT);
     }
 
-    void negotiateSecurity() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __negotiateSecurity();
-            }
-        });
+    void setScanResultBatchSize(int batchSize) {
+        mScanBatchSize = batchSize;
     }
 
-    void configure(final BlufiConfigureParams params) {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __configure(params);
-            }
-        });
+    long getIssuedQueryCount() {
+        return mVersionFlight.getIssuedCount() + mStatusFlight.getIssuedCount();
     }
 
-    void requestDeviceWifiScan() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestDeviceWifiScan();
-            }
-        });
+    long getCoalescedQueryCount() {
+        return mVersionFlight.getCoalescedCount() + mStatusFlight.getCoalescedCount();
     }
 
-    void postCustomData(final byte[] data) {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __postCustomData(data);
-            }
-        });
+    void dumpFrameTrace(OutputStream out) throws IOException {
+        mFrameTrace.dump(out);
     }
 
-    void requestCloseConnection() {
-        mThreadPool.submit(new ThrowableRunnable() {
-            @Override
-            void execute() {
-                __requestCloseConnection();
-            }
-        });
+    void setOperationTimeout(long timeout) {
+        mOperationTimeout = timeout;
+    }
+
+    long getOperationTimeout() {
+        return mOperationTimeout;
+    }
+
+    void requestDeviceVersion(long timeout) {
+        if (!mVersionFlight.join()) {
+            return;
+        }
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __requestDeviceVersion(deadline));
+    }
+
+    void requestDeviceStatus(long timeout) {
+        if (!mStatusFlight.join()) {
+            return;
+        }
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __requestDeviceStatus(deadline));
+    }
+
+    void negotiateSecurity(long timeout) {
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __negotiateSecurity(deadline));
+    }
+
+    void configure(final BlufiProfile profile, long timeout) {
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __configure(profile, deadline));
+    }
+
+    void requestDeviceWifiScan(long timeout) {
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __requestDeviceWifiScan(deadline));
+    }
+
+    void openChannel(final int channel, final int weight) {
+        mLoop.execute(() -> mChannelMux.open(channel, weight));
+    }
+
+    void closeChannel(final int channel) {
+        mLoop.execute(() -> mChannelMux.close(channel));
+    }
+
+    void postChannelData(final int channel, final byte[] data, long timeout) {
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> mChannelMux.post(channel, data, deadline));
+    }
+
+    long getChannelSentBytes(int channel) {
+        return mChannelMux.getSentBytes(channel);
+    }
+
+    long getChannelReceivedBytes(int channel) {
+        return mChannelMux.getReceivedBytes(channel);
+    }
+
+    long getChannelThroughput(int channel) {
+        return mChannelMux.getThroughput(channel);
+    }
+
+    void setCustomDataCompression(boolean enable, int minVersion) {
+        mCompressionEnabled = enable;
+        mCompressionMinVersion = minVersion;
+    }
+
+    boolean isCustomDataCompressed() {
+        return mCompressionState == COMPRESSION_ON;
+    }
+
+    float getCompressionRatio() {
+        return mCompression.getRatio();
+    }
+
+    long getCustomDataGoodput() {
+        return mCompression.getGoodput();
+    }
+
+    void postCustomData(final byte[] data, long timeout) {
+        final BlufiDeadline deadline = BlufiDeadline.after(timeout, mClock);
+        mLoop.execute(() -> __postCustomData(data, deadline));
     }
 
+    void requestCloseConnection() {
+        mLoop.execute(this::__requestCloseConnection);
+    }
     private int toInt(byte b) {
         return b & 0xff;
     }
@@ -293,6 +540,19 @@ class BlufiClientImpl implements BlufiParameter {
         return mSendSequence.incrementAndGet() & 0xff;
     }
 
+    /**
+     * Give back the sequences of the frames the failed message never delivered, so the next
+     * message continues right after the last frame the device received. Only the current message
+     * takes sequences, the unused ones are the last ones taken.
+     */
+    private void rewindSendSequence(Post post) {
+        int unused = post.sequencedFrames - post.deliveredFrames;
+        if (unused > 0) {
+            mSendSequence.addAndGet(-unused);
+            post.sequencedFrames = post.deliveredFrames;
+        }
+    }
+
     private byte[] generateAESIV(int sequence) {
         byte[] result = new byte[16];
         result[0] = (byte) sequence;
@@ -300,111 +560,535 @@ class BlufiClientImpl implements BlufiParameter {
         return result;
     }
 
-    private boolean isConnected() {
+    boolean isConnected() {
         return mConnectState == BluetoothGatt.STATE_CONNECTED;
     }
 
-    private boolean gattWrite(byte[] data) throws InterruptedException {
+    private void post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data,
+                      boolean paced, BlufiDeadline deadline, PostCallback callback) {
+        Post post = new Post(encrypt, checksum, requireAck, type, data);
+        post.deadline = deadline;
+        post(post, paced, callback);
+    }
+
+    /**
+     * Queue a message, it is posted after the messages queued before it complete.
+     *
+     * @param paced true to wait the frame pacing before the first frame
+     * @param callback called on the event loop when the message is posted or failed
+     */
+    private void post(Post post, boolean paced, PostCallback callback) {
+        post.paced = paced;
+        post.callback = callback;
+        mPostQueue.add(post);
+        if (mPost == null) {
+            nextPost();
+        }
+    }
+
+    private void nextPost() {
+        final Post post = mPostQueue.poll();
+        mPost = post;
+        if (post == null) {
+            return;
+        }
+        long pacing = mLinkQuality.getFramePacing(mFramePacing);
+        if (post.paced && pacing > 0) {
+            mLoop.schedule(() -> startPost(post), pacing);
+        } else {
+            startPost(post);
+        }
+    }
+
+    private void startPost(Post post) {
+        if (mPost != post) {
+            return;
+        }
+        if (post.deadline.isExpired()) {
+            finishPost(post, BlufiCallback.CODE_TIMEOUT_QUEUED);
+            return;
+        }
+        post.pkgLength = getPostPackageLength();
+        post.startTime = mClock.nanoTime();
+        if (post.burst != null) {
+            encodeBurst(post);
+            writeBurstFrame(post);
+        } else {
+            writeNextFrame(post);
+        }
+    }
+
+    private void writeNextFrame(Post post) {
+        if (mPost != post) {
+            return;
+        }
+        if (post.deadline.isExpired()) {
+            // Before the frame takes a sequence, the device must not miss one
+            finishPost(post, BlufiCallback.CODE_TIMEOUT_WRITE);
+            return;
+        }
+
+        int sequence = generateSendSequence();
+        post.sequencedFrames++;
+        byte[] frameData = takeFrameData(post);
+        post.sequence = sequence;
+        post.frame = getPostBytes(post.type, post.encrypt, post.checksum, post.requireAck, post.frag, sequence, frameData);
+        post.frameRetries = 0;
+        writeFrame(post);
+    }
+
+    /**
+     * Cut the data of the next frame from the message and advance its offset.
+     *
+     * @return the frame data, null if the message has no data
+     */
+    private byte[] takeFrameData(Post post) {
+        byte[] frameData = null;
+        boolean frag = false;
+        if (post.data != null && post.data.length > 0) {
+            int dataLengthLimit = post.pkgLength - PACKAGE_HEADER_LENGTH;
+            dataLengthLimit -= 2; // if frag, two bytes total length in data
+            if (post.checksum) {
+                dataLengthLimit -= 2;
+            }
+            int remain = post.data.length - post.offset;
+            // Don't leave one or two bytes alone to the last frame
+            int length = remain <= dataLengthLimit + 2 ? remain : dataLengthLimit;
+            frag = length < remain;
+            int dataOffset = 0;
+            if (frag) {
+                frameData = new byte[length + 2];
+                frameData[0] = (byte) remain;
+                frameData[1] = (byte) (remain >> 8);
+                dataOffset = 2;
+            } else {
+                frameData = new byte[length];
+            }
+            System.arraycopy(post.data, post.offset, frameData, dataOffset, length);
+            post.offset += length;
+        }
+        post.frag = frag;
+        return frameData;
+    }
+
+    /**
+     * Encode all the frames of the burst, with the package length of the burst.
+     */
+    private void encodeBurst(Post post) {
+        List<BurstFrame> frames = new ArrayList<>();
+        for (Post message : post.burst) {
+            message.pkgLength = post.pkgLength;
+            do {
+                byte[] frameData = takeFrameData(message);
+                int sequence = generateSendSequence();
+                byte[] frame = getPostBytes(message.type, message.encrypt, message.checksum, message.requireAck,
+                        message.frag, sequence, frameData);
+                frames.add(new BurstFrame(frame, sequence, message.requireAck, message.failureCode));
+                if (message.requireAck) {
+                    post.burstPendingAcks++;
+                }
+            } while (message.frag);
+        }
+        post.burstFrames = frames.toArray(new BurstFrame[0]);
+        post.burstIndex = 0;
+        post.sequencedFrames += post.burstFrames.length;
+    }
+
+    private void writeBurstFrame(Post post) {
+        if (mPost != post) {
+            return;
+        }
+        BurstFrame frame = post.burstFrames[post.burstIndex];
+        post.sequence = frame.sequence;
+        post.frame = frame.frame;
+        post.frameRetries = 0;
+        writeFrame(post);
+    }
+
+    /**
+     * Write the next frame of the burst without waiting for the ack of the written one. The burst
+     * completes when all its frames are written and acked.
+     */
+    private void onBurstFrameWritten(final Post post) {
+        post.burstIndex++;
+        if (post.burstIndex < post.burstFrames.length) {
+            long pacing = mLinkQuality.getFramePacing(mFramePacing);
+            if (pacing > 0) {
+                mLoop.schedule(() -> writeBurstFrame(post), pacing);
+            } else {
+                writeBurstFrame(post);
+            }
+        } else if (post.burstPendingAcks == 0) {
+            finishPost(post, BlufiCallback.STATUS_SUCCESS);
+        } else {
+            post.waitingAck = true;
+            if (!post.deadline.isNone()) {
+                mFrameTimer = mLoop.schedule(this::onAckTimeout, post.deadline.remaining());
+            }
+        }
+    }
+
+    private void onBurstAck(Post post, int ack) {
+        int written = Math.min(post.burstIndex + 1, post.burstFrames.length);
+        for (int i = 0; i < written; i++) {
+            BurstFrame frame = post.burstFrames[i];
+            if (frame.requireAck && !frame.acked && frame.sequence == ack) {
+                frame.acked = true;
+                post.burstPendingAcks--;
+                if (post.burstPendingAcks == 0 && post.waitingAck) {
+                    cancelFrameTimer();
+                    post.waitingAck = false;
+                    finishPost(post, BlufiCallback.STATUS_SUCCESS);
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "onPostAck: unexpected ack " + ack + " in burst");
+    }
+
+    /**
+     * @return the failure code of the message the failed burst stopped at, the one being written or
+     * the first one whose ack is missing
+     */
+    private static int getBurstFailureCode(Post post) {
+        BurstFrame[] frames = post.burstFrames;
+        if (frames == null || frames.length == 0) {
+            // Failed before it started
+            return post.burst.isEmpty() ? BlufiCallback.CODE_WRITE_DATA_FAILED : post.burst.get(0).failureCode;
+        }
+        if (post.burstIndex < frames.length) {
+            return frames[post.burstIndex].failureCode;
+        }
+        for (BurstFrame frame : frames) {
+            if (frame.requireAck && !frame.acked) {
+                return frame.failureCode;
+            }
+        }
+        return frames[frames.length - 1].failureCode;
+    }
+
+    /**
+     * Write the current frame of the message, a retransmitted frame keeps its sequence.
+     */
+    private void writeFrame(Post post) {
+        if (mPost != post) {
+            return;
+        }
         if (!isConnected()) {
-            return false;
+            finishPost(post, BlufiCallback.CODE_WRITE_DATA_FAILED);
+            return;
+        }
+        if (post.deadline.isExpired()) {
+            finishPost(post, BlufiCallback.CODE_TIMEOUT_WRITE);
+            return;
+        }
+        if (mRssiReading) {
+            // The GATT runs one operation at a time, write once the RSSI is read
+            mDeferredWrite = post;
+            return;
         }
+
+        post.writing = true;
+        post.writeTime = mClock.nanoTime();
+        byte[] frame = post.frame;
         if (mPrintDebug) {
-            Log.i(TAG, "gattWrite= " + Arrays.toString(data));
-        }
-        mWriteChar.setValue(data);
-        mGatt.writeCharacteristic(mWriteChar);
-        Boolean result;
-        if (mWriteTimeout > 0) {
-            result = mWriteResultQueue.poll(mWriteTimeout, TimeUnit.MILLISECONDS);
-            if (result == null) {
-                onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
+            Log.i(TAG, "gattWrite= " + Arrays.toString(frame));
+        }
+        mFrameTrace.record(BlufiFrameTrace.DIRECTION_SENT, frame);
+
+        // Armed before the write, a post whose write is never reported must not block the queue
+        long wait = post.deadline.remaining();
+        if (mWriteTimeout > 0 && mWriteTimeout < wait) {
+            wait = mWriteTimeout;
+        }
+        if (wait != Long.MAX_VALUE) {
+            mFrameTimer = mLoop.schedule(this::onWriteTimeout, wait);
+        }
+        if (!mTransport.write(frame)) {
+            post.writing = false;
+            post.writeFailed = true;
+            finishPost(post, BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+    }
+
+    private void onPostFrameWritten(boolean success) {
+        cancelFrameTimer();
+        Post post = mPost;
+        if (post == null || !post.writing) {
+            return;
+        }
+        post.writing = false;
+        onWriteSample(post, success);
+        if (success) {
+            post.deliveredFrames++;
+            mLinkController.onTransfer(post.frame.length);
+        }
+        if (!success) {
+            if (!retransmit(post)) {
+                post.writeFailed = true;
+                finishPost(post, BlufiCallback.CODE_WRITE_DATA_FAILED);
+            }
+        } else if (post.burstFrames != null) {
+            onBurstFrameWritten(post);
+        } else if (post.requireAck) {
+            post.waitingAck = true;
+            if (!post.deadline.isNone()) {
+                mFrameTimer = mLoop.schedule(this::onAckTimeout, post.deadline.remaining());
             }
         } else {
-            result = mWriteResultQueue.take();
+            onPostFrameComplete(post);
         }
-        return result != null && result;
     }
 
-    private boolean receiveAck(int expectAck) {
-        try {
-            int ack = mAck.take();
-            return ack == expectAck;
-        } catch (InterruptedException e) {
-            Log.w(TAG, "receiveAck: interrupted");
-            Thread.currentThread().interrupt();
+    private void onPostAck(int ack) {
+        Post post = mPost;
+        if (post != null && post.burstFrames != null) {
+            onBurstAck(post, ack);
+            return;
+        }
+        if (post == null || !post.waitingAck) {
+            return;
+        }
+        int behind = (post.sequence - ack) & 0xff;
+        if (ack <= 0xff && behind > 0 && behind < 0x80) {
+            // A late ack of an earlier frame, keep waiting for the current one
+            Log.w(TAG, "onPostAck: stale ack " + ack + ", expect " + post.sequence);
+            return;
+        }
+        cancelFrameTimer();
+        post.waitingAck = false;
+        if (ack == post.sequence) {
+            onPostFrameComplete(post);
+        } else {
+            finishPost(post, BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+    }
+
+    /**
+     * Write the current frame again after the backoff if the retry budgets allow.
+     *
+     * @return false if the budgets are used up
+     */
+    private boolean retransmit(final Post post) {
+        if (mFrameRetries <= 0) {
             return false;
         }
+        if (post.frameRetries >= mFrameRetries || post.messageRetries >= mMessageRetries) {
+            mRetransmitExhaustedCount.incrementAndGet();
+            return false;
+        }
+        post.frameRetries++;
+        post.messageRetries++;
+        mRetransmitCount.incrementAndGet();
+
+        long backoff = mRetryBackoff << Math.min(post.frameRetries - 1, RETRY_BACKOFF_MAX_SHIFT);
+        if (mPrintDebug) {
+            Log.d(TAG, "retransmit sequence " + post.sequence + " in " + backoff + "ms");
+        }
+        if (backoff > 0) {
+            mLoop.schedule(() -> writeFrame(post), backoff);
+        } else {
+            writeFrame(post);
+        }
+        return true;
     }
 
-    private boolean post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
-        if (data == null || data.length == 0) {
-            return postNonData(encrypt, checksum, requireAck, type);
+    private void onPostFrameComplete(final Post post) {
+        long pacing = mLinkQuality.getFramePacing(mFramePacing);
+        if (!post.frag) {
+            finishPost(post, BlufiCallback.STATUS_SUCCESS);
+        } else if (pacing > 0) {
+            mLoop.schedule(() -> writeNextFrame(post), pacing);
         } else {
-            return postContainData(encrypt, checksum, requireAck, type, data);
+            writeNextFrame(post);
         }
     }
 
-    private boolean postNonData(boolean encrypt, boolean checksum, boolean requireAck, int type)
-            throws InterruptedException {
-        int sequence = generateSendSequence();
+    private void onWriteTimeout() {
+        mFrameTimer = null;
+        Post post = mPost;
+        if (post != null && post.writing) {
+            post.writing = false;
+            onWriteSample(post, false);
+            if (post.deadline.isExpired()) {
+                finishPost(post, BlufiCallback.CODE_TIMEOUT_WRITE);
+            } else if (!retransmit(post)) {
+                post.writeFailed = true;
+                onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
+                finishPost(post, BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
+            }
+        }
+    }
 
-        byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, false, sequence, null);
-        boolean posted = gattWrite(postBytes);
+    private void onAckTimeout() {
+        mFrameTimer = null;
+        Post post = mPost;
+        if (post != null && post.waitingAck) {
+            post.waitingAck = false;
+            finishPost(post, BlufiCallback.CODE_TIMEOUT_ACK);
+        }
+    }
 
-        return posted && (!requireAck || receiveAck(sequence));
+    private void cancelFrameTimer() {
+        if (mFrameTimer != null) {
+            mFrameTimer.cancel(false);
+            mFrameTimer = null;
+        }
     }
 
-    private boolean postContainData(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
-        ByteArrayInputStream dataIS = new ByteArrayInputStream(data);
-        ByteArrayOutputStream dataContent = new ByteArrayOutputStream();
-        int pkgLengthLimit = mPackageLengthLimit > 0 ? mPackageLengthLimit :
-                (mBlufiMTU > 0 ? mBlufiMTU : PACKAGE_LENGTH_DEFAULT);
-        int postDataLengthLimit = pkgLengthLimit - PACKAGE_HEADER_LENGTH;
-        postDataLengthLimit -= 2; // if frag, two bytes total length in data
-        if (checksum) {
-            postDataLengthLimit -= 2;
+    private void finishPost(Post post, int status) {
+        if (mPost != post) {
+            return;
         }
-        byte[] dataBuf = new byte[postDataLengthLimit];
-        while (true) {
-            int read = dataIS.read(dataBuf, 0, dataBuf.length);
-            if (read == -1) {
-                break;
+        mPost = null;
+        cancelFrameTimer();
+        if (status != BlufiCallback.STATUS_SUCCESS) {
+            rewindSendSequence(post);
+        }
+        BlufiPackageLengthTuner tuner = mPackageLengthTuner;
+        if (tuner != null && mPackageLengthLimit <= 0 && post.data != null && post.data.length > 0) {
+            if (status == BlufiCallback.STATUS_SUCCESS) {
+                tuner.onTransfer(post.pkgLength, post.data.length, mClock.nanoTime() - post.startTime);
+            } else if (post.writeFailed) {
+                tuner.onWriteFailure(post.pkgLength);
             }
+        }
+        if (isDeadlineExceeded(status)) {
+            onError(status);
+        }
+        post.callback.onPosted(status);
+        if (mPost == null) {
+            nextPost();
+        }
+    }
 
-            dataContent.write(dataBuf, 0, read);
-            if (dataIS.available() > 0 && dataIS.available() <= 2) {
-                read = dataIS.read(dataBuf, 0, dataIS.available());
-                dataContent.write(dataBuf, 0, read);
-            }
-            boolean frag = dataIS.available() > 0;
-            int sequence = generateSendSequence();
-            if (frag) {
-                int totalLen = dataContent.size() + dataIS.available();
-                byte[] tempData = dataContent.toByteArray();
-                dataContent.reset();
-                dataContent.write(totalLen & 0xff);
-                dataContent.write(totalLen >> 8 & 0xff);
-                dataContent.write(tempData, 0, tempData.length);
-            }
-            byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, frag, sequence, dataContent.toByteArray());
-            dataContent.reset();
-            boolean posted = gattWrite(postBytes);
-            if (!posted) {
-                return false;
-            }
-            if (frag) {
-                if (requireAck && !receiveAck(sequence)) {
-                    return false;
-                }
-                sleep(10L);
-            } else {
-                return !requireAck || receiveAck(sequence);
+    /**
+     * Fail the message in flight and the queued ones, such as when the connection is lost.
+     */
+    private void failPosts() {
+        mChannelMux.onDisconnected();
+        resetCompression();
+        List<Post> posts = new ArrayList<>();
+        if (mPost != null) {
+            posts.add(mPost);
+            mPost = null;
+        }
+        posts.addAll(mPostQueue);
+        mPostQueue.clear();
+        cancelFrameTimer();
+        for (Post post : posts) {
+            post.callback.onPosted(BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+        if (mConfigureCheck != null) {
+            cancelTimer(mConfigureCheck.timer);
+            mConfigureCheck = null;
+            onPostConfigureParams(BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+        if (mNegotiatingDH != null) {
+            // The device will not answer the negotiation any more
+            mNegotiatingDH = null;
+            cancelTimer(mDeviceKeyTimer);
+            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+        }
+    }
+
+    private static boolean isDeadlineExceeded(int status) {
+        return status <= BlufiCallback.CODE_TIMEOUT_QUEUED && status >= BlufiCallback.CODE_TIMEOUT_KEY_GENERATION;
+    }
+
+    /**
+     * @return the status if the post timed out, otherwise the failure code of the operation
+     */
+    private static int failureStatus(int status, int failureCode) {
+        if (isDeadlineExceeded(status)) {
+            return status;
+        }
+        return failureCode;
+    }
+
+    private ScheduledFuture<?> scheduleDeadline(BlufiDeadline deadline, Runnable task) {
+        if (deadline.isNone()) {
+            return null;
+        }
+        return mLoop.schedule(task, deadline.remaining());
+    }
+
+    private void onWriteSample(Post post, boolean success) {
+        long latency = mClock.nanoTime() - post.writeTime;
+        if (mLinkQuality.onWrite(latency, success, mLinkController.getInterval())) {
+            onLinkGradeChanged();
+        }
+    }
+
+    private void startRssiSampling() {
+        mLinkQuality.reset();
+        cancelTimer(mRssiTimer);
+        mRssiTimer = mLoop.schedule(this::sampleRssi, RSSI_SAMPLE_INTERVAL);
+    }
+
+    private void stopRssiSampling() {
+        cancelTimer(mRssiTimer);
+        mRssiTimer = null;
+        cancelTimer(mRssiReadTimer);
+        mRssiReadTimer = null;
+        mRssiReading = false;
+        mDeferredWrite = null;
+    }
+
+    private void sampleRssi() {
+        BluetoothGatt gatt = mGatt;
+        if (gatt == null || !isConnected()) {
+            mRssiTimer = null;
+            return;
+        }
+        // Sample between the frames only, not to delay a write
+        if (mPost == null || !mPost.writing && !mPost.waitingAck) {
+            mRssiReading = gatt.readRemoteRssi();
+            if (mRssiReading) {
+                mRssiReadTimer = mLoop.schedule(() -> {
+                    mRssiReadTimer = null;
+                    onRssiRead(0, false);
+                }, RSSI_READ_TIMEOUT);
             }
         }
+        mRssiTimer = mLoop.schedule(this::sampleRssi, RSSI_SAMPLE_INTERVAL);
+    }
 
-        return true;
+    private void onRssiRead(int rssi, boolean success) {
+        if (!mRssiReading) {
+            return;
+        }
+        // The timeout belongs to this read, it must not end a later one
+        cancelTimer(mRssiReadTimer);
+        mRssiReadTimer = null;
+        mRssiReading = false;
+        if (success && mLinkQuality.onRssi(rssi)) {
+            onLinkGradeChanged();
+        }
+        Post deferred = mDeferredWrite;
+        mDeferredWrite = null;
+        if (deferred != null) {
+            writeFrame(deferred);
+        }
+    }
+
+    private void onLinkGradeChanged() {
+        final int grade = mLinkQuality.getGrade();
+        final int rssi = mLinkQuality.getRssi();
+        if (mPrintDebug) {
+            Log.d(TAG, "link grade " + grade + ", rssi " + rssi);
+        }
+        mCallbackExecutor.execute(() -> {
+            if (mUserBlufiCallback != null) {
+                mUserBlufiCallback.onLinkGradeChanged(mClient, grade, rssi);
+            }
+        });
+    }
+
+    private static void cancelTimer(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
     }
 
     private byte[] getPostBytes(int type, boolean encrypt, boolean checksum, boolean requireAck, boolean hasFrag, int sequence, byte[] data) {
@@ -550,7 +1234,7 @@ class BlufiClientImpl implements BlufiParameter {
     private void parseDataData(int subType, byte[] data) {
         switch (subType) {
             case Type.Data.SUBTYPE_NEG:
-                mSecurityCallback.onReceiveDevicePublicKey(data);
+                onReceiveDevicePublicKey(data);
                 break;
             case Type.Data.SUBTYPE_VERSION:
                 parseVersion(data);
@@ -577,14 +1261,25 @@ class BlufiClientImpl implements BlufiParameter {
             ack = data[0] & 0xff;
         }
 
-        mAck.add(ack);
+        onPostAck(ack);
     }
 
     private void parseVersion(byte[] data) {
+        // Read for the compression only when the user didn't request it too
+        boolean checkOnly = mCompressionState == COMPRESSION_VERSION_CHECK && !mVersionPending;
         if (data.length != 2) {
-            onVersionResponse(BlufiCallback.CODE_INVALID_DATA, null);
+            onCompressionVersion(-1);
+            if (!checkOnly) {
+                onVersionResponse(BlufiCallback.CODE_INVALID_DATA, null);
+            }
+            return;
         }
 
+        mDeviceVersion = toInt(data[0]) << 8 | toInt(data[1]);
+        onCompressionVersion(mDeviceVersion);
+        if (checkOnly) {
+            return;
+        }
         BlufiVersionResponse response = new BlufiVersionResponse();
         response.setVersionValues(toInt(data[0]), toInt(data[1]));
         onVersionResponse(BlufiCallback.STATUS_SUCCESS, response);
@@ -596,203 +1291,106 @@ class BlufiClientImpl implements BlufiParameter {
             return;
         }
 
-        BlufiStatusResponse response = new BlufiStatusResponse();
-
-        ByteArrayInputStream dataIS = new ByteArrayInputStream(data);
-
-        int opMode = dataIS.read() & 0xff;
-        response.setOpMode(opMode);
-
-        int staConn = dataIS.read() & 0xff;
-        response.setStaConnectionStatus(staConn);
-
-        int softAPConn = dataIS.read() & 0xff;
-        response.setSoftAPConnectionCount(softAPConn);
-
-        int callbackStatus = BlufiCallback.STATUS_SUCCESS;
-        while (dataIS.available() > 0) {
-            int infoType = dataIS.read() & 0xff;
-            int len = dataIS.read() & 0xff;
-            byte[] stateBytes = new byte[len];
-            int read = dataIS.read(stateBytes, 0, len);
-            if (read != len) {
-                callbackStatus = BlufiCallback.CODE_INVALID_DATA;
-                break;
+        BlufiStatusView view = mStatusView;
+        int status = view.wrap(data) ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_INVALID_DATA;
+        if (mConfigureCheck != null && status == BlufiCallback.STATUS_SUCCESS) {
+            ConfigureCheck check = mConfigureCheck;
+            mConfigureCheck = null;
+            cancelTimer(check.timer);
+            postConfigure(check.profile, view, check.deadline);
+            if (!mStatusPending) {
+                // Read for the configure only, the user didn't request it
+                return;
             }
-            parseWifiStateData(response, infoType, stateBytes);
         }
-
-        onStatusResponse(callbackStatus, response);
-    }
-
-    private void parseWifiStateData(BlufiStatusResponse response, int infoType, byte[] data) {
-        switch (infoType) {
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_BSSID:
-                String staBssid = toHex(data);
-                response.setStaBSSID(staBssid);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID:
-                String staSsid = new String(data);
-                response.setStaSSID(staSsid);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_PASSWORD:
-                String staPassword = new String(data);
-                response.setStaPassword(staPassword);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_AUTH_MODE:
-                int authMode = toInt(data[0]);
-                response.setSoftAPSecrity(authMode);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_CHANNEL:
-                int softAPChannel = toInt(data[0]);
-                response.setSoftAPChannel(softAPChannel);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT:
-                int softAPMaxConnCount = toInt(data[0]);
-                response.setSoftAPMaxConnectionCount(softAPMaxConnCount);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD:
-                String softapPassword = new String(data);
-                response.setSoftAPPassword(softapPassword);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_SSID:
-                String softapSSID = new String(data);
-                response.setSoftAPSSID(softapSSID);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_MAX_CONN_RETRY:
-                int maxRetry = toInt(data[0]);
-                response.setMaxRetry(maxRetry);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_END_REASON:
-                int endReason = toInt(data[0]);
-                response.setEndReason(endReason);
-                break;
-            case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_RSSI:
-                int rssi = data[0];
-                response.setRssi(rssi);
-                break;
-
+        BlufiCallback callback = mUserBlufiCallback;
+        if (callback != null && callback.onDeviceStatusView(mClient, status, view)) {
+            cancelTimer(mStatusTimer);
+            mStatusTimer = null;
+            mStatusPending = false;
+            int waiters = mStatusFlight.complete();
+            for (int i = 1; i < waiters; i++) {
+                callback.onDeviceStatusView(mClient, status, view);
+            }
+            return;
         }
+
+        onStatusResponse(status, view.toResponse());
     }
 
     private void parseWifiScanList(byte[] data) {
-        List<BlufiScanResult> result = new LinkedList<>();
-
-        ByteArrayInputStream dataReader = new ByteArrayInputStream(data);
-        while (dataReader.available() > 0) {
-            int length = dataReader.read() & 0xff;
-            if (length < 1) {
-                Log.w(TAG, "Parse WifiScan invalid length");
-                break;
-            }
-            byte rssi = (byte) dataReader.read();
-            byte[] ssidBytes = new byte[length - 1];
-            int ssidRead = dataReader.read(ssidBytes, 0, ssidBytes.length);
-            if (ssidRead != ssidBytes.length) {
-                Log.w(TAG, "Parse WifiScan parse ssid failed");
-                break;
-            }
-
-            BlufiScanResult sr = new BlufiScanResult();
-            sr.setType(BlufiScanResult.TYPE_WIFI);
-            sr.setRssi(rssi);
-            String ssid = new String(ssidBytes);
-            sr.setSsid(ssid);
-            result.add(sr);
+        BlufiScanList result = BlufiScanList.decode(data);
+        if (result.getEnd() < data.length) {
+            Log.w(TAG, "Parse WifiScan invalid record at " + result.getEnd());
         }
 
         onDeviceScanResult(BlufiCallback.STATUS_SUCCESS, result);
     }
 
-    private void onError(final int errCode) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onError(mClient, errCode);
-            }
-        });
-    }
-
-    private void __negotiateSecurity() {
-        BlufiDH espDH = postNegotiateSecurity();
-        if (espDH == null) {
-            Log.w(TAG, "negotiateSecurity postNegotiateSecurity failed");
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_POST_FAILED);
+    private void parseProgressiveScanList(BlufiNotifyData data, boolean complete) {
+        int batchSize = mScanBatchSize;
+        if (batchSize <= 0 || data.getPkgType() != Type.Data.PACKAGE_VALUE
+                || data.getSubType() != Type.Data.SUBTYPE_WIFI_LIST) {
             return;
         }
 
-        BigInteger devicePublicKey;
-        try {
-            devicePublicKey = mDevicePublicKeyQueue.take();
-            if (devicePublicKey.bitLength() == 0) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
-                return;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "Take device public key interrupted");
-            Thread.currentThread().interrupt();
+        BlufiScanList batch = BlufiScanList.decode(data.getDataBuffer(), data.getDecodedOffset(), data.getDataLength());
+        if (batch.size() == 0 || (!complete && batch.size() < batchSize)) {
             return;
         }
+        data.setDecodedOffset(batch.getEnd());
+        onDeviceScanPartialResult(batch);
+    }
 
-        try {
-            espDH.generateSecretKey(devicePublicKey);
-            if (espDH.getSecretKey() == null) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-                return;
+    private void onError(final int errCode) {
+        mCallbackExecutor.execute(() -> {
+            if (mUserBlufiCallback != null) {
+                mUserBlufiCallback.onError(mClient, errCode);
             }
+        });
+    }
 
-            mAESKey = BlufiMD5.getMD5Bytes(espDH.getSecretKey());
-        } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-            return;
-        }
-
-        boolean setSecurity = false;
-        try {
-            setSecurity = postSetSecurity(false, false, true, true);
-        } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
-        }
-
-        if (setSecurity) {
-            mEncrypted = true;
-            mChecksum = true;
-            onNegotiateSecurityResult(BlufiCallback.STATUS_SUCCESS);
-        } else {
-            mEncrypted = false;
-            mChecksum = false;
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SET_SECURITY);
-        }
+    private void __negotiateSecurity(final BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_BULK);
+        // The key pair generation takes long, keep it off the event loop
+        BlufiEventLoop.compute(() -> {
+            final int radix = 16;
+            final int dhLength = 1024;
+            final BigInteger dhP = new BigInteger(DH_P, radix);
+            final BigInteger dhG = new BigInteger(DH_G);
+            BlufiDH blufiDH;
+            String k;
+            do {
+                blufiDH = new BlufiDH(dhP, dhG, dhLength);
+                k = getPublicValue(blufiDH);
+            } while (k == null);
+
+            final BlufiDH espDH = blufiDH;
+            final String publicValue = k;
+            mLoop.execute(() -> postNegotiateSecurity(espDH, publicValue, deadline));
+        });
     }
 
     private void onNegotiateSecurityResult(final int status) {
-        mUIHandler.post(() -> {
+        mCallbackExecutor.execute(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onNegotiateSecurityResult(mClient, status);
             }
         });
     }
 
-    private BlufiDH postNegotiateSecurity() {
-        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
+    private void postNegotiateSecurity(final BlufiDH espDH, String k, final BlufiDeadline deadline) {
+        if (deadline.isExpired()) {
+            onError(BlufiCallback.CODE_TIMEOUT_KEY_GENERATION);
+            onNegotiateSecurityResult(BlufiCallback.CODE_TIMEOUT_KEY_GENERATION);
+            return;
+        }
+
+        final int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
 
         final int radix = 16;
-        final int dhLength = 1024;
-        final BigInteger dhP = new BigInteger(DH_P, radix);
-        final BigInteger dhG = new BigInteger(DH_G);
-        BlufiDH blufiDH;
-        String p;
-        String g;
-        String k;
-        do {
-            blufiDH = new BlufiDH(dhP, dhG, dhLength);
-            p = blufiDH.getP().toString(radix);
-            g = blufiDH.getG().toString(radix);
-            k = getPublicValue(blufiDH);
-        } while (k == null);
-
-        byte[] pBytes = toBytes(p);
-        byte[] gBytes = toBytes(g);
+        byte[] pBytes = toBytes(espDH.getP().toString(radix));
+        byte[] gBytes = toBytes(espDH.getG().toString(radix));
         byte[] kBytes = toBytes(k);
 
         ByteArrayOutputStream dataOS = new ByteArrayOutputStream();
@@ -803,18 +1401,7 @@ class BlufiClientImpl implements BlufiParameter {
         dataOS.write(NEG_SECURITY_SET_TOTAL_LENGTH);
         dataOS.write((byte) pgkLen1);
         dataOS.write((byte) pgkLen2);
-        try {
-            boolean postLength = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postLength) {
-                return null;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: pgk length interrupted");
-            Thread.currentThread().interrupt();
-            return null;
-        }
-
-        sleep(10);
+        byte[] lengthData = dataOS.toByteArray();
 
         dataOS.reset();
         dataOS.write(NEG_SECURITY_SET_ALL_DATA);
@@ -839,20 +1426,41 @@ class BlufiClientImpl implements BlufiParameter {
         dataOS.write(kLen1);
         dataOS.write(kLen2);
         dataOS.write(kBytes, 0, kLength);
+        final byte[] pgkData = dataOS.toByteArray();
 
-        try {
-            boolean postPGK = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postPGK) {
-                return null;
+        post(false, false, mRequireAck, type, lengthData, false, deadline, postLength -> {
+            if (postLength != BlufiCallback.STATUS_SUCCESS) {
+                Log.w(TAG, "negotiateSecurity post pgk length failed");
+                onNegotiateSecurityResult(failureStatus(postLength, BlufiCallback.CODE_NEG_POST_FAILED));
+                return;
             }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: PGK interrupted");
-            Thread.currentThread().interrupt();
-            return null;
-        }
 
-        dataOS.reset();
-        return blufiDH;
+            // The device may answer before the write callback of the last frame arrives
+            mNegotiatingDH = espDH;
+            mNegotiatingDeadline = deadline;
+            post(false, false, mRequireAck, type, pgkData, true, deadline, postPGK -> {
+                if (mNegotiatingDH != espDH) {
+                    return;
+                }
+                if (postPGK == BlufiCallback.STATUS_SUCCESS) {
+                    mDeviceKeyTimer = scheduleDeadline(deadline, () -> onDeviceKeyTimeout(espDH));
+                } else {
+                    mNegotiatingDH = null;
+                    Log.w(TAG, "negotiateSecurity post pgk failed");
+                    onNegotiateSecurityResult(failureStatus(postPGK, BlufiCallback.CODE_NEG_POST_FAILED));
+                }
+            });
+        });
+    }
+
+    private void onDeviceKeyTimeout(BlufiDH espDH) {
+        if (mNegotiatingDH != espDH) {
+            return;
+        }
+        mNegotiatingDH = null;
+        Log.w(TAG, "negotiateSecurity: device public key timeout");
+        onError(BlufiCallback.CODE_TIMEOUT_DEVICE_KEY);
+        onNegotiateSecurityResult(BlufiCallback.CODE_TIMEOUT_DEVICE_KEY);
     }
 
     private String getPublicValue(BlufiDH espDH) {
@@ -869,7 +1477,72 @@ class BlufiClientImpl implements BlufiParameter {
         return null;
     }
 
-    private boolean postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum) {
+    private void onReceiveDevicePublicKey(byte[] keyData) {
+        final BlufiDH espDH = mNegotiatingDH;
+        if (espDH == null) {
+            Log.w(TAG, "onReceiveDevicePublicKey: no negotiation in progress");
+            return;
+        }
+        mNegotiatingDH = null;
+        cancelTimer(mDeviceKeyTimer);
+        final BlufiDeadline deadline = mNegotiatingDeadline;
+
+        String keyStr = toHex(keyData);
+        final BigInteger devicePublicKey;
+        try {
+            devicePublicKey = new BigInteger(keyStr, 16);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "onReceiveDevicePublicKey: NumberFormatException -> " + keyStr);
+            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+            return;
+        }
+        if (devicePublicKey.bitLength() == 0) {
+            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+            return;
+        }
+
+        BlufiEventLoop.compute(() -> {
+            byte[] aesKey = null;
+            try {
+                espDH.generateSecretKey(devicePublicKey);
+                if (espDH.getSecretKey() != null) {
+                    aesKey = BlufiMD5.getMD5Bytes(espDH.getSecretKey());
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "onReceiveDevicePublicKey: ", e);
+            }
+            final byte[] key = aesKey;
+            mLoop.execute(() -> onSecretKeyGenerated(key, deadline));
+        });
+    }
+
+    private void onSecretKeyGenerated(byte[] aesKey, BlufiDeadline deadline) {
+        if (aesKey == null) {
+            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
+            return;
+        }
+        if (deadline.isExpired()) {
+            onError(BlufiCallback.CODE_TIMEOUT_KEY_GENERATION);
+            onNegotiateSecurityResult(BlufiCallback.CODE_TIMEOUT_KEY_GENERATION);
+            return;
+        }
+
+        mAESKey = aesKey;
+        postSetSecurity(false, false, true, true, deadline, setSecurity -> {
+            if (setSecurity == BlufiCallback.STATUS_SUCCESS) {
+                mEncrypted = true;
+                mChecksum = true;
+                onNegotiateSecurityResult(BlufiCallback.STATUS_SUCCESS);
+            } else {
+                mEncrypted = false;
+                mChecksum = false;
+                onNegotiateSecurityResult(failureStatus(setSecurity, BlufiCallback.CODE_NEG_ERR_SET_SECURITY));
+            }
+        });
+    }
+
+    private void postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum,
+                                 BlufiDeadline deadline, PostCallback callback) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_SEC_MODE);
         int data = 0;
         if (dataChecksum) {
@@ -885,279 +1558,480 @@ class BlufiClientImpl implements BlufiParameter {
             data |= 0b100000;
         }
 
-        byte[] postData = {(byte) data};
-
-        try {
-            return post(false, true, mRequireAck, type, postData);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSetSecurity interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
-    }
-
-    private class SecurityCallback {
-        void onReceiveDevicePublicKey(byte[] keyData) {
-            String keyStr = toHex(keyData);
-            try {
-                BigInteger devicePublicValue = new BigInteger(keyStr, 16);
-                mDevicePublicKeyQueue.add(devicePublicValue);
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "onReceiveDevicePublicKey: NumberFormatException -> " + keyStr);
-                mDevicePublicKeyQueue.add(new BigInteger("0"));
-            }
-        }
+        byte[] postData = {(byte) data};
+
+        post(false, true, mRequireAck, type, postData, false, deadline, callback);
     }
 
-    private void __configure(BlufiConfigureParams params) {
-        int opMode = params.getOpMode();
+    private void __configure(final BlufiProfile profile, final BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_BULK);
+        final int opMode = profile.getOpMode();
         switch (opMode) {
-            case OP_MODE_NULL: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
+            case OP_MODE_NULL:
+            case OP_MODE_STA:
+            case OP_MODE_SOFTAP:
+            case OP_MODE_STASOFTAP:
+                break;
+            default:
+                onPostConfigureParams(BlufiCallback.CODE_CONF_INVALID_OPMODE);
                 return;
-            }
-            case OP_MODE_STA: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
+        }
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
-            case OP_MODE_SOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
-                    return;
-                }
+        if (mConfigureIfChanged) {
+            checkConfigure(profile, deadline);
+        } else {
+            postConfigure(profile, null, deadline);
+        }
+    }
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
+    /**
+     * Read the device status, then post only the fields which differ from it.
+     */
+    private void checkConfigure(final BlufiProfile profile, final BlufiDeadline deadline) {
+        if (mConfigureCheck != null) {
+            Log.w(TAG, "checkConfigure: superseded by a new configure");
+            cancelTimer(mConfigureCheck.timer);
+            mConfigureCheck = null;
+            onPostConfigureParams(BlufiCallback.CODE_WRITE_DATA_FAILED);
+        }
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
+        post(mEncrypted, mChecksum, false, type, null, false, deadline, request -> {
+            if (request != BlufiCallback.STATUS_SUCCESS) {
+                onPostConfigureParams(failureStatus(request, BlufiCallback.CODE_WRITE_DATA_FAILED));
                 return;
             }
-            case OP_MODE_STASOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
+            final ConfigureCheck check = new ConfigureCheck(profile, deadline);
+            check.timer = mLoop.schedule(() -> {
+                if (mConfigureCheck != check) {
                     return;
                 }
+                mConfigureCheck = null;
+                Log.w(TAG, "checkConfigure: no device status, post all the fields");
+                postConfigure(profile, null, deadline);
+            }, CONFIGURE_STATUS_TIMEOUT);
+            mConfigureCheck = check;
+        });
+    }
 
+    /**
+     * @param status the device status, null to post all the fields
+     */
+    private void postConfigure(BlufiProfile profile, BlufiStatusView status, final BlufiDeadline deadline) {
+        final int opMode = profile.getOpMode();
+        if (status != null && status.getOpMode() != opMode) {
+            // The other fields may not apply to the new mode, post all of them
+            status = null;
+        }
+        List<Post> messages = new ArrayList<>();
+        if (status == null) {
+            addDeviceMode(messages, opMode);
+        }
+        if (opMode == OP_MODE_STA || opMode == OP_MODE_STASOFTAP) {
+            addStaWifiInfo(messages, profile, status);
+        }
+        if (opMode == OP_MODE_SOFTAP || opMode == OP_MODE_STASOFTAP) {
+            addSoftAPInfo(messages, profile, status);
+        }
+        if (status == null) {
+            onConfigurePath(BlufiCallback.CONFIGURE_FULL);
+        } else if (messages.isEmpty()) {
+            onConfigurePath(BlufiCallback.CONFIGURE_UNCHANGED);
+            onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
+            return;
+        } else {
+            onConfigurePath(BlufiCallback.CONFIGURE_PARTIAL);
+        }
+        final Post burst = new Post(false, false, false, 0, null);
+        burst.burst = messages;
+        burst.deadline = deadline;
+        post(burst, false, result -> {
+            if (result == BlufiCallback.STATUS_SUCCESS) {
                 onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                break;
+            } else {
+                onPostConfigureParams(failureStatus(result, getBurstFailureCode(burst)));
             }
-            default: {
-                onPostConfigureParams(BlufiCallback.CODE_CONF_INVALID_OPMODE);
-                break;
+        });
+    }
+
+    private void onConfigurePath(final int path) {
+        mCallbackExecutor.execute(() -> {
+            if (mUserBlufiCallback != null) {
+                mUserBlufiCallback.onConfigurePath(mClient, path);
             }
-        }
+        });
     }
 
     private void onPostConfigureParams(final int status) {
-        mUIHandler.post(() -> {
+        mCallbackExecutor.execute(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onPostConfigureParams(mClient, status);
             }
         });
     }
 
-    private boolean postDeviceMode(int deviceMode) {
+    private void addDeviceMode(List<Post> messages, int deviceMode) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
         byte[] data = {(byte) deviceMode};
 
-        try {
-            return post(mEncrypted, mChecksum, true, type, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postDeviceMode interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
+        Post post = new Post(mEncrypted, mChecksum, true, type, data);
+        post.failureCode = BlufiCallback.CODE_CONF_ERR_SET_OPMODE;
+        messages.add(post);
     }
 
-    private boolean postStaWifiInfo(BlufiConfigureParams params) {
-        try {
+    /**
+     * @param status the device status, the station is left alone if it is connected to the SSID
+     */
+    private void addStaWifiInfo(List<Post> messages, BlufiProfile profile, BlufiStatusView status) {
+        boolean ssidSet = isFieldSet(status, Type.Data.SUBTYPE_STA_WIFI_SSID, profile.getStaSSID());
+        if (ssidSet && status.isStaConnectWifi()) {
+            return;
+        }
+        // The password can't be read back, it is posted whenever the station has to connect
+        List<Post> posts = new ArrayList<>();
+
+        if (!ssidSet) {
             int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_SSID);
-            byte[] ssidBytes = params.getStaSSIDBytes();
-            if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, ssidBytes)) {
-                return false;
-            }
-            sleep(10);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, ssidType, profile.getStaSSID()));
+        }
 
-            int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
-            if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, params.getStaPassword().getBytes())) {
-                return false;
-            }
-            sleep(10);
+        int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
+        posts.add(new Post(mEncrypted, mChecksum, mRequireAck, pwdType, profile.getStaPassword()));
 
-            int comfirmType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CONNECT_WIFI);
-            return post(false, false, mRequireAck, comfirmType, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postStaWifiInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+        int comfirmType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CONNECT_WIFI);
+        posts.add(new Post(false, false, mRequireAck, comfirmType, null));
+
+        for (Post post : posts) {
+            post.failureCode = BlufiCallback.CODE_CONF_ERR_POST_STA;
         }
+        messages.addAll(posts);
     }
 
-    private boolean postSoftAPInfo(BlufiConfigureParams params) {
-        try {
-            String ssid = params.getSoftAPSSID();
-            if (!TextUtils.isEmpty(ssid)) {
-                int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
-                if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, params.getSoftAPSSID().getBytes())) {
-                    return false;
-                }
-                sleep(10);
+    /**
+     * @param status the device status, the fields it reports with the same value are skipped
+     */
+    private void addSoftAPInfo(List<Post> messages, BlufiProfile profile, BlufiStatusView status) {
+        List<Post> posts = new ArrayList<>();
+
+        byte[] ssid = profile.getSoftAPSSID();
+        if (ssid.length > 0 && !isFieldSet(status, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID, ssid)) {
+            int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, ssidType, ssid));
+        }
+
+        byte[] password = profile.getSoftAPPassword();
+        if (password.length > 0 && !isFieldSet(status, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD, password)) {
+            int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, pwdType, password));
+        }
+
+        int channel = profile.getSoftAPChannel();
+        byte[] channelBytes = {(byte) channel};
+        if (channel > 0 && !isFieldSet(status, Type.Data.SUBTYPE_SOFTAP_CHANNEL, channelBytes)) {
+            int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_CHANNEL);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, channelType, channelBytes));
+        }
+
+        int maxConn = profile.getSoftAPMaxConnection();
+        byte[] maxConnBytes = {(byte) maxConn};
+        if (maxConn > 0 && !isFieldSet(status, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT, maxConnBytes)) {
+            int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, maxConnType, maxConnBytes));
+        }
+
+        byte[] securityBytes = {(byte) profile.getSoftAPSecurity()};
+        if (!isFieldSet(status, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE, securityBytes)) {
+            int securityType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE);
+            posts.add(new Post(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes));
+        }
+
+        for (Post post : posts) {
+            post.failureCode = BlufiCallback.CODE_CONF_ERR_POST_SOFTAP;
+        }
+        messages.addAll(posts);
+    }
+
+    private static boolean isFieldSet(BlufiStatusView status, int type, byte[] value) {
+        return status != null && status.fieldEquals(type, value);
+    }
+
+    private void __requestDeviceVersion(BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_POLL);
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
+        post(mEncrypted, mChecksum, false, type, null, false, deadline, request -> {
+            if (request != BlufiCallback.STATUS_SUCCESS) {
+                onVersionResponse(failureStatus(request, BlufiCallback.CODE_WRITE_DATA_FAILED), null);
+                return;
+            }
+            mVersionPending = true;
+            if (mVersionTimer == null) {
+                mVersionTimer = scheduleDeadline(deadline, () -> {
+                    mVersionTimer = null;
+                    onError(BlufiCallback.CODE_TIMEOUT_RESPONSE);
+                    onVersionResponse(BlufiCallback.CODE_TIMEOUT_RESPONSE, null);
+                });
             }
+        });
+    }
 
-            String password = params.getSoftAPPassword();
-            if (!TextUtils.isEmpty(password)) {
-                int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
-                if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes())) {
-                    return false;
+    private void onVersionResponse(final int status, final BlufiVersionResponse response) {
+        cancelTimer(mVersionTimer);
+        mVersionTimer = null;
+        mVersionPending = false;
+        // Fan out the single response to every coalesced request
+        final int waiters = mVersionFlight.complete();
+        mCallbackExecutor.execute(() -> {
+            for (int i = 0; i < waiters; i++) {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onDeviceVersionResponse(mClient, status, response);
                 }
-                sleep(10);
             }
+        });
+    }
 
-            int channel = params.getSoftAPChannel();
-            if (channel > 0) {
-                int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_CHANNEL);
-                if (!post(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{(byte) channel})) {
-                    return false;
-                }
-                sleep(10);
+    private void __requestDeviceStatus(BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_POLL);
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
+        post(mEncrypted, mChecksum, false, type, null, false, deadline, request -> {
+            if (request != BlufiCallback.STATUS_SUCCESS) {
+                onStatusResponse(failureStatus(request, BlufiCallback.CODE_WRITE_DATA_FAILED), null);
+                return;
+            }
+            mStatusPending = true;
+            if (mStatusTimer == null) {
+                mStatusTimer = scheduleDeadline(deadline, () -> {
+                    mStatusTimer = null;
+                    onError(BlufiCallback.CODE_TIMEOUT_RESPONSE);
+                    onStatusResponse(BlufiCallback.CODE_TIMEOUT_RESPONSE, null);
+                });
             }
+        });
+    }
 
-            int maxConn = params.getSoftAPMaxConnection();
-            if (maxConn > 0) {
-                int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
-                if (!post(mEncrypted, mChecksum, mRequireAck, maxConnType, new byte[]{(byte) maxConn})) {
-                    return false;
+    private void onStatusResponse(final int status, final BlufiStatusResponse response) {
+        cancelTimer(mStatusTimer);
+        mStatusTimer = null;
+        mStatusPending = false;
+        // Fan out the single response to every coalesced request
+        final int waiters = mStatusFlight.complete();
+        mCallbackExecutor.execute(() -> {
+            for (int i = 0; i < waiters; i++) {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onDeviceStatusResponse(mClient, status, response);
                 }
-                sleep(10);
             }
-
-            int securityType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE);
-            byte[] securityBytes = {(byte) params.getSoftAPSecurity()};
-            return post(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSoftAPInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
+        });
     }
 
-    private void __requestDeviceVersion() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceVersion interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
+    private void __requestDeviceWifiScan(BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_BULK);
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_LIST);
+        post(mEncrypted, mChecksum, mRequireAck, type, null, false, deadline, request -> {
+            if (request != BlufiCallback.STATUS_SUCCESS) {
+                onDeviceScanResult(failureStatus(request, BlufiCallback.CODE_WRITE_DATA_FAILED), BlufiScanList.EMPTY);
+            } else {
+                mScanPending = true;
+                cancelTimer(mScanTimer);
+                mScanTimer = scheduleDeadline(deadline, () -> {
+                    mScanTimer = null;
+                    onError(BlufiCallback.CODE_TIMEOUT_RESPONSE);
+                    onDeviceScanResult(BlufiCallback.CODE_TIMEOUT_RESPONSE, BlufiScanList.EMPTY);
+                });
+            }
+        });
+    }
 
-        if (!request) {
-            onVersionResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
-        }
+    private void onDeviceScanResult(final int status, final BlufiScanList results) {
+        cancelTimer(mScanTimer);
+        mScanTimer = null;
+        mScanPending = false;
+        mCallbackExecutor.execute(() -> {
+            if (mUserBlufiCallback != null) {
+                mUserBlufiCallback.onDeviceScanList(mClient, status, results);
+            }
+        });
     }
 
-    private void onVersionResponse(final int status, final BlufiVersionResponse response) {
-        mUIHandler.post(() -> {
+    private void onDeviceScanPartialResult(final BlufiScanList results) {
+        mCallbackExecutor.execute(() -> {
             if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceVersionResponse(mClient, status, response);
+                mUserBlufiCallback.onDeviceScanPartialResult(mClient, results);
             }
         });
     }
 
-    private void __requestDeviceStatus() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceStatus interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
+    private void __postCustomData(final byte[] data, BlufiDeadline deadline) {
+        mLinkController.onOperation(BlufiLinkController.PHASE_BULK);
+        postCustomDataPayload(data, deadline, status -> {
+            if (status == BlufiCallback.STATUS_SUCCESS) {
+                onPostCustomDataResult(BlufiCallback.STATUS_SUCCESS, data);
+            } else {
+                onPostCustomDataResult(failureStatus(status, BlufiCallback.CODE_WRITE_DATA_FAILED), data);
+            }
+        });
+    }
+
+    /**
+     * Post the custom data, compressed if the compression is negotiated. The first post after the
+     * compression is enabled negotiates it, the posts wait for the answer.
+     */
+    private void postCustomDataPayload(final byte[] data, BlufiDeadline deadline, PostCallback callback) {
+        if (mCompressionEnabled && mCompressionState == COMPRESSION_NONE) {
+            startCompression();
+        }
+        if (mCompressionState == COMPRESSION_REQUESTED || mCompressionState == COMPRESSION_VERSION_CHECK) {
+            mCompressionPending.add(new PendingCustomData(data, deadline, callback));
+            return;
         }
+        byte[] payload;
+        if (mCompressionState != COMPRESSION_ON) {
+            payload = data;
+        } else if (mCompressionEnabled) {
+            payload = BlufiCompression.encode(data);
+        } else {
+            // Disabled after the negotiation, the device still expects the codec byte
+            payload = BlufiCompression.wrap(data);
+        }
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
+        final Post post = new Post(mEncrypted, mChecksum, mRequireAck, type, payload);
+        post.deadline = deadline;
+        post(post, false, status -> {
+            boolean success = status == BlufiCallback.STATUS_SUCCESS;
+            mCompression.onPosted(data.length, payload.length, success ? mClock.nanoTime() - post.startTime : -1);
+            callback.onPosted(status);
+        });
+    }
 
-        if (!request) {
-            onStatusResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
+    /**
+     * The request is posted as custom data, so with a minimum version only a device reporting that
+     * version or a later one is asked. The version is read first unless it is known already.
+     */
+    private void startCompression() {
+        int minVersion = mCompressionMinVersion;
+        if (minVersion <= 0) {
+            requestCompression();
+        } else if (mDeviceVersion >= 0) {
+            if (mDeviceVersion >= minVersion) {
+                requestCompression();
+            } else {
+                mCompressionState = COMPRESSION_UNSUPPORTED;
+            }
+        } else {
+            checkCompressionVersion();
         }
     }
 
-    private void onStatusResponse(final int status, final BlufiStatusResponse response) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceStatusResponse(mClient, status, response);
+    private void checkCompressionVersion() {
+        mCompressionState = COMPRESSION_VERSION_CHECK;
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
+        post(mEncrypted, mChecksum, false, type, null, false, BlufiDeadline.NONE, status -> {
+            if (status != BlufiCallback.STATUS_SUCCESS) {
+                onCompressionVersion(-1);
+            } else if (mCompressionState == COMPRESSION_VERSION_CHECK) {
+                mCompressionTimer = mLoop.schedule(() -> {
+                    mCompressionTimer = null;
+                    Log.w(TAG, "checkCompressionVersion: no version, post the custom data raw");
+                    onCompressionVersion(-1);
+                }, COMPRESSION_NEGOTIATE_TIMEOUT);
             }
         });
     }
 
-    private void __requestDeviceWifiScan() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_LIST);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, mRequireAck, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceWifiScan interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
+    /**
+     * @param version the device version, -1 if it couldn't be read
+     */
+    private void onCompressionVersion(int version) {
+        if (mCompressionState != COMPRESSION_VERSION_CHECK) {
+            return;
         }
-
-        if (!request) {
-            onDeviceScanResult(BlufiCallback.CODE_WRITE_DATA_FAILED, Collections.emptyList());
+        cancelTimer(mCompressionTimer);
+        mCompressionTimer = null;
+        if (version >= mCompressionMinVersion) {
+            requestCompression();
+        } else {
+            onCompressionNegotiated(false);
         }
     }
 
-    private void onDeviceScanResult(final int status, final List<BlufiScanResult> results) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceScanResult(mClient, status, results);
+    private void requestCompression() {
+        mCompressionState = COMPRESSION_REQUESTED;
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
+        post(mEncrypted, mChecksum, mRequireAck, type, BlufiCompression.REQUEST, false, BlufiDeadline.NONE, status -> {
+            if (status != BlufiCallback.STATUS_SUCCESS) {
+                onCompressionNegotiated(false);
+            } else if (mCompressionState == COMPRESSION_REQUESTED) {
+                mCompressionTimer = mLoop.schedule(() -> {
+                    mCompressionTimer = null;
+                    Log.w(TAG, "requestCompression: no answer, post the custom data raw");
+                    onCompressionNegotiated(false);
+                }, COMPRESSION_NEGOTIATE_TIMEOUT);
             }
         });
     }
 
-    private void __postCustomData(byte[] data) {
-        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
-        try {
-            boolean suc = post(mEncrypted, mChecksum, mRequireAck, type, data);
-            int status = suc ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_WRITE_DATA_FAILED;
-            onPostCustomDataResult(status, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post postCustomData interrupted");
-            Thread.currentThread().interrupt();
+    private void onCompressionNegotiated(boolean supported) {
+        if (mCompressionState != COMPRESSION_REQUESTED && mCompressionState != COMPRESSION_VERSION_CHECK) {
+            return;
+        }
+        cancelTimer(mCompressionTimer);
+        mCompressionTimer = null;
+        mCompressionState = supported ? COMPRESSION_ON : COMPRESSION_UNSUPPORTED;
+        List<PendingCustomData> pending = new ArrayList<>(mCompressionPending);
+        mCompressionPending.clear();
+        for (PendingCustomData item : pending) {
+            postCustomDataPayload(item.data, item.deadline, item.callback);
+        }
+    }
+
+    /**
+     * The connection is lost, the compression is negotiated again on the next connection.
+     */
+    private void resetCompression() {
+        cancelTimer(mCompressionTimer);
+        mCompressionTimer = null;
+        mCompressionState = COMPRESSION_NONE;
+        mDeviceVersion = -1;
+        List<PendingCustomData> pending = new ArrayList<>(mCompressionPending);
+        mCompressionPending.clear();
+        for (PendingCustomData item : pending) {
+            item.callback.onPosted(BlufiCallback.CODE_WRITE_DATA_FAILED);
         }
     }
 
     private void onPostCustomDataResult(final int status, final byte[] data) {
-        mUIHandler.post(() -> {
+        mCallbackExecutor.execute(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onPostCustomDataResult(mClient, status, data);
             }
         });
     }
 
-    private void onReceiveCustomData(final byte[] data) {
-        mUIHandler.post(() -> {
+    private void onReceiveCustomData(byte[] payload) {
+        if (mCompressionState == COMPRESSION_REQUESTED) {
+            if (BlufiCompression.isResponse(payload)) {
+                onCompressionNegotiated(true);
+                return;
+            }
+            if (BlufiCompression.isRequest(payload)) {
+                // Echoed by a device which doesn't know the compression
+                onCompressionNegotiated(false);
+                return;
+            }
+        }
+        final byte[] data;
+        if (mCompressionState == COMPRESSION_ON) {
+            data = BlufiCompression.decode(payload);
+            if (data == null) {
+                Log.w(TAG, "onReceiveCustomData: malformed compressed data");
+                onError(BlufiCallback.CODE_INVALID_DATA);
+                return;
+            }
+        } else {
+            data = payload;
+        }
+        if (mChannelMux.onReceive(data)) {
+            return;
+        }
+        mCallbackExecutor.execute(() -> {
             if (mUserBlufiCallback != null) {
                 int status = BlufiCallback.STATUS_SUCCESS;
                 mUserBlufiCallback.onReceiveCustomData(mClient, status, data);
@@ -1167,37 +2041,308 @@ class BlufiClientImpl implements BlufiParameter {
 
     private void __requestCloseConnection() {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CLOSE_CONNECTION);
-        try {
-            post(false, false, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestCloseConnection interrupted");
-            Thread.currentThread().interrupt();
+        post(false, false, false, type, null, false, BlufiDeadline.NONE, status -> {
+        });
+    }
+
+    private static class ConfigureCheck {
+        final BlufiProfile profile;
+        final BlufiDeadline deadline;
+        ScheduledFuture<?> timer;
+
+        ConfigureCheck(BlufiProfile profile, BlufiDeadline deadline) {
+            this.profile = profile;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class PendingCustomData {
+        final byte[] data;
+        final BlufiDeadline deadline;
+        final PostCallback callback;
+
+        PendingCustomData(byte[] data, BlufiDeadline deadline, PostCallback callback) {
+            this.data = data;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+    }
+
+    private interface PostCallback {
+        /**
+         * @param status {@link BlufiCallback#STATUS_SUCCESS} or the failure code
+         */
+        void onPosted(int status);
+    }
+
+    /**
+     * A message waiting or being posted, it is only touched on the event loop.
+     */
+    private static class Post {
+        final boolean encrypt;
+        final boolean checksum;
+        final boolean requireAck;
+        final int type;
+        final byte[] data;
+
+        BlufiDeadline deadline = BlufiDeadline.NONE;
+        boolean paced;
+        PostCallback callback;
+
+        int pkgLength;
+        long startTime;
+        long writeTime;
+        int offset;
+        int sequence;
+        boolean frag;
+        byte[] frame;
+        int frameRetries;
+        int messageRetries;
+        boolean writing;
+        boolean waitingAck;
+        /**
+         * A frame could not be written within the retries, rather than a missing ack or deadline.
+         */
+        boolean writeFailed;
+        /**
+         * The frames given a sequence, and those of them the transport wrote.
+         */
+        int sequencedFrames;
+        int deliveredFrames;
+
+        /**
+         * The status reported when this message of a burst fails.
+         */
+        int failureCode = BlufiCallback.CODE_WRITE_DATA_FAILED;
+        /**
+         * The messages of a burst, null for a single message.
+         */
+        List<Post> burst;
+        BurstFrame[] burstFrames;
+        int burstIndex;
+        int burstPendingAcks;
+
+        Post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
+            this.encrypt = encrypt;
+            this.checksum = checksum;
+            this.requireAck = requireAck;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A frame of a burst, encoded with its sequence before the first frame of the burst is written.
+     */
+    private static class BurstFrame {
+        final byte[] frame;
+        final int sequence;
+        final boolean requireAck;
+        final int failureCode;
+        boolean acked;
+
+        BurstFrame(byte[] frame, int sequence, boolean requireAck, int failureCode) {
+            this.frame = frame;
+            this.sequence = sequence;
+            this.requireAck = requireAck;
+            this.failureCode = failureCode;
+        }
+    }
+    private void onMtuChanged(int mtu) {
+        mFrameTrace.recordMtu(mtu);
+        mBlufiMTU = Math.min(
+                mtu - 4, // Three bytes BLE header, one byte reserved
+                PACKAGE_LENGTH_MAX
+        );
+        BlufiPackageLengthTuner tuner = mPackageLengthTuner;
+        if (tuner != null) {
+            tuner.setMaxLength(mBlufiMTU);
         }
     }
 
-    private abstract static class ThrowableRunnable implements Runnable {
-        @Override
-        public void run() {
-            try {
-                execute();
-            } catch (Exception e) {
-                Log.w(TAG, "ThrowableRunnable: ", e);
-                onError(e);
+    private void onFrameWritten(final boolean success) {
+        mLoop.execute(() -> onPostFrameWritten(success));
+    }
+
+    private void onFrameReceived(final byte[] data) {
+        mFrameTrace.record(BlufiFrameTrace.DIRECTION_RECEIVED, data);
+        mLoop.execute(() -> onNotification(data));
+    }
+
+    private void onNotification(byte[] data) {
+        if (data != null) {
+            mLinkController.onTransfer(data.length);
+        }
+        if (mReceiveResync && data != null && data.length >= 4 && !resyncSequence(data)) {
+            return;
+        }
+        if (mNotifyData == null) {
+            mNotifyData = new BlufiNotifyData();
+        }
+        if (mPrintDebug) {
+            Log.i(TAG, "Gatt Notification: " + Arrays.toString(data));
+        }
+        // lt 0 is error, eq 0 is complete, gt 0 is continue
+        int parse = parseNotification(data, mNotifyData);
+        if (parse < 0) {
+            onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
+        } else if (parse == 0) {
+            parseProgressiveScanList(mNotifyData, true);
+            parseBlufiNotifyData(mNotifyData);
+            mNotifyData = null;
+        } else {
+            parseProgressiveScanList(mNotifyData, false);
+        }
+    }
+
+    /**
+     * Drop the duplicated frames and realign to the device sequence on a gap. The message broken by
+     * the gap is discarded, and the pending queries are requested again since their response may be lost.
+     *
+     * @return false to drop the frame
+     */
+    private boolean resyncSequence(byte[] response) {
+        int sequence = toInt(response[2]);
+        int last = mReadSequence.get();
+        if (last >= 0 && (((last & 0xff) - sequence) & 0xff) < 0x80) {
+            mDuplicateNotificationCount.incrementAndGet();
+            if (mPrintDebug) {
+                Log.d(TAG, "resyncSequence: drop duplicated sequence " + sequence);
+            }
+            return false;
+        }
+
+        boolean frag = new FrameCtrlData(toInt(response[1])).hasFrag();
+        if (sequence == ((last + 1) & 0xff)) {
+            if (!mResyncing) {
+                return true;
             }
+            // The rest of the broken message
+            mReadSequence.set(sequence);
+            mResyncing = frag;
+            return false;
         }
 
-        abstract void execute();
+        Log.w(TAG, "resyncSequence: expect " + ((last + 1) & 0xff) + ", realign to " + sequence);
+        mResyncCount.incrementAndGet();
+        // The ctrl frames are never fragmented, the frame is complete
+        boolean complete = getPackageType(toInt(response[0])) == Type.Ctrl.PACKAGE_VALUE && !frag;
+        boolean lost = mNotifyData != null || !complete;
+        mNotifyData = null;
+        if (lost) {
+            onError(BlufiCallback.CODE_NOTIFICATION_RESYNC);
+            requestPendingQueries();
+        }
+        if (complete) {
+            mReadSequence.set(sequence - 1);
+            mResyncing = false;
+            return true;
+        }
+        mReadSequence.set(sequence);
+        mResyncing = frag;
+        return false;
+    }
 
-        void onError(Exception e) {
+    private void requestPendingQueries() {
+        if (mVersionPending) {
+            postQueryAgain(Type.Ctrl.SUBTYPE_GET_VERSION, false);
+        }
+        if (mStatusPending) {
+            postQueryAgain(Type.Ctrl.SUBTYPE_GET_WIFI_STATUS, false);
+        }
+        if (mScanPending) {
+            postQueryAgain(Type.Ctrl.SUBTYPE_GET_WIFI_LIST, mRequireAck);
         }
     }
 
-    private void sleep(long timeout) {
-        try {
-            Thread.sleep(timeout);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "sleep: interrupted");
-            Thread.currentThread().interrupt();
+    private void postQueryAgain(final int subType, boolean requireAck) {
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, subType);
+        post(mEncrypted, mChecksum, requireAck, type, null, false, BlufiDeadline.NONE, status -> {
+            if (status != BlufiCallback.STATUS_SUCCESS) {
+                Log.w(TAG, "postQueryAgain: subtype " + subType + " failed " + status);
+            }
+        });
+    }
+
+    private class MuxHost implements BlufiChannelMux.Host {
+        @Override
+        public void postFragment(byte[] fragment, BlufiDeadline deadline) {
+            mLinkController.onOperation(BlufiLinkController.PHASE_BULK);
+            postCustomDataPayload(fragment, deadline, mChannelMux::onFragmentPosted);
+        }
+
+        @Override
+        public void onPosted(int channel, int status, byte[] data) {
+            mCallbackExecutor.execute(() -> {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onPostChannelDataResult(mClient, channel, status, data);
+                }
+            });
+        }
+
+        @Override
+        public void onReceived(int channel, byte[] data) {
+            mCallbackExecutor.execute(() -> {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onReceiveChannelData(mClient, channel, data);
+                }
+            });
+        }
+    }
+
+    private class LinkHost implements BlufiLinkController.Host {
+        @Override
+        public boolean isTransferring() {
+            return mPost != null || !mPostQueue.isEmpty() || mNegotiatingDH != null || mScanPending;
+        }
+
+        @Override
+        public void onLinkProfileChanged(int priority, int txPhy, int rxPhy, float interval) {
+            mCallbackExecutor.execute(() -> {
+                if (mUserBlufiCallback != null) {
+                    mUserBlufiCallback.onLinkProfileChanged(mClient, priority, txPhy, rxPhy, interval);
+                }
+            });
+        }
+    }
+
+    private class GattTransport implements BlufiTransport {
+        @Override
+        public void open(Listener listener) {
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            // Not discovered yet, or closed on another thread
+            BluetoothGatt gatt = mGatt;
+            BluetoothGattCharacteristic writeChar = mWriteChar;
+            if (gatt == null || writeChar == null) {
+                Log.w(TAG, "write: the write characteristic is not ready");
+                return false;
+            }
+            writeChar.setValue(frame);
+            if (!gatt.writeCharacteristic(writeChar)) {
+                // Busy with another GATT operation, the write will not be reported
+                onFrameWritten(false);
+            }
+            return true;
+        }
+
+        @Override
+        public int getMtu() {
+            return -1;
+        }
+    }
+
+    private class TransportListener implements BlufiTransport.Listener {
+        @Override
+        public void onWritten(boolean success) {
+            onFrameWritten(success);
+        }
+
+        @Override
+        public void onReceived(byte[] frame) {
+            onFrameReceived(frame);
         }
     }
 
@@ -1205,12 +2350,17 @@ class BlufiClientImpl implements BlufiParameter {
 
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             mConnectState = newState;
-            mBlufiMTU = -1;
+            if (newState != BluetoothProfile.STATE_CONNECTED) {
+                // Keep the MTU if the exchange completed before the connected state was reported
+                mBlufiMTU = -1;
+                mLoop.execute(BlufiClientImpl.this::failPosts);
+                mLoop.execute(mLinkController::onDisconnected);
+                mLoop.execute(BlufiClientImpl.this::stopRssiSampling);
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-                    }
+                    mLoop.execute(() -> mLinkController.onConnected(gatt));
+                    mLoop.execute(BlufiClientImpl.this::startRssiSampling);
 
                     gatt.discoverServices();
                 }
@@ -1262,7 +2412,7 @@ class BlufiClientImpl implements BlufiParameter {
 
                 if (failedStatus != null) {
                     final int statusCode = failedStatus;
-                    mUIHandler.post(() -> {
+                    mCallbackExecutor.execute(() -> {
                         mUserBlufiCallback.onGattPrepared(mClient, statusCode, gatt);
                     });
                 }
@@ -1271,21 +2421,7 @@ class BlufiClientImpl implements BlufiParameter {
 
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             if (characteristic.equals(mNotifyChar)) {
-                if (mNotifyData == null) {
-                    mNotifyData = new BlufiNotifyData();
-                }
-                byte[] data = characteristic.getValue();
-                if (mPrintDebug) {
-                    Log.i(TAG, "Gatt Notification: " + Arrays.toString(data));
-                }
-                // lt 0 is error, eq 0 is complete, gt 0 is continue
-                int parse = parseNotification(data, mNotifyData);
-                if (parse < 0) {
-                    onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
-                } else if (parse == 0) {
-                    parseBlufiNotifyData(mNotifyData);
-                    mNotifyData = null;
-                }
+                onFrameReceived(characteristic.getValue());
             }
 
             if (mUserGattCallback != null) {
@@ -1298,7 +2434,7 @@ class BlufiClientImpl implements BlufiParameter {
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.w(TAG, "onCharacteristicWrite: status=" + status);
                 }
-                mWriteResultQueue.add(status == BluetoothGatt.GATT_SUCCESS);
+                onFrameWritten(status == BluetoothGatt.GATT_SUCCESS);
             }
 
             if (mUserGattCallback != null) {
@@ -1324,7 +2460,7 @@ class BlufiClientImpl implements BlufiParameter {
                 BluetoothGattService service = descriptor.getCharacteristic().getService();
                 BluetoothGattCharacteristic notifyChar = descriptor.getCharacteristic();
                 BluetoothGattCharacteristic writeChar = mWriteChar;
-                mUIHandler.post(() -> {
+                mCallbackExecutor.execute(() -> {
                     if (mUserBlufiCallback != null) {
                         if (status == BluetoothGatt.GATT_SUCCESS) {
                             mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.STATUS_SUCCESS, gatt);
@@ -1348,6 +2484,7 @@ class BlufiClientImpl implements BlufiParameter {
         }
 
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mLoop.execute(() -> onRssiRead(rssi, status == BluetoothGatt.GATT_SUCCESS));
             if (mUserGattCallback != null) {
                 mUserGattCallback.onReadRemoteRssi(gatt, rssi, status);
             }
@@ -1356,10 +2493,7 @@ class BlufiClientImpl implements BlufiParameter {
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mBlufiMTU = Math.min(
-                        mtu - 4, // Three bytes BLE header, one byte reserved
-                        PACKAGE_LENGTH_MAX
-                );
+                BlufiClientImpl.this.onMtuChanged(mtu);
             }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onMtuChanged(gatt, mtu, status);
@@ -1368,6 +2502,11 @@ class BlufiClientImpl implements BlufiParameter {
 
         @TargetApi(Build.VERSION_CODES.O)
         public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLoop.execute(() -> mLinkController.onPhyChanged(txPhy, rxPhy));
+            } else {
+                gatt.readPhy();
+            }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
             }
@@ -1375,9 +2514,24 @@ class BlufiClientImpl implements BlufiParameter {
 
         @TargetApi(Build.VERSION_CODES.O)
         public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLoop.execute(() -> mLinkController.onPhyChanged(txPhy, rxPhy));
+            }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onPhyRead(gatt, txPhy, rxPhy, status);
             }
         }
+
+        /**
+         * Hidden in the SDK, but the stack invokes it since Android 8.0 when the connection
+         * parameters are updated.
+         *
+         * @param interval in units of 1.25 ms
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLoop.execute(() -> mLinkController.onConnectionUpdated(interval));
+            }
+        }
     }
 }
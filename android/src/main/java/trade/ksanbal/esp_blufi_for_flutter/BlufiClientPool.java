@@ -0,0 +1,263 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import trade.ksanbal.esp_blufi_for_flutter.constants.BlufiConstants;
+
+/**
+ * Keeps recently used {@link BlufiClient} sessions alive so that re-targeting a device can skip
+ * GATT connection, service discovery, MTU exchange and security negotiation.
+ * <p>
+ * Sessions are evicted in least-recently-used order when the pool is full, and closed once they
+ * have been idle for longer than the idle timeout.
+ */
+class BlufiClientPool {
+    private final LinkedHashMap<String, Session> mSessions;
+    private final Handler mHandler;
+    private final Runnable mSweepRunnable;
+
+    private int mMaxSize = BlufiConstants.CONNECTION_POOL_MAX_SIZE;
+    private long mIdleTimeout = BlufiConstants.CONNECTION_POOL_IDLE_TIMEOUT;
+
+    private volatile EvictionListener mEvictionListener;
+
+    BlufiClientPool(Handler handler) {
+        mSessions = new LinkedHashMap<>(16, 0.75f, true);
+        mHandler = handler;
+        mSweepRunnable = this::evictIdle;
+    }
+
+    void setEvictionListener(EvictionListener listener) {
+        mEvictionListener = listener;
+    }
+
+    /**
+     * Set the maximum number of live sessions, the least recently used ones will be closed.
+     *
+     * @param maxSize at least 1
+     */
+    void setMaxSize(int maxSize) {
+        List<Session> evicted;
+        synchronized (this) {
+            mMaxSize = Math.max(maxSize, 1);
+            evicted = trim(null);
+        }
+        closeEvicted(evicted);
+    }
+
+    /**
+     * Set how long a session may stay unused before it is closed.
+     *
+     * @param idleTimeout in milliseconds, 0 or negative disable the idle eviction
+     */
+    void setIdleTimeout(long idleTimeout) {
+        synchronized (this) {
+            mIdleTimeout = idleTimeout;
+        }
+        scheduleSweep();
+    }
+
+    synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    synchronized long getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    synchronized int size() {
+        return mSessions.size();
+    }
+
+    /**
+     * Get the pooled session of the device and mark it as most recently used.
+     *
+     * @param address device address
+     * @return the session, or null if there is no live session for the device
+     */
+    synchronized Session acquire(String address) {
+        Session session = mSessions.get(address);
+        if (session != null) {
+            session.mLastUsedTime = SystemClock.elapsedRealtime();
+        }
+        return session;
+    }
+
+    /**
+     * Get the sessions which can post Blufi packets now, without changing their recency.
+     */
+    synchronized List<Session> getReadySessions() {
+        List<Session> sessions = new ArrayList<>(mSessions.size());
+        for (Session session : mSessions.values()) {
+            if (session.isReady()) {
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Mark the session as used now, delay its idle eviction.
+     */
+    void touch(Session session) {
+        synchronized (this) {
+            if (mSessions.get(session.device.getAddress()) != session) {
+                return;
+            }
+            session.mLastUsedTime = SystemClock.elapsedRealtime();
+        }
+        scheduleSweep();
+    }
+
+    /**
+     * Add a new session. An old session of the same device will be closed.
+     */
+    void put(Session session) {
+        List<Session> evicted;
+        synchronized (this) {
+            session.mLastUsedTime = SystemClock.elapsedRealtime();
+            Session old = mSessions.put(session.device.getAddress(), session);
+            evicted = trim(session);
+            if (old != null && old != session) {
+                evicted.add(old);
+            }
+        }
+        closeEvicted(evicted);
+        scheduleSweep();
+    }
+
+    /**
+     * Remove the session from pool without notifying the eviction listener.
+     *
+     * @return true if the session was pooled
+     */
+    synchronized boolean remove(Session session) {
+        String address = session.device.getAddress();
+        if (mSessions.get(address) == session) {
+            mSessions.remove(address);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close all pooled sessions.
+     */
+    void closeAll() {
+        List<Session> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(mSessions.values());
+            mSessions.clear();
+        }
+        mHandler.removeCallbacks(mSweepRunnable);
+        for (Session session : sessions) {
+            session.client.close();
+        }
+    }
+
+    private List<Session> trim(Session keep) {
+        List<Session> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Session>> iterator = mSessions.entrySet().iterator();
+        while (mSessions.size() > mMaxSize && iterator.hasNext()) {
+            Session session = iterator.next().getValue();
+            if (session == keep) {
+                continue;
+            }
+            iterator.remove();
+            evicted.add(session);
+        }
+        return evicted;
+    }
+
+    private void evictIdle() {
+        List<Session> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (mIdleTimeout > 0) {
+                long now = SystemClock.elapsedRealtime();
+                Iterator<Map.Entry<String, Session>> iterator = mSessions.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Session session = iterator.next().getValue();
+                    if (now - session.mLastUsedTime >= mIdleTimeout) {
+                        iterator.remove();
+                        evicted.add(session);
+                    }
+                }
+            }
+        }
+        closeEvicted(evicted);
+        scheduleSweep();
+    }
+
+    private void scheduleSweep() {
+        long delay = -1;
+        synchronized (this) {
+            if (mIdleTimeout > 0 && !mSessions.isEmpty()) {
+                // Access order, the first one is the least recently used
+                Session eldest = mSessions.values().iterator().next();
+                long now = SystemClock.elapsedRealtime();
+                delay = Math.max(eldest.mLastUsedTime + mIdleTimeout - now, 0L);
+            }
+        }
+        mHandler.removeCallbacks(mSweepRunnable);
+        if (delay >= 0) {
+            mHandler.postDelayed(mSweepRunnable, delay);
+        }
+    }
+
+    private void closeEvicted(List<Session> evicted) {
+        EvictionListener listener = mEvictionListener;
+        for (Session session : evicted) {
+            session.client.close();
+            if (listener != null) {
+                listener.onSessionEvicted(session);
+            }
+        }
+    }
+
+    /**
+     * A BlufiClient with the connection state the plugin has reached on it.
+     */
+    static class Session {
+        final BluetoothDevice device;
+        final BlufiClient client;
+
+        volatile boolean connected;
+        volatile boolean prepared;
+        volatile boolean securityNegotiated;
+        /**
+         * The user asked to close the connection, its loss is not recovered.
+         */
+        volatile boolean closeRequested;
+        /**
+         * The user requested the status, the result is reported as a response to it rather than as a
+         * scheduled poll.
+         */
+        volatile boolean statusRequested;
+
+        private long mLastUsedTime;
+
+        Session(BluetoothDevice device, BlufiClient client) {
+            this.device = device;
+            this.client = client;
+        }
+
+        /**
+         * @return true if the session can post Blufi packets without any more setup
+         */
+        boolean isReady() {
+            return connected && prepared;
+        }
+    }
+
+    interface EvictionListener {
+        void onSessionEvicted(Session session);
+    }
+}
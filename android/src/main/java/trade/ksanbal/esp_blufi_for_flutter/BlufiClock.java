@@ -0,0 +1,15 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+/**
+ * Time source of the client, it can be replaced to replay sessions with a controlled time.
+ */
+interface BlufiClock {
+    BlufiClock SYSTEM = new BlufiClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
@@ -0,0 +1,169 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the custom data, negotiated per connection.
+ * <p>
+ * The client posts {@link #REQUEST} as custom data, a device which supports the compression answers
+ * {@link #RESPONSE} with the codecs it accepts. Once negotiated, every custom data payload in both
+ * directions starts with one byte, {@link #CODEC_NONE} or {@link #CODEC_DEFLATE}, followed by the raw
+ * or the DEFLATE (no zlib wrapper) data. A payload is posted raw when the compression would not make
+ * it shorter.
+ */
+class BlufiCompression {
+    static final int CODEC_NONE = 0;
+    static final int CODEC_DEFLATE = 1;
+
+    private static final int VERSION = 1;
+    private static final int CODEC_MASK_DEFLATE = 1 << CODEC_DEFLATE;
+
+    static final byte[] REQUEST = {'B', 'F', 'Z', '?', VERSION, CODEC_MASK_DEFLATE};
+    static final byte[] RESPONSE = {'B', 'F', 'Z', '!', VERSION, CODEC_MASK_DEFLATE};
+    private static final int MAGIC_LENGTH = 4;
+
+    /**
+     * Shorter payloads don't shrink, the DEFLATE block overhead is larger than what it saves.
+     */
+    private static final int COMPRESS_LENGTH_MIN = 32;
+    /**
+     * The limit of a decoded payload, a corrupt or hostile payload can't exhaust the memory.
+     */
+    private static final int DECODED_LENGTH_MAX = 1 << 20;
+
+    private long mOriginalBytes;
+    private long mEncodedBytes;
+    private long mGoodputBytes;
+    private long mGoodputNanos;
+
+    /**
+     * @return true if the data is the request of the negotiation
+     */
+    static boolean isRequest(byte[] data) {
+        return data.length == REQUEST.length && Arrays.equals(data, REQUEST);
+    }
+
+    /**
+     * @return true if the data answers the negotiation with DEFLATE accepted
+     */
+    static boolean isResponse(byte[] data) {
+        if (data.length < RESPONSE.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC_LENGTH; i++) {
+            if (data[i] != RESPONSE[i]) {
+                return false;
+            }
+        }
+        return data[MAGIC_LENGTH] == VERSION && (data[MAGIC_LENGTH + 1] & CODEC_MASK_DEFLATE) != 0;
+    }
+
+    /**
+     * @return the codec byte followed by the compressed data, or by the data if it doesn't shrink
+     */
+    static byte[] encode(byte[] data) {
+        if (data.length >= COMPRESS_LENGTH_MIN) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                // Keep the output only if it is shorter than the data
+                byte[] buffer = new byte[data.length];
+                int length = 0;
+                while (!deflater.finished() && length < buffer.length) {
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                if (deflater.finished() && length < data.length) {
+                    byte[] encoded = new byte[length + 1];
+                    encoded[0] = CODEC_DEFLATE;
+                    System.arraycopy(buffer, 0, encoded, 1, length);
+                    return encoded;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return wrap(data);
+    }
+
+    /**
+     * @return the {@link #CODEC_NONE} byte followed by the data
+     */
+    static byte[] wrap(byte[] data) {
+        byte[] encoded = new byte[data.length + 1];
+        encoded[0] = CODEC_NONE;
+        System.arraycopy(data, 0, encoded, 1, data.length);
+        return encoded;
+    }
+
+    /**
+     * @return the data, or null if the payload is malformed
+     */
+    static byte[] decode(byte[] payload) {
+        if (payload.length == 0) {
+            return null;
+        }
+        switch (payload[0]) {
+            case CODEC_NONE:
+                return Arrays.copyOfRange(payload, 1, payload.length);
+            case CODEC_DEFLATE:
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(payload, 1, payload.length - 1);
+                    ByteArrayOutputStream os = new ByteArrayOutputStream(payload.length * 4);
+                    byte[] buffer = new byte[512];
+                    while (!inflater.finished()) {
+                        int length = inflater.inflate(buffer);
+                        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            return null;
+                        }
+                        os.write(buffer, 0, length);
+                        if (os.size() > DECODED_LENGTH_MAX) {
+                            return null;
+                        }
+                    }
+                    return os.toByteArray();
+                } catch (DataFormatException e) {
+                    return null;
+                } finally {
+                    inflater.end();
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Count a payload posted to the device.
+     *
+     * @param originalLength the length of the data
+     * @param encodedLength the length posted, including the codec byte
+     * @param nanos the time the post took from its first frame, negative if it failed
+     */
+    synchronized void onPosted(int originalLength, int encodedLength, long nanos) {
+        mOriginalBytes += originalLength;
+        mEncodedBytes += encodedLength;
+        if (nanos >= 0) {
+            mGoodputBytes += originalLength;
+            mGoodputNanos += nanos;
+        }
+    }
+
+    /**
+     * @return the posted length over the original length, -1 if nothing was posted
+     */
+    synchronized float getRatio() {
+        return mOriginalBytes <= 0 ? -1f : (float) mEncodedBytes / mOriginalBytes;
+    }
+
+    /**
+     * @return the original bytes posted per second, -1 if nothing was posted
+     */
+    synchronized long getGoodput() {
+        return mGoodputNanos <= 0 ? -1 : mGoodputBytes * 1000000000L / mGoodputNanos;
+    }
+}
@@ -0,0 +1,48 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+/**
+ * The time by which an operation must complete, every stage of the operation waits at most the remaining time.
+ */
+final class BlufiDeadline {
+    /**
+     * No deadline, the stages wait as long as it takes.
+     */
+    static final BlufiDeadline NONE = new BlufiDeadline(null, 0L);
+
+    private final BlufiClock mClock;
+    private final long mDeadline;
+
+    private BlufiDeadline(BlufiClock clock, long deadline) {
+        mClock = clock;
+        mDeadline = deadline;
+    }
+
+    /**
+     * @param timeout in milliseconds, no deadline if less than or equal to 0
+     */
+    static BlufiDeadline after(long timeout, BlufiClock clock) {
+        if (timeout <= 0) {
+            return NONE;
+        }
+        return new BlufiDeadline(clock, clock.nanoTime() + timeout * 1000000L);
+    }
+
+    boolean isNone() {
+        return mClock == null;
+    }
+
+    boolean isExpired() {
+        return mClock != null && mClock.nanoTime() - mDeadline >= 0;
+    }
+
+    /**
+     * @return the remaining time in milliseconds, {@link Long#MAX_VALUE} if no deadline
+     */
+    long remaining() {
+        if (mClock == null) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = mDeadline - mClock.nanoTime();
+        return remaining <= 0 ? 0 : (remaining + 999999L) / 1000000L;
+    }
+}
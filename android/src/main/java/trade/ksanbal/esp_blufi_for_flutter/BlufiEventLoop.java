@@ -0,0 +1,100 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single thread shared by the clients to run their protocol state machines.
+ * <p>
+ * All the state of a client is only touched on the loop thread, the GATT callbacks and the API calls
+ * post events to it. The tasks must not block, slow computation such as the DH key generation goes
+ * to {@link #compute(Runnable)} and posts the result back.
+ */
+final class BlufiEventLoop {
+    private static final String TAG = "BlufiEventLoop";
+
+    private static BlufiEventLoop sDefault;
+    private static ExecutorService sComputation;
+
+    private final ScheduledExecutorService mExecutor;
+
+    BlufiEventLoop(String name) {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name));
+    }
+
+    /**
+     * @return the loop shared by all the clients
+     */
+    static synchronized BlufiEventLoop getDefault() {
+        if (sDefault == null) {
+            sDefault = new BlufiEventLoop(TAG);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Run the task on a shared background pool, it may block or take long.
+     */
+    static void compute(Runnable task) {
+        ExecutorService computation;
+        synchronized (BlufiEventLoop.class) {
+            if (sComputation == null) {
+                sComputation = Executors.newCachedThreadPool(new NamedThreadFactory("BlufiComputation"));
+            }
+            computation = sComputation;
+        }
+        computation.execute(new SafeRunnable(task));
+    }
+
+    void execute(Runnable task) {
+        mExecutor.execute(new SafeRunnable(task));
+    }
+
+    /**
+     * @param delay in milliseconds
+     * @return the future to cancel the task
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return mExecutor.schedule(new SafeRunnable(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static class SafeRunnable implements Runnable {
+        private final Runnable mTask;
+
+        SafeRunnable(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } catch (Exception e) {
+                Log.w(TAG, "Task failed: ", e);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A fixed-size ring buffer of the Blufi frames posted to and received from the device.
+ * <p>
+ * Recording copies the frame into preallocated slots, so it can be left on in production.
+ * The trace is dumped in the btsnoop layout:
+ * <ul>
+ * <li>File header: "btsnoop\0", version 1, datalink type {@link #DATALINK_BLUFI}</li>
+ * <li>Record header: original length, included length, flags, cumulative drops, timestamp</li>
+ * </ul>
+ * Bit 0 of the flags is the direction as btsnoop defines, 0 is sent and 1 is received. Bit 1 marks
+ * an MTU record, whose data is the two bytes MTU instead of a frame. Bits 8 ~ 15 are the frame
+ * sequence. Unlike btsnoop, the timestamp is in nanoseconds since the trace started.
+ */
+public final class BlufiFrameTrace {
+    public static final int DIRECTION_SENT = 0;
+    public static final int DIRECTION_RECEIVED = 1;
+
+    public static final int DATALINK_BLUFI = 0xB1F1;
+
+    private static final int FLAG_MTU = 0b10;
+
+    static final int DEFAULT_CAPACITY = 512;
+
+    private static final byte[] MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+    private static final int VERSION = 1;
+    // Header, max data length and two bytes checksum
+    private static final int SLOT_LENGTH = 4 + 255 + 2;
+
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final int[] mLengths;
+    private final byte[] mFlags;
+    private final byte[] mData;
+
+    private final BlufiClock mClock;
+    private final long mStartTime;
+    private long mCount;
+
+    BlufiFrameTrace(int capacity, BlufiClock clock) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mLengths = new int[capacity];
+        mFlags = new byte[capacity];
+        mData = new byte[capacity * SLOT_LENGTH];
+        mClock = clock;
+        mStartTime = clock.nanoTime();
+    }
+
+    /**
+     * Record a frame, the oldest frame will be overwritten if the buffer is full.
+     *
+     * @param direction {@link #DIRECTION_SENT} or {@link #DIRECTION_RECEIVED}
+     * @param frame the raw frame bytes
+     */
+    synchronized void record(int direction, byte[] frame) {
+        int slot = nextSlot(direction, frame.length);
+        System.arraycopy(frame, 0, mData, slot * SLOT_LENGTH, Math.min(frame.length, SLOT_LENGTH));
+    }
+
+    /**
+     * Record the MTU negotiated with the device.
+     */
+    synchronized void recordMtu(int mtu) {
+        int slot = nextSlot(FLAG_MTU, 2);
+        mData[slot * SLOT_LENGTH] = (byte) (mtu >> 8);
+        mData[slot * SLOT_LENGTH + 1] = (byte) mtu;
+    }
+
+    private int nextSlot(int flags, int length) {
+        int slot = (int) (mCount % mCapacity);
+        mTimes[slot] = mClock.nanoTime() - mStartTime;
+        mLengths[slot] = length;
+        mFlags[slot] = (byte) flags;
+        mCount++;
+        return slot;
+    }
+
+    /**
+     * @return the count of frames recorded since the trace started, including the overwritten ones
+     */
+    synchronized long getRecordedCount() {
+        return mCount;
+    }
+
+    /**
+     * Write the recorded frames in btsnoop layout.
+     *
+     * @param out the output stream, it will not be closed
+     * @throws IOException if write failed
+     */
+    void dump(OutputStream out) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream dataOS = new DataOutputStream(buffer);
+        dataOS.write(MAGIC);
+        dataOS.writeInt(VERSION);
+        dataOS.writeInt(DATALINK_BLUFI);
+        synchronized (this) {
+            long first = Math.max(mCount - mCapacity, 0);
+            for (long index = first; index < mCount; index++) {
+                int slot = (int) (index % mCapacity);
+                int length = mLengths[slot];
+                int included = Math.min(length, SLOT_LENGTH);
+                int offset = slot * SLOT_LENGTH;
+                int flags = mFlags[slot];
+                int sequence = (flags & FLAG_MTU) == 0 && included > 2 ? mData[offset + 2] & 0xff : 0;
+                dataOS.writeInt(length);
+                dataOS.writeInt(included);
+                dataOS.writeInt((sequence << 8) | flags);
+                dataOS.writeInt((int) first);
+                dataOS.writeLong(mTimes[slot]);
+                dataOS.write(mData, offset, included);
+            }
+        }
+        dataOS.flush();
+        buffer.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read the frames of a dumped trace.
+     *
+     * @param in the input stream of the dumped trace
+     * @return the frames in recorded order
+     * @throws IOException if read failed or the data is not a Blufi trace
+     */
+    public static List<Frame> read(InputStream in) throws IOException {
+        DataInputStream dataIS = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataIS.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a btsnoop file");
+        }
+        int version = dataIS.readInt();
+        int datalink = dataIS.readInt();
+        if (version != VERSION || datalink != DATALINK_BLUFI) {
+            throw new IOException(String.format(Locale.ENGLISH,
+                    "Unsupported trace, version = %d, datalink = %d", version, datalink));
+        }
+
+        List<Frame> frames = new ArrayList<>();
+        while (true) {
+            int length;
+            try {
+                length = dataIS.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            int included = dataIS.readInt();
+            int flags = dataIS.readInt();
+            int drops = dataIS.readInt();
+            long time = dataIS.readLong();
+            byte[] data = new byte[included];
+            dataIS.readFully(data);
+            frames.add(new Frame(flags & 1, (flags & FLAG_MTU) != 0, (flags >> 8) & 0xff, time, length, drops, data));
+        }
+        return frames;
+    }
+
+    public static final class Frame {
+        public final int direction;
+        public final boolean mtu;
+        public final int sequence;
+        public final long timestamp;
+        public final int originalLength;
+        public final int drops;
+        public final byte[] data;
+
+        Frame(int direction, boolean mtu, int sequence, long timestamp, int originalLength, int drops, byte[] data) {
+            this.direction = direction;
+            this.mtu = mtu;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.originalLength = originalLength;
+            this.drops = drops;
+            this.data = data;
+        }
+
+        /**
+         * @return the MTU if it is an MTU record, otherwise -1
+         */
+        public int getMtu() {
+            return mtu && data.length >= 2 ? (data[0] & 0xff) << 8 | (data[1] & 0xff) : -1;
+        }
+
+        public int getType() {
+            return data.length > 0 ? data[0] & 0xff : -1;
+        }
+
+        public int getPackageType() {
+            return getType() & 0b11;
+        }
+
+        public int getSubType() {
+            return (getType() & 0b11111100) >> 2;
+        }
+
+        public int getFrameCtrl() {
+            return data.length > 1 ? data[1] & 0xff : -1;
+        }
+
+        @Override
+        public String toString() {
+            if (mtu) {
+                return "mtu = " + getMtu();
+            }
+            return String.format(Locale.ENGLISH, "seq = %3d, type = %d, subtype = 0x%02x, frame ctrl = 0x%02x, length = %d",
+                    sequence, getPackageType(), getSubType(), getFrameCtrl(), originalLength);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Choose the link profile, the connection priority and the PHY, for the phase of the transfer.
+ * <p>
+ * The LE 2M PHY is preferred where the phone supports it. The high priority, with the shortest
+ * connection interval, is kept while the security is negotiated or data is transferred in bulk.
+ * Status and version polls don't raise the priority, an idle link drops to balanced and later to
+ * low power. The bytes and the active time are counted per priority, so the throughput of the
+ * profiles can be compared. All the methods but the getters are called on the event loop thread.
+ */
+class BlufiLinkController {
+    static final int PHASE_BULK = 0;
+    static final int PHASE_POLL = 1;
+
+    private static final long IDLE_DELAY_DEFAULT = 2000L;
+    private static final long LOW_POWER_DELAY_DEFAULT = 15000L;
+    /**
+     * A longer gap between two transfers is idle time, it is not counted in the throughput.
+     */
+    private static final long ACTIVE_GAP_NANOS = 200000000L;
+
+    private static final int PRIORITY_COUNT = 3;
+    /**
+     * The longest connection interval of each priority in milliseconds, indexed by priority.
+     */
+    private static final float[] NOMINAL_INTERVALS = {50f, 15f, 125f};
+
+    private final BlufiEventLoop mLoop;
+    private final BlufiClock mClock;
+    private final Host mHost;
+
+    private BluetoothGatt mGatt;
+    private ScheduledFuture<?> mIdleTimer;
+    private long mIdleDelay = IDLE_DELAY_DEFAULT;
+    private long mLowPowerDelay = LOW_POWER_DELAY_DEFAULT;
+    private long mLastTransferTime;
+
+    private volatile int mPriority = -1;
+    private volatile int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int mRxPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile float mInterval = -1f;
+
+    private final long[] mBytes = new long[PRIORITY_COUNT];
+    private final long[] mActiveNanos = new long[PRIORITY_COUNT];
+
+    BlufiLinkController(BlufiEventLoop loop, BlufiClock clock, Host host) {
+        mLoop = loop;
+        mClock = clock;
+        mHost = host;
+    }
+
+    /**
+     * @param idleDelay the time without transfer before dropping to the balanced priority, in milliseconds
+     * @param lowPowerDelay the time without transfer before dropping to the low power priority, in milliseconds
+     */
+    void setIdleDelays(long idleDelay, long lowPowerDelay) {
+        mIdleDelay = idleDelay;
+        mLowPowerDelay = Math.max(lowPowerDelay, idleDelay);
+    }
+
+    /**
+     * The link is connected, the gatt is null if the transport is not GATT.
+     */
+    void onConnected(BluetoothGatt gatt) {
+        mGatt = gatt;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+        mInterval = -1f;
+        if (gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter != null && adapter.isLe2MPhySupported()) {
+                gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                        BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            }
+        }
+        // The service discovery and the negotiation follow, start fast
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        scheduleIdleCheck(mIdleDelay);
+    }
+
+    void onDisconnected() {
+        mGatt = null;
+        cancelIdleCheck();
+        mPriority = -1;
+        mInterval = -1f;
+        mLastTransferTime = 0;
+    }
+
+    /**
+     * An operation starts.
+     *
+     * @param phase {@link #PHASE_BULK} or {@link #PHASE_POLL}
+     */
+    void onOperation(int phase) {
+        if (mPriority < 0 || phase != PHASE_BULK) {
+            return;
+        }
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        scheduleIdleCheck(mIdleDelay);
+    }
+
+    /**
+     * A frame was written or received.
+     */
+    void onTransfer(int bytes) {
+        int priority = mPriority;
+        if (priority < 0) {
+            return;
+        }
+        long now = mClock.nanoTime();
+        synchronized (mBytes) {
+            long gap = now - mLastTransferTime;
+            if (mLastTransferTime != 0 && gap < ACTIVE_GAP_NANOS) {
+                mActiveNanos[priority] += gap;
+            }
+            mBytes[priority] += bytes;
+        }
+        mLastTransferTime = now;
+    }
+
+    void onPhyChanged(int txPhy, int rxPhy) {
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        notifyChanged();
+    }
+
+    /**
+     * @param interval the connection interval reported by the stack, in units of 1.25 ms
+     */
+    void onConnectionUpdated(int interval) {
+        mInterval = interval * 1.25f;
+        notifyChanged();
+    }
+
+    /**
+     * @return the requested {@code BluetoothGatt.CONNECTION_PRIORITY_*}, -1 if not connected
+     */
+    int getPriority() {
+        return mPriority;
+    }
+
+    int getTxPhy() {
+        return mTxPhy;
+    }
+
+    int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * @return the connection interval in milliseconds. It is the one reported by the stack if any,
+     * otherwise the longest interval of the requested priority, -1 if not connected.
+     */
+    float getInterval() {
+        float interval = mInterval;
+        if (interval > 0) {
+            return interval;
+        }
+        int priority = mPriority;
+        return priority < 0 ? -1f : NOMINAL_INTERVALS[priority];
+    }
+
+    /**
+     * @return the bytes per second transferred while the priority was requested, -1 if not measured
+     */
+    long getThroughput(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            return -1;
+        }
+        synchronized (mBytes) {
+            long nanos = mActiveNanos[priority];
+            return nanos <= 0 ? -1 : mBytes[priority] * 1000000000L / nanos;
+        }
+    }
+
+    private void setPriority(int priority) {
+        if (mPriority == priority) {
+            return;
+        }
+        mPriority = priority;
+        // The interval reported for the previous priority no longer applies
+        mInterval = -1f;
+        if (mGatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mGatt.requestConnectionPriority(priority);
+        }
+        notifyChanged();
+    }
+
+    private void notifyChanged() {
+        if (mPriority >= 0) {
+            mHost.onLinkProfileChanged(mPriority, mTxPhy, mRxPhy, getInterval());
+        }
+    }
+
+    private void scheduleIdleCheck(long delay) {
+        cancelIdleCheck();
+        mIdleTimer = mLoop.schedule(this::onIdleCheck, delay);
+    }
+
+    private void cancelIdleCheck() {
+        if (mIdleTimer != null) {
+            mIdleTimer.cancel(false);
+            mIdleTimer = null;
+        }
+    }
+
+    private void onIdleCheck() {
+        mIdleTimer = null;
+        if (mPriority < 0) {
+            return;
+        }
+        if (mHost.isTransferring()) {
+            scheduleIdleCheck(mIdleDelay);
+        } else if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            scheduleIdleCheck(mLowPowerDelay - mIdleDelay);
+        } else if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        }
+    }
+
+    interface Host {
+        /**
+         * @return true if a message is posted, the security is negotiated or a WiFi scan is awaited
+         */
+        boolean isTransferring();
+
+        void onLinkProfileChanged(int priority, int txPhy, int rxPhy, float interval);
+    }
+}
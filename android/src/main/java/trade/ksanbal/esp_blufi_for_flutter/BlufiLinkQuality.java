@@ -0,0 +1,135 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+/**
+ * Grade the link from the RSSI, the write latency and the write failure rate of a session, and
+ * size the frames for the grade.
+ * <p>
+ * The signals are smoothed with exponential moving averages. The write latency is measured in
+ * connection intervals, since a slow link profile lengthens every write without the link being
+ * weak. A weak link gets smaller frames, which are less likely to be lost and cheaper to
+ * retransmit, and more spacing between them. A strong link gets the full package length with no
+ * spacing. All the methods but the getters are called on the event loop thread.
+ */
+class BlufiLinkQuality {
+    static final int GRADE_GOOD = 0;
+    static final int GRADE_FAIR = 1;
+    static final int GRADE_POOR = 2;
+
+    private static final int RSSI_FAIR = -70;
+    private static final int RSSI_POOR = -85;
+    private static final float FAILURE_RATE_FAIR = 0.1f;
+    private static final float FAILURE_RATE_POOR = 0.25f;
+    private static final float LATENCY_INTERVALS_FAIR = 2f;
+    private static final float LATENCY_INTERVALS_POOR = 4f;
+
+    private static final float RSSI_WEIGHT = 1f / 4;
+    private static final float LATENCY_WEIGHT = 1f / 8;
+    private static final float FAILURE_WEIGHT = 1f / 16;
+
+    private static final int PACKAGE_LENGTH_FAIR = 128;
+    private static final int PACKAGE_LENGTH_POOR = 64;
+    private static final int PACING_POOR_FACTOR = 3;
+
+    private float mRssi = Float.NaN;
+    private float mLatencyIntervals = Float.NaN;
+    private float mFailureRate;
+
+    private volatile int mGrade = GRADE_GOOD;
+
+    /**
+     * @return true if the grade changed
+     */
+    boolean onRssi(int rssi) {
+        mRssi = Float.isNaN(mRssi) ? rssi : mRssi + (rssi - mRssi) * RSSI_WEIGHT;
+        return updateGrade();
+    }
+
+    /**
+     * @param latencyNanos the time from the write to its result
+     * @param interval the connection interval in milliseconds, less than or equal to 0 if unknown
+     * @return true if the grade changed
+     */
+    boolean onWrite(long latencyNanos, boolean success, float interval) {
+        mFailureRate += ((success ? 0f : 1f) - mFailureRate) * FAILURE_WEIGHT;
+        if (success && interval > 0) {
+            float intervals = latencyNanos / 1000000f / interval;
+            mLatencyIntervals = Float.isNaN(mLatencyIntervals) ? intervals
+                    : mLatencyIntervals + (intervals - mLatencyIntervals) * LATENCY_WEIGHT;
+        }
+        return updateGrade();
+    }
+
+    /**
+     * The session reconnected, the old samples don't apply.
+     */
+    void reset() {
+        mRssi = Float.NaN;
+        mLatencyIntervals = Float.NaN;
+        mFailureRate = 0f;
+        mGrade = GRADE_GOOD;
+    }
+
+    /**
+     * @return {@link #GRADE_GOOD}, {@link #GRADE_FAIR} or {@link #GRADE_POOR}
+     */
+    int getGrade() {
+        return mGrade;
+    }
+
+    /**
+     * @return the smoothed RSSI in dBm, or {@link Integer#MIN_VALUE} if not sampled
+     */
+    int getRssi() {
+        return Float.isNaN(mRssi) ? Integer.MIN_VALUE : Math.round(mRssi);
+    }
+
+    /**
+     * @param length the package length the link allows
+     * @return the package length for the grade
+     */
+    int limitPackageLength(int length) {
+        switch (mGrade) {
+            case GRADE_FAIR:
+                return Math.min(length, PACKAGE_LENGTH_FAIR);
+            case GRADE_POOR:
+                return Math.min(length, PACKAGE_LENGTH_POOR);
+            default:
+                return length;
+        }
+    }
+
+    /**
+     * @param pacing the configured interval between two frames in milliseconds
+     * @return the interval between two frames for the grade
+     */
+    long getFramePacing(long pacing) {
+        switch (mGrade) {
+            case GRADE_FAIR:
+                return pacing;
+            case GRADE_POOR:
+                return pacing * PACING_POOR_FACTOR;
+            default:
+                return 0L;
+        }
+    }
+
+    private boolean updateGrade() {
+        int grade;
+        if (mFailureRate >= FAILURE_RATE_POOR
+                || mRssi <= RSSI_POOR
+                || mLatencyIntervals >= LATENCY_INTERVALS_POOR) {
+            grade = GRADE_POOR;
+        } else if (mFailureRate >= FAILURE_RATE_FAIR
+                || mRssi <= RSSI_FAIR
+                || mLatencyIntervals >= LATENCY_INTERVALS_FAIR) {
+            grade = GRADE_FAIR;
+        } else {
+            grade = GRADE_GOOD;
+        }
+        if (grade == mGrade) {
+            return false;
+        }
+        mGrade = grade;
+        return true;
+    }
+}
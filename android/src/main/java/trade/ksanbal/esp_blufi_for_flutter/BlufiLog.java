@@ -3,8 +3,10 @@ package trade.ksanbal.esp_blufi_for_flutter;
 import android.util.Log;
 
 public class BlufiLog {
+    private static volatile BlufiLogAppender sAppender;
+
     private final String mTag;
-    private Level mLevel = Level.V;
+    private volatile Level mLevel = Level.V;
 
     /**
      * @param cls The tag will use simple name of the cls.
@@ -13,6 +15,24 @@ public class BlufiLog {
         mTag = String.format("[%s]", cls.getSimpleName());
     }
 
+    /**
+     * Enable or disable writing the logs on a background thread. The messages are queued in a
+     * fixed-size ring buffer, the oldest ones are dropped if the thread can't keep up.
+     *
+     * @param enable true will write logs on background thread, false will write on caller thread
+     */
+    public static synchronized void setAsyncAppender(boolean enable) {
+        BlufiLogAppender appender = sAppender;
+        if (enable && appender == null) {
+            appender = new BlufiLogAppender(BlufiLogAppender.DEFAULT_CAPACITY);
+            appender.start();
+            sAppender = appender;
+        } else if (!enable && appender != null) {
+            sAppender = null;
+            appender.stop();
+        }
+    }
+
     /**
      * Set the print lowest level. It will set {@link Level#NIL} if the level is null.
      *
@@ -26,25 +46,82 @@ public class BlufiLog {
         }
     }
 
+    /**
+     * Check whether a message of the level would be logged, use it to guard expensive messages.
+     *
+     * @param level The level of the message.
+     * @return true if the message will be logged
+     */
+    public boolean isLoggable(Level level) {
+        return level != Level.NIL && mLevel.ordinal() <= level.ordinal();
+    }
+
     /**
      * Send a {@link Level#V} log message.
      *
      * @param msg The message you would like logged.
      */
     public void v(String msg) {
-        if (mLevel.ordinal() <= Level.V.ordinal()) {
-            Log.v(mTag, msg);
+        if (isLoggable(Level.V)) {
+            print(Level.V, msg);
         }
     }
 
     /**
-     * Send a {@link Level#V} log message.
+     * Send a {@link Level#V} log message, each {@code {}} in the pattern is replaced by an arg.
+     * The message is only built if the level is loggable.
+     */
+    public void v(String pattern, Object arg) {
+        if (isLoggable(Level.V)) {
+            print(Level.V, format(pattern, arg, null, null));
+        }
+    }
+
+    public void v(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(Level.V)) {
+            print(Level.V, format(pattern, arg1, arg2, null));
+        }
+    }
+
+    /**
+     * Send a {@link Level#D} log message.
      *
      * @param msg The message you would like logged.
      */
     public void d(String msg) {
-        if (mLevel.ordinal() <= Level.D.ordinal()) {
-            Log.d(mTag, msg);
+        if (isLoggable(Level.D)) {
+            print(Level.D, msg);
+        }
+    }
+
+    /**
+     * Send a {@link Level#D} log message, each {@code {}} in the pattern is replaced by an arg.
+     * The message is only built if the level is loggable.
+     */
+    public void d(String pattern, Object arg) {
+        if (isLoggable(Level.D)) {
+            print(Level.D, format(pattern, arg, null, null));
+        }
+    }
+
+    public void d(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(Level.D)) {
+            print(Level.D, format(pattern, arg1, arg2, null));
+        }
+    }
+
+    public void d(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Level.D)) {
+            print(Level.D, format(pattern, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * Send a {@link Level#D} log message, the supplier is only called if the level is loggable.
+     */
+    public void d(MessageSupplier supplier) {
+        if (isLoggable(Level.D)) {
+            print(Level.D, supplier.get());
         }
     }
 
@@ -54,8 +131,14 @@ public class BlufiLog {
      * @param msg The message you would like logged.
      */
     public void i(String msg) {
-        if (mLevel.ordinal() <= Level.I.ordinal()) {
-            Log.i(mTag, msg);
+        if (isLoggable(Level.I)) {
+            print(Level.I, msg);
+        }
+    }
+
+    public void i(String pattern, Object arg) {
+        if (isLoggable(Level.I)) {
+            print(Level.I, format(pattern, arg, null, null));
         }
     }
 
@@ -65,8 +148,24 @@ public class BlufiLog {
      * @param msg The message you would like logged.
      */
     public void w(String msg) {
-        if (mLevel.ordinal() <= Level.W.ordinal()) {
-            Log.w(mTag, msg);
+        if (isLoggable(Level.W)) {
+            print(Level.W, msg);
+        }
+    }
+
+    /**
+     * Send a {@link Level#W} log message, each {@code {}} in the pattern is replaced by an arg.
+     * The message is only built if the level is loggable.
+     */
+    public void w(String pattern, Object arg) {
+        if (isLoggable(Level.W)) {
+            print(Level.W, format(pattern, arg, null, null));
+        }
+    }
+
+    public void w(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(Level.W)) {
+            print(Level.W, format(pattern, arg1, arg2, null));
         }
     }
 
@@ -76,9 +175,68 @@ public class BlufiLog {
      * @param msg The message you would like logged.
      */
     public void e(String msg) {
-        if (mLevel.ordinal() <= Level.E.ordinal()) {
-            Log.e(mTag, msg);
+        if (isLoggable(Level.E)) {
+            print(Level.E, msg);
+        }
+    }
+
+    public void e(String pattern, Object arg) {
+        if (isLoggable(Level.E)) {
+            print(Level.E, format(pattern, arg, null, null));
+        }
+    }
+
+    private void print(Level level, String msg) {
+        BlufiLogAppender appender = sAppender;
+        if (appender != null) {
+            appender.append(level, mTag, msg);
+        } else {
+            write(level, mTag, msg);
+        }
+    }
+
+    static void write(Level level, String tag, String msg) {
+        switch (level) {
+            case V:
+                Log.v(tag, msg);
+                break;
+            case D:
+                Log.d(tag, msg);
+                break;
+            case I:
+                Log.i(tag, msg);
+                break;
+            case W:
+                Log.w(tag, msg);
+                break;
+            case E:
+                Log.e(tag, msg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    static String format(String pattern, Object arg1, Object arg2, Object arg3) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 32);
+        int argIndex = 0;
+        int start = 0;
+        int index;
+        while (argIndex < 3 && (index = pattern.indexOf("{}", start)) >= 0) {
+            sb.append(pattern, start, index);
+            sb.append(argIndex == 0 ? arg1 : argIndex == 1 ? arg2 : arg3);
+            argIndex++;
+            start = index + 2;
         }
+        sb.append(pattern, start, pattern.length());
+        return sb.toString();
+    }
+
+    /**
+     * Build the log message lazily.
+     */
+    public interface MessageSupplier {
+        String get();
     }
 
     /**
@@ -0,0 +1,104 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+/**
+ * Write the logs on a background thread.
+ * <p>
+ * The messages are kept in a fixed-size ring buffer, the callers only copy the references into it.
+ * If the buffer is full the oldest message is dropped and the dropped count is logged later.
+ */
+class BlufiLogAppender implements Runnable {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final String TAG = "[BlufiLogAppender]";
+
+    private final int mCapacity;
+    private final BlufiLog.Level[] mLevels;
+    private final String[] mTags;
+    private final String[] mMessages;
+
+    private int mHead;
+    private int mSize;
+    private long mDropped;
+    private boolean mRunning;
+
+    private Thread mThread;
+
+    BlufiLogAppender(int capacity) {
+        mCapacity = capacity;
+        mLevels = new BlufiLog.Level[capacity];
+        mTags = new String[capacity];
+        mMessages = new String[capacity];
+    }
+
+    synchronized void start() {
+        mRunning = true;
+        mThread = new Thread(this, "BlufiLogAppender");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the thread after the queued messages are written.
+     */
+    synchronized void stop() {
+        mRunning = false;
+        notifyAll();
+    }
+
+    synchronized void append(BlufiLog.Level level, String tag, String msg) {
+        if (!mRunning) {
+            BlufiLog.write(level, tag, msg);
+            return;
+        }
+        if (mSize == mCapacity) {
+            mHead = (mHead + 1) % mCapacity;
+            mSize--;
+            mDropped++;
+        }
+        int tail = (mHead + mSize) % mCapacity;
+        mLevels[tail] = level;
+        mTags[tail] = tag;
+        mMessages[tail] = msg;
+        mSize++;
+        if (mSize == 1) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        BlufiLog.Level level;
+        String tag;
+        String msg;
+        long dropped;
+        while (true) {
+            synchronized (this) {
+                while (mSize == 0 && mRunning) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mSize == 0) {
+                    return;
+                }
+                level = mLevels[mHead];
+                tag = mTags[mHead];
+                msg = mMessages[mHead];
+                mTags[mHead] = null;
+                mMessages[mHead] = null;
+                mHead = (mHead + 1) % mCapacity;
+                mSize--;
+                dropped = mDropped;
+                mDropped = 0;
+            }
+
+            if (dropped > 0) {
+                BlufiLog.write(BlufiLog.Level.W, TAG, "Dropped " + dropped + " log messages");
+            }
+            BlufiLog.write(level, tag, msg);
+        }
+    }
+}
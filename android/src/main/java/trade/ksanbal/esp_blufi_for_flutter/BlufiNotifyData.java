@@ -1,6 +1,6 @@
 package trade.ksanbal.esp_blufi_for_flutter;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 class BlufiNotifyData {
     private int mTypeValue;
@@ -9,10 +9,12 @@ class BlufiNotifyData {
 
     private int mFrameCtrlValue;
 
-    private final ByteArrayOutputStream mDataOS;
+    private byte[] mData;
+    private int mDataLength;
+    private int mDecodedOffset;
 
     BlufiNotifyData() {
-        mDataOS = new ByteArrayOutputStream();
+        mData = new byte[32];
     }
 
     int getType() {
@@ -48,10 +50,38 @@ class BlufiNotifyData {
     }
 
     void addData(byte[] bytes, int offset) {
-        mDataOS.write(bytes, offset, bytes.length - offset);
+        int length = bytes.length - offset;
+        if (mDataLength + length > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length << 1, mDataLength + length));
+        }
+        System.arraycopy(bytes, offset, mData, mDataLength, length);
+        mDataLength += length;
     }
 
     byte[] getDataArray() {
-        return mDataOS.toByteArray();
+        return Arrays.copyOf(mData, mDataLength);
+    }
+
+    /**
+     * The reassembled data is valid in range [0, {@link #getDataLength()}).
+     * The bytes in the range will not be changed by following fragments.
+     */
+    byte[] getDataBuffer() {
+        return mData;
+    }
+
+    int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * @return the position of the data that has been delivered progressively
+     */
+    int getDecodedOffset() {
+        return mDecodedOffset;
+    }
+
+    void setDecodedOffset(int offset) {
+        mDecodedOffset = offset;
     }
 }
@@ -0,0 +1,173 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Probe the Blufi package length on real transfers and settle on the fastest reliable one.
+ * <p>
+ * Candidates are tried from the largest one allowed by the negotiated MTU down to the smaller
+ * common sizes. Each candidate measures the goodput of a few fragmented transfers, a candidate
+ * whose frames fail to be written is regarded as unreliable. Other failures, such as a missing ack
+ * or an expired deadline, say nothing about the length and are not counted. The settled length is
+ * remembered per device address, so following connections to the same device skip the probing.
+ * When no candidate works the minimum length is used for this connection only, the next one probes
+ * again. Only the results of the current candidate are taken, so the candidate must be posted
+ * unchanged while probing; limits such as the link grade apply to the settled length.
+ */
+class BlufiPackageLengthTuner {
+    private static final int[] COMMON_LENGTHS = {244, 182, 128, 64};
+    private static final int SAMPLES_PER_CANDIDATE = 2;
+
+    private static final Map<String, Integer> sSettledLengths = new ConcurrentHashMap<>();
+
+    private final String mAddress;
+    private final int mMinLength;
+
+    private int[] mCandidates = new int[0];
+    private long[] mBytes;
+    private long[] mNanos;
+    private int[] mSamples;
+    private boolean[] mFailed;
+    private int mProbeIndex;
+
+    private int mSettledLength = -1;
+
+    /**
+     * @param address the device address the settled length is remembered for, null to not remember it
+     */
+    BlufiPackageLengthTuner(String address, int minLength) {
+        mAddress = address;
+        mMinLength = minLength;
+    }
+
+    /**
+     * Set the maximum package length the link supports. It will restart the probing unless a
+     * length has been settled for the device.
+     *
+     * @param maxLength the package length limit from the negotiated MTU
+     */
+    synchronized void setMaxLength(int maxLength) {
+        Integer settled = mAddress == null ? null : sSettledLengths.get(mAddress);
+        if (settled != null && settled <= maxLength) {
+            mSettledLength = settled;
+            mCandidates = new int[0];
+            return;
+        }
+
+        mSettledLength = -1;
+        int[] candidates = new int[COMMON_LENGTHS.length + 1];
+        int count = 0;
+        if (maxLength >= mMinLength) {
+            candidates[count++] = maxLength;
+        }
+        for (int length : COMMON_LENGTHS) {
+            if (length < maxLength && length >= mMinLength) {
+                candidates[count++] = length;
+            }
+        }
+        mCandidates = Arrays.copyOf(candidates, count);
+        mBytes = new long[count];
+        mNanos = new long[count];
+        mSamples = new int[count];
+        mFailed = new boolean[count];
+        mProbeIndex = 0;
+        if (count == 0) {
+            mSettledLength = mMinLength;
+        }
+    }
+
+    /**
+     * @return the package length to use for the next transfer, -1 if the max length is unknown
+     */
+    synchronized int getLength() {
+        if (mSettledLength > 0) {
+            return mSettledLength;
+        }
+        if (mProbeIndex < mCandidates.length) {
+            return mCandidates[mProbeIndex];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the settled package length, -1 if it is still probing
+     */
+    synchronized int getSettledLength() {
+        return mSettledLength;
+    }
+
+    /**
+     * Record a transfer posted successfully.
+     *
+     * @param length the package length used by the transfer
+     * @param dataLength the posted data length
+     * @param elapsedNanos the time from the first write to the last write or ack
+     */
+    synchronized void onTransfer(int length, int dataLength, long elapsedNanos) {
+        if (!isProbing(length)) {
+            return;
+        }
+        if (dataLength <= length) {
+            // Not fragmented, the goodput is dominated by the round trip time
+            return;
+        }
+
+        mBytes[mProbeIndex] += dataLength;
+        mNanos[mProbeIndex] += elapsedNanos;
+        mSamples[mProbeIndex]++;
+        if (mSamples[mProbeIndex] >= SAMPLES_PER_CANDIDATE) {
+            nextCandidate();
+        }
+    }
+
+    /**
+     * Record a transfer whose frames could not be written, the package length is unreliable.
+     *
+     * @param length the package length used by the transfer
+     */
+    synchronized void onWriteFailure(int length) {
+        if (!isProbing(length)) {
+            return;
+        }
+        mFailed[mProbeIndex] = true;
+        nextCandidate();
+    }
+
+    private boolean isProbing(int length) {
+        return mSettledLength <= 0 && mProbeIndex < mCandidates.length && mCandidates[mProbeIndex] == length;
+    }
+
+    private void nextCandidate() {
+        mProbeIndex++;
+        if (mProbeIndex >= mCandidates.length) {
+            settle();
+        }
+    }
+
+    private void settle() {
+        int best = -1;
+        double bestGoodput = 0;
+        for (int i = 0; i < mCandidates.length; i++) {
+            if (mFailed[i] || mNanos[i] <= 0) {
+                continue;
+            }
+            double goodput = (double) mBytes[i] / mNanos[i];
+            if (best < 0 || goodput > bestGoodput) {
+                best = i;
+                bestGoodput = goodput;
+            }
+        }
+
+        if (best < 0) {
+            // Not remembered, the failures may come from this connection rather than the device
+            mSettledLength = mMinLength;
+            return;
+        }
+        mSettledLength = mCandidates[best];
+        if (mAddress != null) {
+            sSettledLengths.put(mAddress, mSettledLength);
+        }
+    }
+}
@@ -17,19 +17,22 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
-import android.util.Log;
+import android.util.Base64;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
@@ -42,8 +45,10 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import trade.ksanbal.esp_blufi_for_flutter.constants.BlufiConstants;
 import trade.ksanbal.esp_blufi_for_flutter.params.BlufiConfigureParams;
 import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
-import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanResult;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
 import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusView;
 
 /**
  * ESP Blufi Flutter Plugin - Android 实现
@@ -59,10 +64,25 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
 
   private BluetoothDevice mDevice;
   private BlufiClient mBlufiClient;
+  private BlufiClientPool mClientPool;
+  private BlufiClientPool.Session mSession;
+  private BlufiReconnectSupervisor mReconnectSupervisor;
+  private BlufiStatusScheduler mStatusScheduler;
+  private BlufiProfileStore mProfileStore;
+  private BlufiProvisionQueue mProvisionQueue;
+  private final BlufiScanCache mScanCache = new BlufiScanCache();
+  private boolean mCustomDataCompression;
+  /**
+   * 只向不低于该版本的设备协商压缩，{主版本, 次版本}，null 表示不限制
+   */
+  private int[] mCompressionMinVersion;
+  private boolean mConfigureIfChanged;
   private volatile boolean mConnected;
   private volatile boolean mSecurityNegotiated;
-  private CountDownLatch mConnectLatch;
-  private volatile boolean mConnectResult;
+  /**
+   * 等待连接结果的 connectPeripheral 调用，只在主线程访问
+   */
+  private Result mConnectResult;
 
   private Context mContext;
   private ActivityPluginBinding activityBinding;
@@ -74,6 +94,10 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
   private final BlufiLog mLog = new BlufiLog(getClass());
   private MethodChannel channel;
   private Handler handler;
+  private final Runnable mConnectTimeoutRunnable = () -> {
+    mLog.w("Connection timeout");
+    finishConnect(false);
+  };
 
 
 
@@ -81,6 +105,8 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
   @Override
   public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
     handler = new Handler(Looper.getMainLooper());
+    // 日志在后台线程写入，避免阻塞主线程和 Binder 线程
+    BlufiLog.setAsyncAppender(true);
     channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), "esp_blufi_for_flutter");
     channel.setMethodCallHandler(this);
     stateChannel = new EventChannel(flutterPluginBinding.getBinaryMessenger(), "esp_blufi_for_flutter/state");
@@ -98,8 +124,14 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
     };
     stateChannel.setStreamHandler(streamHandler);
     mContext = flutterPluginBinding.getApplicationContext();
-    mDeviceMap = new HashMap<>();
+    // 扫描回调在主线程写入，连接在 Flutter 调用线程读取
+    mDeviceMap = new ConcurrentHashMap<>();
     mScanCallback = new ScanCallback();
+    mClientPool = new BlufiClientPool(handler);
+    mClientPool.setEvictionListener(this::onSessionEvicted);
+    mReconnectSupervisor = new BlufiReconnectSupervisor(handler, new Reconnector());
+    mStatusScheduler = new BlufiStatusScheduler(handler, mClientPool, this::onFleetStatusChanged);
+    mProvisionQueue = new BlufiProvisionQueue(handler, this::createClient, new ProvisionListener());
   }
 
   /**
@@ -138,9 +170,11 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         if (adapter != null) {
           try {
-            BluetoothDevice device = adapter.getRemoteDevice(deviceId);
-            boolean connectSuccess = connectDeviceSync(device);
-            result.success(connectSuccess);
+            // 优先使用扫描结果中的设备，不再重新查找
+            ScanResult scanResult = mDeviceMap.get(deviceId);
+            BluetoothDevice device = scanResult != null ? scanResult.getDevice() : adapter.getRemoteDevice(deviceId);
+            Number timeout = call.argument("timeout");
+            connectDevice(device, timeout != null ? timeout.longValue() : BlufiConstants.CONNECT_TIMEOUT, result);
           } catch (IllegalArgumentException e) {
             mLog.w("Invalid device address: " + deviceId);
             result.error("INVALID_ARGUMENT", "Invalid device address: " + deviceId, null);
@@ -177,16 +211,241 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
       configure(ssid, password != null ? password : "");
       result.success(true);
     }
+    // 设置配网时只发送与设备当前状态不同的参数，对之后新建的连接同样生效
+    else if (call.method.equals("setConfigureIfChanged")) {
+      Boolean enable = call.argument("enable");
+      mConfigureIfChanged = enable != null && enable;
+      if (mBlufiClient != null) {
+        mBlufiClient.setConfigureIfChanged(mConfigureIfChanged);
+      }
+      result.success(true);
+    }
     // 请求设备当前状态
     else if (call.method.equals("requestDeviceStatus")) {
       requestDeviceStatus();
       result.success(true);
     }
+    // 发送自定义数据
+    else if (call.method.equals("postCustomData")) {
+      String data = call.argument("custom_data");
+      if (data == null) {
+        result.error("INVALID_ARGUMENT", "Custom data cannot be null", null);
+        return;
+      }
+      postCustomData(data.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      result.success(true);
+    }
+    // 设置自定义数据压缩，对之后新建的连接同样生效
+    else if (call.method.equals("setCustomDataCompression")) {
+      Boolean enable = call.argument("enable");
+      String minVersion = call.argument("minVersion");
+      int[] version = null;
+      if (minVersion != null) {
+        version = parseVersion(minVersion);
+        if (version == null) {
+          mLog.w("Invalid version: " + minVersion);
+          result.error("INVALID_ARGUMENT", "Invalid version: " + minVersion, null);
+          return;
+        }
+      }
+      mCustomDataCompression = enable != null && enable;
+      mCompressionMinVersion = version;
+      if (mBlufiClient != null) {
+        applyCompression(mBlufiClient);
+      }
+      result.success(true);
+    }
+    // 获取自定义数据的压缩统计
+    else if (call.method.equals("getCompressionStats")) {
+      if (mBlufiClient == null) {
+        result.success(null);
+        return;
+      }
+      Map<String, Object> stats = new HashMap<>();
+      stats.put("compressed", mBlufiClient.isCustomDataCompressed());
+      stats.put("ratio", (double) mBlufiClient.getCompressionRatio());
+      stats.put("goodput", mBlufiClient.getCustomDataGoodput());
+      result.success(stats);
+    }
+    // 打开自定义数据上的逻辑通道
+    else if (call.method.equals("openChannel")) {
+      Integer channel = call.argument("channel");
+      Integer weight = call.argument("weight");
+      if (channel == null || channel < 0 || channel > 0xff) {
+        result.error("INVALID_ARGUMENT", "Channel must be 0 ~ 255", null);
+        return;
+      }
+      if (mBlufiClient == null) {
+        result.success(false);
+        return;
+      }
+      mBlufiClient.openChannel(channel, weight != null ? weight : 1);
+      result.success(true);
+    }
+    // 关闭逻辑通道
+    else if (call.method.equals("closeChannel")) {
+      Integer channel = call.argument("channel");
+      if (channel == null || channel < 0 || channel > 0xff) {
+        result.error("INVALID_ARGUMENT", "Channel must be 0 ~ 255", null);
+        return;
+      }
+      if (mBlufiClient != null) {
+        mBlufiClient.closeChannel(channel);
+      }
+      result.success(true);
+    }
+    // 在逻辑通道上发送数据
+    else if (call.method.equals("postChannelData")) {
+      Integer channel = call.argument("channel");
+      byte[] data = call.argument("data");
+      if (channel == null || channel < 0 || channel > 0xff || data == null) {
+        result.error("INVALID_ARGUMENT", "Channel must be 0 ~ 255 and data cannot be null", null);
+        return;
+      }
+      postChannelData(channel, data);
+      result.success(true);
+    }
+    // 获取逻辑通道的收发统计
+    else if (call.method.equals("getChannelStats")) {
+      Integer channel = call.argument("channel");
+      if (channel == null || channel < 0 || channel > 0xff) {
+        result.error("INVALID_ARGUMENT", "Channel must be 0 ~ 255", null);
+        return;
+      }
+      if (mBlufiClient == null) {
+        result.success(null);
+        return;
+      }
+      Map<String, Object> stats = new HashMap<>();
+      stats.put("sentBytes", mBlufiClient.getChannelSentBytes(channel));
+      stats.put("receivedBytes", mBlufiClient.getChannelReceivedBytes(channel));
+      stats.put("throughput", mBlufiClient.getChannelThroughput(channel));
+      result.success(stats);
+    }
     // 请求设备扫描WiFi列表
     else if (call.method.equals("requestDeviceScan")) {
-      requestDeviceWifiScan();
+      Boolean forceRefresh = call.argument("forceRefresh");
+      requestDeviceWifiScan(forceRefresh != null && forceRefresh);
+      result.success(true);
+    }
+    // 设置WiFi扫描结果缓存时间
+    else if (call.method.equals("setScanCacheTtl")) {
+      Number ttl = call.argument("ttl");
+      if (ttl != null) {
+        mScanCache.setTtl(ttl.longValue());
+      }
+      result.success(true);
+    }
+    // 获取当前发送的包长度
+    else if (call.method.equals("getPackageLength")) {
+      if (mBlufiClient == null) {
+        result.success(-1);
+      } else {
+        result.success(mBlufiClient.getPostPackageLength());
+      }
+    }
+    // 获取当前连接的链路质量等级
+    else if (call.method.equals("getLinkGrade")) {
+      if (mBlufiClient == null) {
+        result.success(-1);
+      } else {
+        result.success(mBlufiClient.getLinkGrade());
+      }
+    }
+    // 设置连接池参数
+    else if (call.method.equals("setConnectionPool")) {
+      Number maxSize = call.argument("maxSize");
+      Number idleTimeout = call.argument("idleTimeout");
+      if (maxSize != null) {
+        mClientPool.setMaxSize(maxSize.intValue());
+      }
+      if (idleTimeout != null) {
+        mClientPool.setIdleTimeout(idleTimeout.longValue());
+      }
       result.success(true);
     }
+    // 导出最近收发的帧记录
+    else if (call.method.equals("dumpFrameTrace")) {
+      dumpFrameTrace(result);
+    }
+    // 设置连接意外断开后的自动重连
+    else if (call.method.equals("setAutoReconnect")) {
+      Boolean enable = call.argument("enable");
+      Number maxAttempts = call.argument("maxAttempts");
+      mReconnectSupervisor.setEnabled(enable == null || enable);
+      if (maxAttempts != null) {
+        mReconnectSupervisor.setPolicy(maxAttempts.intValue(), BlufiConstants.RECONNECT_INITIAL_BACKOFF,
+                BlufiConstants.RECONNECT_MAX_BACKOFF);
+      }
+      result.success(true);
+    }
+    // 定时查询所有已连接设备的状态
+    else if (call.method.equals("setStatusPolling")) {
+      Number interval = call.argument("interval");
+      long value = interval != null ? interval.longValue() : BlufiConstants.STATUS_POLL_INTERVAL;
+      if (value > 0) {
+        mStatusScheduler.start(value);
+      } else {
+        mStatusScheduler.stop();
+      }
+      result.success(true);
+    }
+    // 获取所有设备最近一次查询到的状态
+    else if (call.method.equals("getFleetStatus")) {
+      Map<String, Object> statuses = new HashMap<>();
+      for (Map.Entry<String, BlufiStatusResponse> entry : mStatusScheduler.getStatuses().entrySet()) {
+        statuses.put(entry.getKey(), makeStatusMap(entry.getValue()));
+      }
+      result.success(statuses);
+    }
+    // 获取最近一次自动重连的恢复耗时
+    else if (call.method.equals("getLastRecoveryTime")) {
+      result.success(mReconnectSupervisor.getLastRecoveryTime());
+    }
+    // 保存配网方案
+    else if (call.method.equals("saveProfile")) {
+      saveProfile(call.argument("name"), call.argument("username"), call.argument("password"), result);
+    }
+    // 删除配网方案
+    else if (call.method.equals("removeProfile")) {
+      removeProfile(call.argument("name"), result);
+    }
+    // 获取所有配网方案名称
+    else if (call.method.equals("getProfileNames")) {
+      result.success(getProfileStore().getNames());
+    }
+    // 使用配网方案配置当前设备
+    else if (call.method.equals("configProfile")) {
+      String name = call.argument("name");
+      BlufiProfile profile = name != null ? getProfileStore().get(name) : null;
+      if (profile == null) {
+        updateMessage(makeJson("configure_params","0"));
+        result.error("PROFILE_NOT_FOUND", "No profile named " + name, null);
+        return;
+      }
+      configure(profile);
+      result.success(true);
+    }
+    // 扫描到匹配的设备后自动配网，扫描和配网同时进行
+    else if (call.method.equals("startAutoProvision")) {
+      startAutoProvision(call, result);
+    }
+    // 停止自动配网，正在配网的设备继续完成
+    else if (call.method.equals("stopAutoProvision")) {
+      stopAutoProvision();
+      result.success(true);
+    }
+    // 获取自动配网的统计
+    else if (call.method.equals("getAutoProvisionStats")) {
+      Map<String, Object> stats = new HashMap<>();
+      stats.put("running", mProvisionQueue.isRunning());
+      stats.put("queued", mProvisionQueue.getQueuedCount());
+      stats.put("active", mProvisionQueue.getActiveCount());
+      stats.put("succeeded", mProvisionQueue.getSucceededCount());
+      stats.put("failed", mProvisionQueue.getFailedCount());
+      stats.put("dropped", mProvisionQueue.getDroppedCount());
+      result.success(stats);
+    }
     else {
       result.notImplemented();
     }
@@ -195,6 +454,11 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
   @Override
   public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
     channel.setMethodCallHandler(null);
+    finishConnect(false);
+    mProvisionQueue.close();
+    mStatusScheduler.stop();
+    mClientPool.closeAll();
+    BlufiLog.setAsyncAppender(false);
   }
 
 
@@ -204,18 +468,25 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
    * @param result Flutter 回调结果
    */
   private void scan(String filter, Result result) {
+    result.success(startScan(filter));
+  }
+
+  /**
+   * 开始扫描蓝牙设备
+   * @param filter 过滤字符串，用于过滤设备名称
+   * @return true 表示开始扫描
+   */
+  private boolean startScan(String filter) {
     BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
     if (adapter == null) {
       mLog.w("Bluetooth adapter is null");
-      result.success(false);
-      return;
+      return false;
     }
 
     BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
     if (!adapter.isEnabled() || scanner == null) {
       mLog.w("Bluetooth is not enabled or scanner is null");
-      result.success(false);
-      return;
+      return false;
     }
 
     mDeviceMap.clear();
@@ -227,7 +498,7 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
             .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
             .build(),
         mScanCallback);
-    result.success(true);
+    return true;
   }
 
   /**
@@ -246,59 +517,55 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
   }
 
   /**
-   * 连接蓝牙设备（同步方法）
+   * 连接蓝牙设备，连接结果通过 result 返回
+   * GATT 事件切换到主线程处理，所以不能在主线程上阻塞等待，连接成功、失败或超时时再返回结果
    * @param device 要连接的蓝牙设备
-   * @return true 连接成功，false 连接失败或超时
+   * @param timeout 等待连接的超时时间，单位毫秒
+   * @param result Flutter 回调结果，true 连接成功，false 连接失败或超时
    */
-  boolean connectDeviceSync(BluetoothDevice device) {
+  void connectDevice(BluetoothDevice device, long timeout, Result result) {
     if (device == null) {
       mLog.w("Cannot connect: device is null");
-      return false;
+      result.success(false);
+      return;
     }
-
-    // 如果已有连接，先关闭
-    if (mBlufiClient != null) {
-      mBlufiClient.close();
-      mBlufiClient = null;
+    cancelRecovery();
+    // 上一次连接还在等待结果，视为失败
+    finishConnect(false);
+
+    // 连接池中已有可用的连接，直接复用，跳过连接、服务发现、MTU 和安全协商
+    BlufiClientPool.Session pooled = mClientPool.acquire(device.getAddress());
+    if (pooled != null) {
+      if (pooled.isReady()) {
+        useSession(pooled);
+        mLog.d("Reuse pooled connection: {}", device.getAddress());
+        updateMessage(makeJson("peripheral_connect","1"));
+        updateMessage(makeJson("gatt_prepared","1"));
+        result.success(true);
+        return;
+      }
+      // 尚未准备好的连接，关闭后重新建立
+      closeSession(pooled);
     }
 
-    // 重置连接状态
-    mConnected = false;
-    mSecurityNegotiated = false;
-    mConnectResult = false;
-    mConnectLatch = new CountDownLatch(1);
-
-    mDevice = device;
-    mBlufiClient = new BlufiClient(mContext, mDevice);
-    mBlufiClient.setGattCallback(new GattCallback());
-    mBlufiClient.setBlufiCallback(new BlufiCallbackMain());
-    mBlufiClient.setGattWriteTimeout(BlufiConstants.GATT_WRITE_TIMEOUT);
-    mBlufiClient.connect();
-    mLog.d("Connecting to device: " + device.getAddress());
-
-    // 等待连接结果，超时时间 30 秒
-    // 注意：Flutter method call 在后台线程执行，蓝牙回调在主线程，所以不会死锁
-    try {
-      mLog.d("Waiting for connection result, timeout: 30 seconds");
-      long startTime = System.currentTimeMillis();
-      boolean awaitResult = mConnectLatch.await(30, TimeUnit.SECONDS);
-      long elapsedTime = System.currentTimeMillis() - startTime;
-      
-      if (!awaitResult) {
-        mLog.w("Connection timeout after " + elapsedTime + "ms");
-        return false;
-      }
-      
-      mLog.d("Connection result received after " + elapsedTime + "ms, result: " + mConnectResult);
-      return mConnectResult;
-    } catch (InterruptedException e) {
-      mLog.w("Connection interrupted: " + e.getMessage());
-      Thread.currentThread().interrupt();
-      return false;
-    } finally {
-      mConnectLatch = null;
-      mLog.d("Connection sync completed, latch cleared");
+    mConnectResult = result;
+    handler.postDelayed(mConnectTimeoutRunnable, timeout);
+    mLog.d("Waiting for connection result, timeout: {}ms", timeout);
+    openSession(device);
+  }
+
+  /**
+   * 返回等待中的连接结果
+   */
+  private void finishConnect(boolean success) {
+    Result result = mConnectResult;
+    if (result == null) {
+      return;
     }
+    mConnectResult = null;
+    handler.removeCallbacks(mConnectTimeoutRunnable);
+    mLog.d("Connection result: {}", success);
+    result.success(success);
   }
 
   /**
@@ -310,21 +577,137 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
       mLog.w("Cannot connect: device is null");
       return;
     }
+    cancelRecovery();
+
+    BlufiClientPool.Session pooled = mClientPool.acquire(device.getAddress());
+    if (pooled != null) {
+      if (pooled.isReady()) {
+        useSession(pooled);
+        updateMessage(makeJson("peripheral_connect","1"));
+        updateMessage(makeJson("gatt_prepared","1"));
+        return;
+      }
+      closeSession(pooled);
+    }
 
-    mDevice = device;
-    if (mBlufiClient != null) {
-      mBlufiClient.close();
+    openSession(device);
+  }
+
+  /**
+   * 创建新的 BlufiClient 连接并放入连接池
+   * @param device 要连接的蓝牙设备
+   */
+  private void openSession(BluetoothDevice device) {
+    BlufiClient client = createClient(device);
+    BlufiClientPool.Session session = new BlufiClientPool.Session(device, client);
+    client.setGattCallback(new GattCallback(session));
+    client.setBlufiCallback(new BlufiCallbackMain(session));
+    useSession(session);
+    mClientPool.put(session);
+    client.connect();
+    mLog.d("Connecting to device: {}", device.getAddress());
+  }
+
+  /**
+   * 按插件的设置创建 BlufiClient，回调由调用方设置
+   * @param device 要连接的蓝牙设备
+   */
+  private BlufiClient createClient(BluetoothDevice device) {
+    // 回调直接在主线程执行，updateMessage 无需再切换线程
+    BlufiClient client = new BlufiClient(mContext, device, handler::post);
+    client.setGattWriteTimeout(BlufiConstants.GATT_WRITE_TIMEOUT);
+    client.setOperationTimeout(BlufiConstants.OPERATION_TIMEOUT);
+    client.setFrameRetransmission(BlufiConstants.FRAME_RETRIES, BlufiConstants.MESSAGE_RETRIES,
+            BlufiConstants.RETRY_BACKOFF);
+    client.setReceiveResync(true);
+    client.setScanResultBatchSize(BlufiConstants.SCAN_RESULT_BATCH_SIZE);
+    applyCompression(client);
+    client.setConfigureIfChanged(mConfigureIfChanged);
+    return client;
+  }
+
+  private void applyCompression(BlufiClient client) {
+    int[] version = mCompressionMinVersion;
+    if (version == null) {
+      client.setCustomDataCompression(mCustomDataCompression);
+    } else {
+      client.setCustomDataCompression(mCustomDataCompression, version[0], version[1]);
+    }
+  }
+
+  /**
+   * 解析 "主版本.次版本" 格式的设备版本，可带 V 前缀，如 "1.3" 或 "V1.3"
+   * @return {主版本, 次版本}，格式错误时返回 null
+   */
+  private static int[] parseVersion(String text) {
+    String value = text.startsWith("V") || text.startsWith("v") ? text.substring(1) : text;
+    String[] parts = value.split("\\.");
+    if (parts.length != 2) {
+      return null;
+    }
+    try {
+      int major = Integer.parseInt(parts[0]);
+      int minor = Integer.parseInt(parts[1]);
+      if (major < 0 || major > 0xff || minor < 0 || minor > 0xff) {
+        return null;
+      }
+      return new int[]{major, minor};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * 切换当前操作的设备连接
+   */
+  private void useSession(BlufiClientPool.Session session) {
+    mSession = session;
+    mDevice = session.device;
+    mBlufiClient = session.client;
+    mConnected = session.connected;
+    mSecurityNegotiated = session.securityNegotiated;
+  }
+
+  /**
+   * 关闭连接并从连接池移除
+   */
+  private void closeSession(BlufiClientPool.Session session) {
+    mClientPool.remove(session);
+    mStatusScheduler.remove(session.device.getAddress());
+    session.client.close();
+    if (session == mSession) {
+      mSession = null;
       mBlufiClient = null;
     }
+  }
 
-    mConnected = false;
-    mSecurityNegotiated = false;
-    mBlufiClient = new BlufiClient(mContext, mDevice);
-    mBlufiClient.setGattCallback(new GattCallback());
-    mBlufiClient.setBlufiCallback(new BlufiCallbackMain());
-    mBlufiClient.setGattWriteTimeout(BlufiConstants.GATT_WRITE_TIMEOUT);
-    mBlufiClient.connect();
-    mLog.d("Connecting to device: " + device.getAddress());
+  private boolean isCurrentSession(BlufiClientPool.Session session) {
+    return session == mSession;
+  }
+
+  /**
+   * 刷新当前连接的使用时间，避免被空闲回收
+   */
+  private void touchSession() {
+    BlufiClientPool.Session session = mSession;
+    if (session != null) {
+      mClientPool.touch(session);
+    }
+  }
+
+  /**
+   * 连接池回收了连接（超出数量上限或空闲超时）
+   */
+  private void onSessionEvicted(BlufiClientPool.Session session) {
+    mLog.d("Pooled connection evicted: {}", session.device.getAddress());
+    mStatusScheduler.remove(session.device.getAddress());
+    if (isCurrentSession(session)) {
+      mSession = null;
+      mBlufiClient = null;
+      mConnected = false;
+      mSecurityNegotiated = false;
+      updateMessage(makeJson("peripheral_connect","0"));
+    }
   }
 
 
@@ -332,6 +715,11 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
    * 断开GATT连接
    */
   private void disconnectGatt() {
+    cancelRecovery();
+    BlufiClientPool.Session session = mSession;
+    if (session != null) {
+      session.closeRequested = true;
+    }
     if (mBlufiClient != null) {
       mBlufiClient.requestCloseConnection();
     }
@@ -358,6 +746,7 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
       mLog.d("Security already negotiated, skipping");
       return;
     }
+    touchSession();
     mLog.d("Starting security negotiation");
 //    mBlufiClient.negotiateSecurity();
   }
@@ -371,6 +760,29 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
    * @param password WiFi 密码
    */
   private void configure(String ssid, String password) {
+    // Create configuration parameters for station mode
+    BlufiConfigureParams params = new BlufiConfigureParams();
+    params.setOpMode(BlufiParameter.OP_MODE_STA);
+
+    // Set SSID as byte array to support non-ASCII characters
+    // Use UTF-8 encoding to ensure proper character handling
+    byte[] ssidBytes = ssid.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    params.setStaSSIDBytes(ssidBytes);
+    params.setStaBSSID(ssid);
+    params.setStaPassword(password != null ? password : "");
+
+    mLog.d("Configuring station mode - SSID: {} (length: {} bytes)", ssid, ssidBytes.length);
+    mLog.d("Password length: {} characters", password != null ? password.length() : 0);
+    configure(BlufiProfile.from(null, params));
+  }
+
+  /**
+   * 使用已编码的配网方案配置设备
+   * 批量配网时所有设备共用同一个方案，不再为每个设备重复编码
+   *
+   * @param profile 配网方案
+   */
+  private void configure(BlufiProfile profile) {
     if (mBlufiClient == null) {
       mLog.w("Cannot configure: BlufiClient is null");
       updateMessage(makeJson("configure_params","0"));
@@ -387,20 +799,169 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
 //      return;
 //    }
 
-    // Create configuration parameters for station mode
+    touchSession();
+    mReconnectSupervisor.onOperationStarted(mDevice.getAddress(),
+            BlufiReconnectSupervisor.Operation.configure(profile));
+    mBlufiClient.configure(profile);
+  }
+
+  /**
+   * 配网方案存储，第一次使用时从文件加载
+   */
+  private BlufiProfileStore getProfileStore() {
+    if (mProfileStore == null) {
+      mProfileStore = new BlufiProfileStore(new File(mContext.getFilesDir(), "blufi_profiles.bin"));
+      try {
+        mProfileStore.load();
+      } catch (IOException e) {
+        mLog.w("Load profiles failed: " + e.getMessage());
+      }
+    }
+    return mProfileStore;
+  }
+
+  /**
+   * 保存 Station 模式的配网方案，同名方案会被替换
+   *
+   * @param name 方案名称
+   * @param ssid WiFi SSID（WiFi名称）
+   * @param password WiFi 密码
+   */
+  private void saveProfile(String name, String ssid, String password, Result result) {
+    if (name == null || name.isEmpty() || ssid == null || ssid.isEmpty()) {
+      result.error("INVALID_ARGUMENT", "Profile name and SSID cannot be empty", null);
+      return;
+    }
+    BlufiProfileStore store = getProfileStore();
+    try {
+      store.put(makeStationProfile(name, ssid, password));
+      store.save();
+      result.success(true);
+    } catch (IllegalArgumentException e) {
+      result.error("INVALID_ARGUMENT", e.getMessage(), null);
+    } catch (IOException e) {
+      mLog.w("Save profile failed: " + e.getMessage());
+      result.error("SAVE_FAILED", e.getMessage(), null);
+    }
+  }
+
+  /**
+   * 创建 Station 模式的配网方案
+   * @param name 方案名称，不保存的方案为 null
+   */
+  private BlufiProfile makeStationProfile(String name, String ssid, String password) {
     BlufiConfigureParams params = new BlufiConfigureParams();
     params.setOpMode(BlufiParameter.OP_MODE_STA);
-
-    // Set SSID as byte array to support non-ASCII characters
-    // Use UTF-8 encoding to ensure proper character handling
-    byte[] ssidBytes = ssid.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-    params.setStaSSIDBytes(ssidBytes);
-    params.setStaBSSID(ssid);
+    params.setStaSSIDBytes(ssid.getBytes(java.nio.charset.StandardCharsets.UTF_8));
     params.setStaPassword(password != null ? password : "");
+    return BlufiProfile.from(name, params);
+  }
 
-    mLog.d("Configuring station mode - SSID: " + ssid + " (length: " + ssidBytes.length + " bytes)");
-    mLog.d("Password length: " + (password != null ? password.length() : 0) + " characters");
-    mBlufiClient.configure(params);
+  /**
+   * 开始自动配网，扫描到名称匹配的设备后直接用扫描结果中的设备连接并配网
+   * 配网方案可以是已保存的方案名称，也可以直接传入 WiFi 名称和密码
+   */
+  private void startAutoProvision(MethodCall call, Result result) {
+    String filter = call.argument("filter");
+    if (filter == null || filter.isEmpty()) {
+      // 不过滤会给附近所有的蓝牙设备配网
+      result.error("INVALID_ARGUMENT", "Filter cannot be empty", null);
+      return;
+    }
+    String name = call.argument("profile");
+    String ssid = call.argument("username");
+    BlufiProfile profile;
+    if (name != null) {
+      profile = getProfileStore().get(name);
+      if (profile == null) {
+        result.error("PROFILE_NOT_FOUND", "No profile named " + name, null);
+        return;
+      }
+    } else if (ssid != null && !ssid.isEmpty()) {
+      profile = makeStationProfile(null, ssid, call.argument("password"));
+    } else {
+      result.error("INVALID_ARGUMENT", "Profile or SSID is required", null);
+      return;
+    }
+    Number concurrency = call.argument("concurrency");
+    Number capacity = call.argument("capacity");
+    Number timeout = call.argument("timeout");
+    mProvisionQueue.start(profile,
+            concurrency != null ? concurrency.intValue() : BlufiConstants.AUTO_PROVISION_CONCURRENCY,
+            capacity != null ? capacity.intValue() : BlufiConstants.AUTO_PROVISION_QUEUE_CAPACITY,
+            timeout != null ? timeout.longValue() : BlufiConstants.AUTO_PROVISION_TIMEOUT);
+    if (!startScan(filter)) {
+      mProvisionQueue.stop();
+      result.success(false);
+      return;
+    }
+    mLog.d("Auto provision started, filter: {}", filter);
+    result.success(true);
+  }
+
+  /**
+   * 停止自动配网和扫描
+   */
+  private void stopAutoProvision() {
+    if (mProvisionQueue.isRunning()) {
+      mProvisionQueue.stop();
+      stopScan();
+    }
+  }
+
+  /**
+   * 自动配网的进度，推送到 Flutter 端
+   */
+  private class ProvisionListener implements BlufiProvisionQueue.Listener {
+    @Override
+    public void onStarted(String address) {
+      mLog.d("Auto provision started: {}", address);
+      updateMessage(makeProvisionJson(address, "started"));
+    }
+
+    @Override
+    public void onFinished(String address, int result) {
+      String state;
+      switch (result) {
+        case BlufiProvisionQueue.RESULT_SUCCESS:
+          state = "success";
+          break;
+        case BlufiProvisionQueue.RESULT_CONNECT_FAILED:
+          state = "connect_failed";
+          break;
+        case BlufiProvisionQueue.RESULT_CONFIGURE_FAILED:
+          state = "configure_failed";
+          break;
+        case BlufiProvisionQueue.RESULT_WIFI_FAILED:
+          state = "wifi_failed";
+          break;
+        default:
+          state = "timeout";
+          break;
+      }
+      mLog.d("Auto provision finished: {}, {}", address, state);
+      updateMessage(makeProvisionJson(address, state));
+    }
+  }
+
+  /**
+   * 删除配网方案
+   *
+   * @param name 方案名称
+   */
+  private void removeProfile(String name, Result result) {
+    BlufiProfileStore store = getProfileStore();
+    if (name == null || !store.remove(name)) {
+      result.success(false);
+      return;
+    }
+    try {
+      store.save();
+      result.success(true);
+    } catch (IOException e) {
+      mLog.w("Save profile failed: " + e.getMessage());
+      result.error("SAVE_FAILED", e.getMessage(), null);
+    }
   }
 
   /**
@@ -413,39 +974,141 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
       updateMessage(makeJson("device_status","0"));
       return;
     }
+    touchSession();
+    mReconnectSupervisor.onOperationStarted(mDevice.getAddress(), BlufiReconnectSupervisor.Operation.status());
+    mSession.statusRequested = true;
     mBlufiClient.requestDeviceStatus();
   }
 
+  /**
+   * 发送自定义数据到设备
+   * @param data 自定义数据
+   */
+  private void postCustomData(byte[] data) {
+    if (mBlufiClient == null || !mConnected) {
+      mLog.w("Cannot post custom data: not connected");
+      updateMessage(makeJson("post_custom_data","0"));
+      return;
+    }
+    touchSession();
+    mReconnectSupervisor.onOperationStarted(mDevice.getAddress(),
+            BlufiReconnectSupervisor.Operation.customData(data));
+    mBlufiClient.postCustomData(data);
+  }
+
+  /**
+   * 在逻辑通道上发送数据，通道需要先打开
+   * @param channel 通道号
+   * @param data 数据
+   */
+  private void postChannelData(int channel, byte[] data) {
+    if (mBlufiClient == null || !mConnected) {
+      mLog.w("Cannot post channel data: not connected");
+      updateMessage(makeChannelJson("post_channel_data", channel, "0"));
+      return;
+    }
+    touchSession();
+    mBlufiClient.postChannelData(channel, data);
+  }
+
   /**
    * 请求设备扫描WiFi列表
-   * 获取设备扫描到的附近WiFi网络列表
+   * 获取设备扫描到的附近WiFi网络列表，缓存未过期时直接返回缓存结果
+   * @param forceRefresh true 忽略缓存，让设备重新扫描
    */
-  private void requestDeviceWifiScan() {
+  private void requestDeviceWifiScan(boolean forceRefresh) {
     if (mBlufiClient == null || !mConnected) {
       mLog.w("Cannot request device WiFi scan: not connected");
       updateMessage(makeJson("wifi_info","0"));
       return;
     }
+    touchSession();
+    String address = mDevice.getAddress();
+    if (!forceRefresh) {
+      List<BlufiScanCache.Item> cached = mScanCache.getFresh(address);
+      if (cached != null) {
+        mLog.d("Serve device WiFi scan from cache, count={}", cached.size());
+        for (BlufiScanCache.Item item : cached) {
+          updateMessage(makeWifiInfoJson(item.ssid, item.rssi));
+        }
+        return;
+      }
+    }
+    mScanCache.beginScan(address);
     mBlufiClient.requestDeviceWifiScan();
   }
 
-  private void onGattConnected() {
-    mConnected = true;
-    mConnectResult = true;
-    // 通知等待连接的线程
-    if (mConnectLatch != null && mConnectLatch.getCount() > 0) {
-      mLog.d("Connection successful, notifying waiting thread");
-      mConnectLatch.countDown();
+  /**
+   * 将当前设备最近收发的帧导出到缓存目录
+   * 文件为 btsnoop 格式，可以用 BlufiFrameTrace 解析为帧时间线
+   */
+  private void dumpFrameTrace(Result result) {
+    if (mBlufiClient == null || mDevice == null) {
+      result.success(null);
+      return;
+    }
+    String name = String.format(Locale.ENGLISH, "blufi_%s_%d.btsnoop",
+            mDevice.getAddress().replace(":", ""), System.currentTimeMillis());
+    File file = new File(mContext.getCacheDir(), name);
+    try (OutputStream out = new FileOutputStream(file)) {
+      mBlufiClient.dumpFrameTrace(out);
+      result.success(file.getAbsolutePath());
+    } catch (IOException e) {
+      mLog.w("Dump frame trace failed: " + e.getMessage());
+      result.error("DUMP_FAILED", e.getMessage(), null);
     }
   }
 
-  private void onGattDisconnected() {
+  private void onGattConnected(BlufiClientPool.Session session) {
+    session.connected = true;
+    if (!isCurrentSession(session)) {
+      return;
+    }
+    mConnected = true;
+    finishConnect(true);
+  }
+
+  private void onGattDisconnected(BlufiClientPool.Session session) {
+    session.connected = false;
+    boolean current = isCurrentSession(session);
+    boolean prepared = session.prepared;
+    session.prepared = false;
+    closeSession(session);
+    if (!current) {
+      return;
+    }
     mConnected = false;
     mSecurityNegotiated = false;
-    // 如果正在等待连接，通知连接失败
-    if (mConnectLatch != null && mConnectLatch.getCount() > 0) {
-      mConnectResult = false;
-      mConnectLatch.countDown();
+    // 如果正在等待连接，返回连接失败
+    finishConnect(false);
+    // 连接意外断开时自动重连，用户主动断开的不处理
+    if (!session.closeRequested) {
+      String address = session.device.getAddress();
+      if (mReconnectSupervisor.isRecovering(address)) {
+        mReconnectSupervisor.onReconnectFailed(address);
+      } else if (prepared) {
+        mLog.w("Connection lost, reconnecting: {}", address);
+        mReconnectSupervisor.onLinkLost(session.device, session.securityNegotiated);
+      }
+    }
+  }
+
+  /**
+   * 取消当前设备的自动重连
+   */
+  private void cancelRecovery() {
+    if (mDevice != null) {
+      mReconnectSupervisor.cancel(mDevice.getAddress());
+    }
+  }
+
+  /**
+   * 操作收到结果，不再需要在重连后恢复
+   * 因连接断开而失败的操作保留，重连后重新发送
+   */
+  private void finishOperation(BlufiClientPool.Session session, int kind, int status) {
+    if (status == BlufiCallback.STATUS_SUCCESS || session.client.isConnected()) {
+      mReconnectSupervisor.onOperationFinished(session.device.getAddress(), kind);
     }
   }
 
@@ -454,63 +1117,155 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
    * MTU 设置完成，服务发现完成，可以开始安全协商
    * 参考 BlufiActivity，只通知 Flutter 端已准备好，不做其他处理
    */
-  private void onGattServiceCharacteristicDiscovered() {
+  private void onGattServiceCharacteristicDiscovered(BlufiClientPool.Session session) {
+    session.prepared = true;
     mLog.d("GATT prepared, ready for operations");
     updateMessage(makeJson("gatt_prepared","1"));
+    // 重连后 MTU 已重新协商，继续恢复安全协商和中断的操作
+    mReconnectSupervisor.onReconnected(session.device.getAddress());
+  }
+
+  /**
+   * 执行自动重连的各个步骤，在主线程调用
+   */
+  private class Reconnector implements BlufiReconnectSupervisor.Reconnector {
+    @Override
+    public void reconnect(BluetoothDevice device) {
+      BlufiClientPool.Session session = mSession;
+      if (session != null && !session.device.getAddress().equals(device.getAddress())) {
+        // 已经在使用其他设备，放弃重连
+        mReconnectSupervisor.cancel(device.getAddress());
+        return;
+      }
+      mLog.d("Reconnect to device: {}", device.getAddress());
+      openSession(device);
+    }
+
+    @Override
+    public void negotiateSecurity(String address) {
+      BlufiClientPool.Session session = mSession;
+      if (session == null || !session.device.getAddress().equals(address)) {
+        mReconnectSupervisor.onSecurityRestored(address, false);
+        return;
+      }
+      session.client.negotiateSecurity();
+    }
+
+    @Override
+    public void disconnect(String address) {
+      BlufiClientPool.Session session = mSession;
+      if (session != null && session.device.getAddress().equals(address)) {
+        session.client.requestCloseConnection();
+      }
+    }
+
+    @Override
+    public void onRecovered(BluetoothDevice device, BlufiReconnectSupervisor.Operation operation,
+                            long recoveryTime) {
+      mLog.d("Connection recovered in {}ms: {}", recoveryTime, device.getAddress());
+      updateMessage(makeJson("peripheral_reconnect","1"));
+      updateMessage(makeJson("reconnect_time", String.valueOf(recoveryTime)));
+      BlufiClientPool.Session session = mSession;
+      if (operation == null || session == null || !session.device.getAddress().equals(device.getAddress())) {
+        return;
+      }
+      switch (operation.kind) {
+        case BlufiReconnectSupervisor.Operation.CONFIGURE:
+          session.client.configure(operation.profile);
+          break;
+        case BlufiReconnectSupervisor.Operation.STATUS:
+          session.statusRequested = true;
+          session.client.requestDeviceStatus();
+          break;
+        case BlufiReconnectSupervisor.Operation.CUSTOM_DATA:
+          session.client.postCustomData(operation.data);
+          break;
+      }
+    }
+
+    @Override
+    public void onGiveUp(BluetoothDevice device) {
+      mLog.w("Reconnect failed: {}", device.getAddress());
+      updateMessage(makeJson("peripheral_reconnect","0"));
+    }
   }
 
 
   @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
   private class GattCallback extends BluetoothGattCallback {
+    private final BlufiClientPool.Session mSession;
+
+    GattCallback(BlufiClientPool.Session session) {
+      mSession = session;
+    }
+
+    /**
+     * 在 Binder 线程上调用，切换到主线程后再修改插件状态
+     */
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+      handler.post(() -> onConnectionState(gatt, status, newState));
+    }
+
+    private void onConnectionState(BluetoothGatt gatt, int status, int newState) {
       String devAddr = gatt.getDevice().getAddress();
-      mLog.d(String.format(Locale.ENGLISH, "onConnectionStateChange addr=%s, status=%d, newState=%d",
-              devAddr, status, newState));
+      mLog.d("onConnectionStateChange addr={}, status={}, newState={}", devAddr, status, newState);
       if (status == BluetoothGatt.GATT_SUCCESS) {
         switch (newState) {
           case BluetoothProfile.STATE_CONNECTED:
             mLog.d("STATE_CONNECTED received, calling onGattConnected");
-            onGattConnected();
-            updateMessage(makeJson("peripheral_connect","1"));
-            mLog.d("Connected to device: " + devAddr);
+            onGattConnected(mSession);
+            if (isCurrentSession(mSession)) {
+              updateMessage(makeJson("peripheral_connect","1"));
+            }
+            mLog.d("Connected to device: {}", devAddr);
             break;
           case BluetoothProfile.STATE_DISCONNECTED:
+            boolean current = isCurrentSession(mSession);
             gatt.close();
-            onGattDisconnected();
-            updateMessage(makeJson("peripheral_connect","0"));
-            mLog.d("Disconnected from device: " + devAddr);
+            onGattDisconnected(mSession);
+            if (current) {
+              updateMessage(makeJson("peripheral_connect","0"));
+            }
+            mLog.d("Disconnected from device: {}", devAddr);
             break;
         }
       } else {
-        mLog.w(String.format(Locale.ENGLISH, "Connection failed: %s, status=%d", devAddr, status));
+        mLog.w("Connection failed: {}, status={}", devAddr, status);
+        boolean current = isCurrentSession(mSession);
         gatt.close();
-        onGattDisconnected();
-        updateMessage(makeJson("peripheral_disconnect","1"));
-        // 连接失败，通知等待连接的线程
-        if (mConnectLatch != null && mConnectLatch.getCount() > 0) {
-          mConnectResult = false;
-          mConnectLatch.countDown();
+        // 等待中的连接结果在 onGattDisconnected 中返回失败
+        onGattDisconnected(mSession);
+        if (current) {
+          updateMessage(makeJson("peripheral_disconnect","1"));
         }
       }
     }
 
+    /**
+     * 在 Binder 线程上调用，切换到主线程后再处理
+     */
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-      mLog.d(String.format(Locale.ENGLISH, "onMtuChanged status=%d, mtu=%d", status, mtu));
+      handler.post(() -> onMtu(mtu, status));
+    }
+
+    private void onMtu(int mtu, int status) {
+      mLog.d("onMtuChanged status={}, mtu={}", status, mtu);
       if (status == BluetoothGatt.GATT_SUCCESS) {
-        // 参考 BlufiActivity，不设置包长度限制，使用默认值
-        // mBlufiClient.setPostPackageLengthLimit(maxLength);
+        // 使用协商后的 MTU，并自动探测最快且可靠的包长度
+        mSession.client.setPackageLengthAutoTuning(true);
+        mLog.d("Post package length: {}", mSession.client.getPostPackageLength());
       } else {
-        mBlufiClient.setPostPackageLengthLimit(20);
+        mSession.client.setPostPackageLengthLimit(20);
       }
 
-      onGattServiceCharacteristicDiscovered();
+      onGattServiceCharacteristicDiscovered(mSession);
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-      mLog.d(String.format(Locale.ENGLISH, "onServicesDiscovered status=%d", status));
+      mLog.d("onServicesDiscovered status={}", status);
       if (status != BluetoothGatt.GATT_SUCCESS) {
         mLog.w("Discover services failed, disconnecting");
         gatt.disconnect();
@@ -520,7 +1275,7 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-      mLog.d(String.format(Locale.ENGLISH, "onDescriptorWrite status=%d", status));
+      mLog.d("onDescriptorWrite status={}", status);
       if (descriptor.getUuid().equals(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR) &&
               descriptor.getCharacteristic().getUuid().equals(BlufiParameter.UUID_NOTIFICATION_CHARACTERISTIC)) {
         if (status == BluetoothGatt.GATT_SUCCESS) {
@@ -532,9 +1287,9 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
     }
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+      // 写入失败由 BlufiClient 重传，不再断开连接
       if (status != BluetoothGatt.GATT_SUCCESS) {
-        mLog.w("Characteristic write failed, disconnecting");
-        gatt.disconnect();
+        mLog.w("Characteristic write failed, status={}", status);
       }
     }
   }
@@ -544,6 +1299,12 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
    * 处理来自 BlufiClient 的各种回调事件
    */
   private class BlufiCallbackMain extends BlufiCallback {
+    private final BlufiClientPool.Session mSession;
+
+    BlufiCallbackMain(BlufiClientPool.Session session) {
+      mSession = session;
+    }
+
     /**
      * GATT 准备完成回调
      * @param client BlufiClient 实例
@@ -556,12 +1317,12 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
         case STATUS_SUCCESS:
           updateMessage(makeJson("discover_service","1"));
           int mtu = BlufiConstants.DEFAULT_MTU_LENGTH;
-          mLog.d("Request MTU " + mtu);
+          mLog.d("Request MTU {}", mtu);
           boolean requestMtu = gatt.requestMtu(mtu);
           if (!requestMtu) {
             mLog.w("Request mtu failed");
             updateMessage(makeJson("request_mtu","0"));
-            onGattServiceCharacteristicDiscovered();
+            onGattServiceCharacteristicDiscovered(mSession);
           } else {
             updateMessage(makeJson("request_mtu","1"));
           }
@@ -601,6 +1362,11 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
      */
     @Override
     public void onNegotiateSecurityResult(BlufiClient client, int status) {
+      mSession.securityNegotiated = status == STATUS_SUCCESS;
+      mReconnectSupervisor.onSecurityRestored(mSession.device.getAddress(), status == STATUS_SUCCESS);
+      if (!isCurrentSession(mSession)) {
+        return;
+      }
       if (status == STATUS_SUCCESS) {
         mSecurityNegotiated = true;
         mLog.d("Negotiate security complete");
@@ -619,6 +1385,7 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
      */
     @Override
     public void onPostConfigureParams(BlufiClient client, int status) {
+      finishOperation(mSession, BlufiReconnectSupervisor.Operation.CONFIGURE, status);
       if (status == STATUS_SUCCESS) {
         mLog.d("Station mode configuration complete, device will attempt to connect to WiFi");
         updateMessage(makeJson("configure_params","1"));
@@ -629,6 +1396,69 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
       }
     }
 
+    /**
+     * 配网方式回调，在 onPostConfigureParams 之前通知实际发送了哪些参数
+     * @param client BlufiClient 实例
+     * @param path CONFIGURE_FULL 全部发送，CONFIGURE_PARTIAL 只发送变化的参数，CONFIGURE_UNCHANGED 设备已配置无需发送
+     */
+    @Override
+    public void onConfigurePath(BlufiClient client, int path) {
+      String value;
+      switch (path) {
+        case CONFIGURE_PARTIAL:
+          value = "partial";
+          break;
+        case CONFIGURE_UNCHANGED:
+          value = "unchanged";
+          break;
+        default:
+          value = "full";
+          break;
+      }
+      mLog.d("Configure path: " + value);
+      updateMessage(makeJson("configure_path", value));
+    }
+
+    /**
+     * 设备状态回调，直接读取状态数据，只在定时查询开启时创建 BlufiStatusResponse
+     * 在 BlufiClient 的事件线程上调用，先从 view 中取出需要的数据，再切换到主线程处理
+     * @param client BlufiClient 实例
+     * @param status 状态码，STATUS_SUCCESS 表示成功
+     * @param view 设备状态数据视图，仅在回调期间有效
+     * @return true 表示已处理
+     */
+    @Override
+    public boolean onDeviceStatusView(BlufiClient client, int status, BlufiStatusView view) {
+      if (status != STATUS_SUCCESS) {
+        return false;
+      }
+      // 定时查询开启时才需要完整的状态对象
+      final BlufiStatusResponse response = mStatusScheduler.isRunning() ? view.toResponse() : null;
+      final boolean wifiConnected = view.isStaConnectWifi();
+      handler.post(() -> onDeviceStatus(response, wifiConnected));
+      return true;
+    }
+
+    private void onDeviceStatus(BlufiStatusResponse response, boolean wifiConnected) {
+      if (response != null) {
+        mStatusScheduler.onStatus(mSession.device.getAddress(), response);
+      }
+      // 定时查询的结果只通过 fleet_status 发送变化，也不结束正在发送的操作
+      if (!mSession.statusRequested) {
+        return;
+      }
+      mSession.statusRequested = false;
+      finishOperation(mSession, BlufiReconnectSupervisor.Operation.STATUS, STATUS_SUCCESS);
+      updateMessage(makeJson("device_status","1"));
+      if (wifiConnected) {
+        updateMessage(makeJson("device_wifi_connect","1"));
+        mLog.d("Device connected to WiFi");
+      } else {
+        updateMessage(makeJson("device_wifi_connect","0"));
+        mLog.d("Device not connected to WiFi");
+      }
+    }
+
     /**
      * 设备状态响应回调
      * @param client BlufiClient 实例
@@ -637,6 +1467,12 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
      */
     @Override
     public void onDeviceStatusResponse(BlufiClient client, int status, BlufiStatusResponse response) {
+      mStatusScheduler.onStatus(mSession.device.getAddress(), status == STATUS_SUCCESS ? response : null);
+      if (!mSession.statusRequested) {
+        return;
+      }
+      mSession.statusRequested = false;
+      finishOperation(mSession, BlufiReconnectSupervisor.Operation.STATUS, status);
       if (status == STATUS_SUCCESS) {
         updateMessage(makeJson("device_status","1"));
         // Check if station is connected to WiFi
@@ -660,18 +1496,102 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
      * @param results WiFi 扫描结果列表
      */
     @Override
-    public void onDeviceScanResult(BlufiClient client, int status, List<BlufiScanResult> results) {
+    public void onDeviceScanList(BlufiClient client, int status, BlufiScanList results) {
+      String address = mSession.device.getAddress();
       if (status == STATUS_SUCCESS) {
-        for (BlufiScanResult scanResult : results) {
-          updateMessage(makeWifiInfoJson(scanResult.getSsid(), scanResult.getRssi()));
-        }
+        // 扫描结果已经在 onDeviceScanPartialResult 中分批发送
+        mScanCache.complete(address);
+        mLog.d("Device scan complete, count={}", results.size());
       } else {
+        mScanCache.invalidate(address);
         mLog.w("Device scan result error, code=" + status);
         updateMessage(makeJson("wifi_info","0"));
       }
     }
 
 
+    /**
+     * 设备 WiFi 扫描结果分批回调，设备仍在发送列表时即可显示
+     * @param client BlufiClient 实例
+     * @param results 本批次的 WiFi 扫描结果
+     */
+    @Override
+    public void onDeviceScanPartialResult(BlufiClient client, BlufiScanList results) {
+      // 合并重复的 SSID，只发送新出现或信号更强的结果
+      List<BlufiScanCache.Item> changed = mScanCache.merge(mSession.device.getAddress(), results);
+      for (BlufiScanCache.Item item : changed) {
+        updateMessage(makeWifiInfoJson(item.ssid, item.rssi));
+      }
+    }
+
+    /**
+     * 自定义数据发送结果回调
+     * @param client BlufiClient 实例
+     * @param status 状态码，STATUS_SUCCESS 表示成功
+     * @param data 发送的自定义数据
+     */
+    @Override
+    public void onPostCustomDataResult(BlufiClient client, int status, byte[] data) {
+      finishOperation(mSession, BlufiReconnectSupervisor.Operation.CUSTOM_DATA, status);
+      updateMessage(makeJson("post_custom_data", status == STATUS_SUCCESS ? "1" : "0"));
+    }
+
+    /**
+     * 逻辑通道数据发送完成回调
+     * @param client BlufiClient 实例
+     * @param channel 通道号
+     * @param status 状态码
+     * @param data 发送的数据
+     */
+    @Override
+    public void onPostChannelDataResult(BlufiClient client, int channel, int status, byte[] data) {
+      updateMessage(makeChannelJson("post_channel_data", channel, status == STATUS_SUCCESS ? "1" : "0"));
+    }
+
+    /**
+     * 逻辑通道收到完整消息回调，数据以 Base64 编码发送到 Flutter 端
+     * @param client BlufiClient 实例
+     * @param channel 通道号
+     * @param data 收到的数据
+     */
+    @Override
+    public void onReceiveChannelData(BlufiClient client, int channel, byte[] data) {
+      updateMessage(makeChannelJson("channel_data", channel, Base64.encodeToString(data, Base64.NO_WRAP)));
+    }
+
+    /**
+     * 连接参数变化回调，用于比较不同连接优先级和 PHY 下的吞吐量
+     * @param client BlufiClient 实例
+     * @param priority 请求的连接优先级
+     * @param txPhy 发送 PHY
+     * @param rxPhy 接收 PHY
+     * @param interval 连接间隔（毫秒）
+     */
+    @Override
+    public void onLinkProfileChanged(BlufiClient client, int priority, int txPhy, int rxPhy, float interval) {
+      mLog.d("Link profile: priority={}, interval={}ms, throughput={}B/s",
+              priority, interval, client.getLinkThroughput(priority));
+      mLog.d("Link PHY: tx={}, rx={}", txPhy, rxPhy);
+      if (isCurrentSession(mSession)) {
+        updateMessage(makeJson("link_profile",
+                String.format(Locale.ENGLISH, "%d,%d,%d,%.2f", priority, txPhy, rxPhy, interval)));
+      }
+    }
+
+    /**
+     * 链路质量等级变化回调，信号弱时自动减小包长度并增加发送间隔
+     * @param client BlufiClient 实例
+     * @param grade 链路质量等级，0 良好，1 一般，2 较差
+     * @param rssi 平滑后的信号强度（dBm）
+     */
+    @Override
+    public void onLinkGradeChanged(BlufiClient client, int grade, int rssi) {
+      mLog.d("Link grade: {}, rssi: {}", grade, rssi);
+      if (isCurrentSession(mSession)) {
+        updateMessage(makeJson("link_grade", String.valueOf(grade)));
+      }
+    }
+
     /**
      * 错误回调
      * @param client BlufiClient 实例
@@ -685,33 +1605,47 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
         return;
       }
 
-      mLog.w(String.format(Locale.ENGLISH, "Device reported error code: %d", errCode));
+      mLog.w("Device reported error code: {}", errCode);
       updateMessage(makeJson("receive_error_code", String.valueOf(errCode)));
 
       // Handle critical errors
       if (errCode == CODE_GATT_WRITE_TIMEOUT) {
         mLog.w("GATT write timeout, closing connection");
-        client.close();
-        onGattDisconnected();
+        onGattDisconnected(mSession);
       }
     }
   }
 
 
   private void updateMessage(String message) {
-    Log.v("message", message);
+    mLog.v("message: {}", message);
 
-    if (sink != null) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      if (sink != null) {
+        sink.success(message);
+      }
+    } else if (sink != null) {
       handler.post(
               new Runnable() {
                 @Override
                 public void run() {
-                  sink.success(message);
+                  if (sink != null) {
+                    sink.success(message);
+                  }
                 }
               });
     }
   }
 
+  private String makeChannelJson(String command, int channel, String data) {
+    String address = "";
+    if (mDevice != null) {
+      address = mDevice.getAddress();
+    }
+    return String.format(Locale.ENGLISH, "{\"key\":\"%s\",\"value\":{\"channel\":\"%d\",\"data\":\"%s\"},\"address\":\"%s\"}",
+            command, channel, data, address);
+  }
+
   private String makeJson(String command, String data) {
 
     String address = "";
@@ -721,6 +1655,32 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
     return String.format("{\"key\":\"%s\",\"value\":\"%s\",\"address\":\"%s\"}", command, data, address);
   }
 
+  /**
+   * 设备状态发生变化，推送到 Flutter 端
+   */
+  private void onFleetStatusChanged(String address, BlufiStatusResponse response) {
+    mLog.d("Device status changed: {}", address);
+    String ssid = response.getStaSSID();
+    updateMessage(String.format(Locale.ENGLISH,
+            "{\"key\":\"fleet_status\",\"value\":{\"address\":\"%s\",\"opMode\":\"%d\",\"staConnectionStatus\":\"%d\",\"wifiConnected\":\"%s\",\"ssid\":\"%s\"}}",
+            address, response.getOpMode(), response.getStaConnectionStatus(),
+            response.isStaConnectWifi() ? "1" : "0", ssid != null ? ssid : ""));
+  }
+
+  private Map<String, Object> makeStatusMap(BlufiStatusResponse response) {
+    Map<String, Object> map = new HashMap<>();
+    map.put("opMode", response.getOpMode());
+    map.put("staConnectionStatus", response.getStaConnectionStatus());
+    map.put("wifiConnected", response.isStaConnectWifi());
+    map.put("ssid", response.getStaSSID());
+    map.put("bssid", response.getStaBSSID());
+    return map;
+  }
+
+  private String makeProvisionJson(String address, String state) {
+    return String.format("{\"key\":\"auto_provision\",\"value\":{\"address\":\"%s\",\"state\":\"%s\"}}", address, state);
+  }
+
   private String makeScanDeviceJson(String address, String name, int rssi) {
     return String.format("{\"key\":\"ble_scan_result\",\"value\":{\"address\":\"%s\",\"name\":\"%s\",\"rssi\":\"%s\"}}", address, name, rssi);
   }
@@ -763,11 +1723,15 @@ public class BlufiPlugin implements FlutterPlugin, ActivityAware, MethodCallHand
         }
       }
 
-      Log.v("ble scan", scanResult.getDevice().getAddress());
+      mLog.v("ble scan: {}", scanResult.getDevice().getAddress());
 
       if (scanResult.getDevice().getName() != null) {
         mDeviceMap.put(scanResult.getDevice().getAddress(), scanResult);
         updateMessage(makeScanDeviceJson(scanResult.getDevice().getAddress(), scanResult.getDevice().getName(), scanResult.getRssi()));
+        // 自动配网时直接放入配网队列，扫描继续进行
+        if (mProvisionQueue.isRunning()) {
+          mProvisionQueue.offer(scanResult.getDevice());
+        }
       }
     }
   }
@@ -0,0 +1,195 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+
+/**
+ * Named provisioning profiles persisted in a compact binary file.
+ * <p>
+ * The file is loaded with one memory-mapped read and every profile keeps its field payloads ready to
+ * post. The layout is big-endian:
+ * <ul>
+ * <li>File header: "BFPS", version 1, profile count</li>
+ * <li>Profile: name, op mode, soft AP security, channel and max connection as one byte each, station
+ * SSID, station password, soft AP SSID, soft AP password</li>
+ * </ul>
+ * The name and the payloads are each a two bytes length followed by the bytes. The file is replaced
+ * atomically on save. It is meant for the app's private storage, the passwords are not encrypted.
+ */
+public final class BlufiProfileStore {
+    private static final byte[] MAGIC = {'B', 'F', 'P', 'S'};
+    private static final int VERSION = 1;
+    private static final int FIELD_LENGTH_MAX = 0xffff;
+
+    private final File mFile;
+    private final Map<String, BlufiProfile> mProfiles = new LinkedHashMap<>();
+
+    public BlufiProfileStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Replace the profiles in memory with the ones of the file. A missing file is an empty store.
+     *
+     * @throws IOException if read failed or the file is not a profile store
+     */
+    public void load() throws IOException {
+        List<BlufiProfile> profiles = new ArrayList<>();
+        if (mFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r");
+                 FileChannel channel = file.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                read(buffer, profiles);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated profile store");
+            }
+        }
+        synchronized (this) {
+            mProfiles.clear();
+            for (BlufiProfile profile : profiles) {
+                mProfiles.put(profile.getName(), profile);
+            }
+        }
+    }
+
+    /**
+     * Write the profiles in memory to the file.
+     *
+     * @throws IOException if write failed
+     */
+    public void save() throws IOException {
+        List<BlufiProfile> profiles;
+        synchronized (this) {
+            profiles = new ArrayList<>(mProfiles.values());
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream fileOS = new FileOutputStream(temp)) {
+            DataOutputStream dataOS = new DataOutputStream(new BufferedOutputStream(fileOS));
+            write(dataOS, profiles);
+            dataOS.flush();
+            fileOS.getFD().sync();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Replace " + mFile + " failed");
+        }
+    }
+
+    /**
+     * Add a profile, or replace the one with the same name. Call {@link #save()} to persist it.
+     *
+     * @throws IllegalArgumentException if the profile has no name or a field is too long
+     */
+    public void put(BlufiProfile profile) {
+        String name = profile.getName();
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Profile name is empty");
+        }
+        checkLength(name.getBytes(StandardCharsets.UTF_8));
+        checkLength(profile.getStaSSID());
+        checkLength(profile.getStaPassword());
+        checkLength(profile.getSoftAPSSID());
+        checkLength(profile.getSoftAPPassword());
+        synchronized (this) {
+            mProfiles.put(name, profile);
+        }
+    }
+
+    /**
+     * @return the profile, or null if there is no profile of the name
+     */
+    public synchronized BlufiProfile get(String name) {
+        return mProfiles.get(name);
+    }
+
+    /**
+     * @return true if the profile existed
+     */
+    public synchronized boolean remove(String name) {
+        return mProfiles.remove(name) != null;
+    }
+
+    /**
+     * @return the profile names in the order they were added
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(mProfiles.keySet());
+    }
+
+    private static void checkLength(byte[] field) {
+        if (field.length > FIELD_LENGTH_MAX) {
+            throw new IllegalArgumentException("Profile field is longer than " + FIELD_LENGTH_MAX + " bytes");
+        }
+    }
+
+    private static void read(ByteBuffer buffer, List<BlufiProfile> profiles) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a profile store");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format(Locale.ENGLISH, "Unsupported profile store, version = %d", version));
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = new String(readField(buffer), StandardCharsets.UTF_8);
+            int opMode = buffer.get() & 0xff;
+            int softAPSecurity = buffer.get() & 0xff;
+            int softAPChannel = buffer.get() & 0xff;
+            int softAPMaxConnection = buffer.get() & 0xff;
+            byte[] staSSID = readField(buffer);
+            byte[] staPassword = readField(buffer);
+            byte[] softAPSSID = readField(buffer);
+            byte[] softAPPassword = readField(buffer);
+            profiles.add(new BlufiProfile(name, opMode, staSSID, staPassword, softAPSecurity,
+                    softAPSSID, softAPPassword, softAPChannel, softAPMaxConnection));
+        }
+    }
+
+    private static byte[] readField(ByteBuffer buffer) {
+        byte[] field = new byte[buffer.getShort() & 0xffff];
+        buffer.get(field);
+        return field;
+    }
+
+    private static void write(DataOutputStream dataOS, List<BlufiProfile> profiles) throws IOException {
+        dataOS.write(MAGIC);
+        dataOS.writeInt(VERSION);
+        dataOS.writeInt(profiles.size());
+        for (BlufiProfile profile : profiles) {
+            writeField(dataOS, profile.getName().getBytes(StandardCharsets.UTF_8));
+            dataOS.writeByte(profile.getOpMode());
+            dataOS.writeByte(profile.getSoftAPSecurity());
+            dataOS.writeByte(Math.max(profile.getSoftAPChannel(), 0));
+            dataOS.writeByte(Math.max(profile.getSoftAPMaxConnection(), 0));
+            writeField(dataOS, profile.getStaSSID());
+            writeField(dataOS, profile.getStaPassword());
+            writeField(dataOS, profile.getSoftAPSSID());
+            writeField(dataOS, profile.getSoftAPPassword());
+        }
+    }
+
+    private static void writeField(DataOutputStream dataOS, byte[] field) throws IOException {
+        dataOS.writeShort(field.length);
+        dataOS.write(field);
+    }
+}
@@ -0,0 +1,321 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import trade.ksanbal.esp_blufi_for_flutter.constants.BlufiConstants;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusView;
+
+/**
+ * Provisions the devices found by a running BLE scan, so the discovery and the provisioning overlap.
+ * <p>
+ * The scan offers every matching advertisement with the {@link BluetoothDevice} of its scan result.
+ * A new device waits in a bounded queue, an advertisement which finds the queue full is dropped and
+ * the device is picked up from a later advertisement. Up to the concurrency limit devices are
+ * provisioned at the same time while the scan goes on: connect, exchange the MTU, configure with the
+ * profile and wait for the device to report its Wi-Fi connection. Every device is provisioned once
+ * per run and its connection is closed when it is done. All the methods and the listener are called
+ * on the handler thread.
+ */
+class BlufiProvisionQueue {
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_CONNECT_FAILED = 1;
+    static final int RESULT_CONFIGURE_FAILED = 2;
+    static final int RESULT_WIFI_FAILED = 3;
+    static final int RESULT_TIMEOUT = 4;
+
+    private final Handler mHandler;
+    private final Host mHost;
+    private final Listener mListener;
+
+    private final ArrayDeque<BluetoothDevice> mQueue = new ArrayDeque<>();
+    private final Map<String, Job> mActive = new LinkedHashMap<>();
+    /**
+     * The devices queued, in progress or done in this run, an address is provisioned only once.
+     */
+    private final Set<String> mSeen = new HashSet<>();
+
+    private BlufiProfile mProfile;
+    private int mConcurrency = BlufiConstants.AUTO_PROVISION_CONCURRENCY;
+    private int mCapacity = BlufiConstants.AUTO_PROVISION_QUEUE_CAPACITY;
+    private long mTimeout = BlufiConstants.AUTO_PROVISION_TIMEOUT;
+    private boolean mRunning;
+
+    private int mSucceeded;
+    private int mFailed;
+    private int mDropped;
+
+    BlufiProvisionQueue(Handler handler, Host host, Listener listener) {
+        mHandler = handler;
+        mHost = host;
+        mListener = listener;
+    }
+
+    /**
+     * Start a run, the devices of the previous run may be provisioned again.
+     *
+     * @param concurrency the devices provisioned at the same time, at least 1
+     * @param capacity the devices waiting at most, at least 1
+     * @param timeout the time for a device from connect to the Wi-Fi report in milliseconds
+     */
+    void start(BlufiProfile profile, int concurrency, int capacity, long timeout) {
+        mProfile = profile;
+        mConcurrency = Math.max(concurrency, 1);
+        mCapacity = Math.max(capacity, 1);
+        mTimeout = timeout;
+        mRunning = true;
+        mQueue.clear();
+        mSeen.clear();
+        mSeen.addAll(mActive.keySet());
+        mSucceeded = 0;
+        mFailed = 0;
+        mDropped = 0;
+    }
+
+    /**
+     * Stop taking devices, the waiting ones are dropped and the ones in progress finish.
+     */
+    void stop() {
+        mRunning = false;
+        mQueue.clear();
+    }
+
+    /**
+     * Stop and close the connections in progress.
+     */
+    void close() {
+        stop();
+        List<Job> jobs = new ArrayList<>(mActive.values());
+        mActive.clear();
+        for (Job job : jobs) {
+            mHandler.removeCallbacks(job.timeoutRunnable);
+            job.client.close();
+        }
+    }
+
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * A matching advertisement of the device was scanned.
+     *
+     * @return true if the device is queued
+     */
+    boolean offer(BluetoothDevice device) {
+        String address = device.getAddress();
+        if (!mRunning || mSeen.contains(address)) {
+            return false;
+        }
+        if (mQueue.size() >= mCapacity) {
+            mDropped++;
+            return false;
+        }
+        mSeen.add(address);
+        mQueue.add(device);
+        startNext();
+        return true;
+    }
+
+    int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    int getActiveCount() {
+        return mActive.size();
+    }
+
+    int getSucceededCount() {
+        return mSucceeded;
+    }
+
+    int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * @return the advertisements dropped because the queue was full
+     */
+    int getDroppedCount() {
+        return mDropped;
+    }
+
+    private void startNext() {
+        while (mActive.size() < mConcurrency && !mQueue.isEmpty()) {
+            BluetoothDevice device = mQueue.poll();
+            Job job = new Job(device, mHost.createClient(device), mProfile);
+            mActive.put(device.getAddress(), job);
+            job.client.setGattCallback(new JobGattCallback(job));
+            job.client.setBlufiCallback(new JobCallback(job));
+            mHandler.postDelayed(job.timeoutRunnable, mTimeout);
+            mListener.onStarted(device.getAddress());
+            job.client.connect();
+        }
+    }
+
+    private void finish(Job job, int result) {
+        if (mActive.get(job.device.getAddress()) != job) {
+            return;
+        }
+        mActive.remove(job.device.getAddress());
+        mHandler.removeCallbacks(job.timeoutRunnable);
+        job.client.close();
+        if (result == RESULT_SUCCESS) {
+            mSucceeded++;
+        } else {
+            mFailed++;
+        }
+        mListener.onFinished(job.device.getAddress(), result);
+        startNext();
+    }
+
+    private void configure(Job job) {
+        if (mActive.get(job.device.getAddress()) != job || job.configuring) {
+            return;
+        }
+        job.configuring = true;
+        job.client.configure(job.profile);
+    }
+
+    private static boolean reportsWifi(BlufiProfile profile) {
+        int opMode = profile.getOpMode();
+        return opMode == BlufiParameter.OP_MODE_STA || opMode == BlufiParameter.OP_MODE_STASOFTAP;
+    }
+
+    private final class Job {
+        final BluetoothDevice device;
+        final BlufiClient client;
+        final BlufiProfile profile;
+        final Runnable timeoutRunnable;
+
+        boolean configuring;
+        boolean configured;
+        int path = BlufiCallback.CONFIGURE_FULL;
+
+        Job(BluetoothDevice device, BlufiClient client, BlufiProfile profile) {
+            this.device = device;
+            this.client = client;
+            this.profile = profile;
+            timeoutRunnable = () -> finish(this, RESULT_TIMEOUT);
+        }
+    }
+
+    /**
+     * The GATT callbacks arrive on a binder thread, they are moved to the handler thread.
+     */
+    private final class JobGattCallback extends BluetoothGattCallback {
+        private final Job mJob;
+
+        JobGattCallback(Job job) {
+            mJob = job;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mHandler.post(() -> finish(mJob, RESULT_CONNECT_FAILED));
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mHandler.post(() -> {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mJob.client.setPackageLengthAutoTuning(true);
+                } else {
+                    mJob.client.setPostPackageLengthLimit(20);
+                }
+                configure(mJob);
+            });
+        }
+    }
+
+    private final class JobCallback extends BlufiCallback {
+        private final Job mJob;
+
+        JobCallback(Job job) {
+            mJob = job;
+        }
+
+        @Override
+        public void onGattPrepared(BlufiClient client, int status, BluetoothGatt gatt) {
+            if (status != STATUS_SUCCESS) {
+                finish(mJob, RESULT_CONNECT_FAILED);
+                return;
+            }
+            if (!gatt.requestMtu(BlufiConstants.DEFAULT_MTU_LENGTH)) {
+                configure(mJob);
+            }
+        }
+
+        @Override
+        public void onConfigurePath(BlufiClient client, int path) {
+            mJob.path = path;
+        }
+
+        @Override
+        public void onPostConfigureParams(BlufiClient client, int status) {
+            if (status != STATUS_SUCCESS) {
+                finish(mJob, RESULT_CONFIGURE_FAILED);
+                return;
+            }
+            mJob.configured = true;
+            // Nothing was posted or the mode doesn't connect a station, no report comes
+            if (mJob.path == CONFIGURE_UNCHANGED || !reportsWifi(mJob.profile)) {
+                finish(mJob, RESULT_SUCCESS);
+            }
+        }
+
+        /**
+         * Called on the event loop of the client, the view is only valid during the call.
+         */
+        @Override
+        public boolean onDeviceStatusView(BlufiClient client, int status, BlufiStatusView view) {
+            if (status != STATUS_SUCCESS) {
+                return true;
+            }
+            int connection = view.getStaConnectionStatus();
+            mHandler.post(() -> {
+                if (!mJob.configured) {
+                    return;
+                }
+                if (connection == BlufiParameter.STA_CONN_SUCCESS) {
+                    finish(mJob, RESULT_SUCCESS);
+                } else if (connection == BlufiParameter.STA_CONN_FAIL) {
+                    finish(mJob, RESULT_WIFI_FAILED);
+                }
+                // Still connecting, or joined and waiting for DHCP: wait until the job timeout
+            });
+            return true;
+        }
+    }
+
+    interface Host {
+        /**
+         * Create a client for the device with the settings of the plugin, its callbacks are set by the queue.
+         */
+        BlufiClient createClient(BluetoothDevice device);
+    }
+
+    interface Listener {
+        void onStarted(String address);
+
+        /**
+         * @param result {@link #RESULT_SUCCESS} or the stage that failed
+         */
+        void onFinished(String address, int result);
+    }
+}
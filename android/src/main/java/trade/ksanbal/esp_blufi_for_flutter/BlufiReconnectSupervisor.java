@@ -0,0 +1,288 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import trade.ksanbal.esp_blufi_for_flutter.constants.BlufiConstants;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+
+/**
+ * Re-establishes the connection of a session lost unexpectedly and resumes the operation it interrupted.
+ * <p>
+ * The supervisor only decides when to act, the {@link Reconnector} does the work: connect the device
+ * again, which exchanges the MTU again before the GATT is reported prepared, negotiate the security if it
+ * had been negotiated, then post the interrupted operation again. The attempts are spaced by a backoff
+ * which doubles on every failed attempt.
+ */
+class BlufiReconnectSupervisor {
+    private final Handler mHandler;
+    private final Reconnector mReconnector;
+    private final Map<String, State> mStates = new HashMap<>();
+
+    private boolean mEnabled = true;
+    private int mMaxAttempts = BlufiConstants.RECONNECT_MAX_ATTEMPTS;
+    private long mInitialBackoff = BlufiConstants.RECONNECT_INITIAL_BACKOFF;
+    private long mMaxBackoff = BlufiConstants.RECONNECT_MAX_BACKOFF;
+
+    private volatile long mLastRecoveryTime = -1;
+
+    BlufiReconnectSupervisor(Handler handler, Reconnector reconnector) {
+        mHandler = handler;
+        mReconnector = reconnector;
+    }
+
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            for (State state : mStates.values()) {
+                mHandler.removeCallbacks(state.attempt);
+            }
+            mStates.clear();
+        }
+    }
+
+    /**
+     * @param maxAttempts the connection attempts before giving up
+     * @param initialBackoff the wait before the first attempt, in milliseconds
+     * @param maxBackoff the longest wait between two attempts, in milliseconds
+     */
+    synchronized void setPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mInitialBackoff = Math.max(initialBackoff, 0L);
+        mMaxBackoff = Math.max(maxBackoff, mInitialBackoff);
+    }
+
+    /**
+     * @return the time from the link loss to the resumed operation of the last recovery in
+     * milliseconds, or -1 if no session has recovered
+     */
+    long getLastRecoveryTime() {
+        return mLastRecoveryTime;
+    }
+
+    /**
+     * Remember the operation posted on the device, it is resumed if the link is lost before it finishes.
+     */
+    synchronized void onOperationStarted(String address, Operation operation) {
+        getState(address).operation = operation;
+    }
+
+    /**
+     * The operation got its result, it no longer needs to be resumed. A result of another kind, such as
+     * a status polled while a configure is posted, leaves the remembered operation.
+     *
+     * @param kind the {@link Operation} kind of the result
+     */
+    synchronized void onOperationFinished(String address, int kind) {
+        State state = mStates.get(address);
+        if (state == null || state.operation == null || state.operation.kind != kind) {
+            return;
+        }
+        state.operation = null;
+        if (state.lostTime < 0) {
+            mStates.remove(address);
+        }
+    }
+
+    synchronized boolean isRecovering(String address) {
+        State state = mStates.get(address);
+        return state != null && state.lostTime >= 0;
+    }
+
+    /**
+     * The connection of the session in use was lost without the user asking.
+     *
+     * @param secured true if the security had been negotiated on the lost connection
+     */
+    synchronized void onLinkLost(BluetoothDevice device, boolean secured) {
+        if (!mEnabled) {
+            mStates.remove(device.getAddress());
+            return;
+        }
+        State state = getState(device.getAddress());
+        state.device = device;
+        state.secured = secured;
+        state.lostTime = SystemClock.elapsedRealtime();
+        state.attempts = 0;
+        scheduleAttempt(state);
+    }
+
+    /**
+     * The reconnect attempt failed before the GATT was prepared.
+     */
+    synchronized void onReconnectFailed(String address) {
+        State state = mStates.get(address);
+        if (state == null || state.lostTime < 0) {
+            return;
+        }
+        if (state.attempts >= mMaxAttempts) {
+            mStates.remove(address);
+            final BluetoothDevice device = state.device;
+            mHandler.post(() -> mReconnector.onGiveUp(device));
+            return;
+        }
+        scheduleAttempt(state);
+    }
+
+    /**
+     * The GATT of the new connection is prepared and the MTU is exchanged.
+     */
+    synchronized void onReconnected(String address) {
+        State state = mStates.get(address);
+        if (state == null || state.lostTime < 0) {
+            return;
+        }
+        if (state.secured) {
+            mHandler.post(() -> mReconnector.negotiateSecurity(address));
+        } else {
+            resume(state);
+        }
+    }
+
+    /**
+     * The security negotiation of the new connection finished.
+     */
+    synchronized void onSecurityRestored(String address, boolean success) {
+        State state = mStates.get(address);
+        if (state == null || state.lostTime < 0) {
+            return;
+        }
+        if (success) {
+            resume(state);
+        } else {
+            // Retry with a new connection
+            mHandler.post(() -> mReconnector.disconnect(address));
+        }
+    }
+
+    /**
+     * The user closed the session, don't reconnect it.
+     */
+    synchronized void cancel(String address) {
+        State state = mStates.remove(address);
+        if (state != null) {
+            mHandler.removeCallbacks(state.attempt);
+        }
+    }
+
+    private State getState(String address) {
+        State state = mStates.get(address);
+        if (state == null) {
+            state = new State();
+            mStates.put(address, state);
+        }
+        return state;
+    }
+
+    private void scheduleAttempt(State state) {
+        long backoff = mInitialBackoff << Math.min(state.attempts, 16);
+        if (backoff > mMaxBackoff || backoff < 0) {
+            backoff = mMaxBackoff;
+        }
+        state.attempts++;
+        mHandler.removeCallbacks(state.attempt);
+        mHandler.postDelayed(state.attempt, backoff);
+    }
+
+    private void resume(State state) {
+        final long recoveryTime = SystemClock.elapsedRealtime() - state.lostTime;
+        mLastRecoveryTime = recoveryTime;
+        state.lostTime = -1;
+        state.attempts = 0;
+        final BluetoothDevice device = state.device;
+        final Operation operation = state.operation;
+        if (operation == null) {
+            mStates.remove(device.getAddress());
+        }
+        mHandler.post(() -> mReconnector.onRecovered(device, operation, recoveryTime));
+    }
+
+    private final class State {
+        BluetoothDevice device;
+        Operation operation;
+        boolean secured;
+        long lostTime = -1;
+        int attempts;
+
+        final Runnable attempt = () -> {
+            BluetoothDevice target;
+            synchronized (BlufiReconnectSupervisor.this) {
+                if (lostTime < 0 || mStates.get(device.getAddress()) != this) {
+                    return;
+                }
+                target = device;
+            }
+            mReconnector.reconnect(target);
+        };
+    }
+
+    /**
+     * An operation which can be posted again on a new connection.
+     */
+    static final class Operation {
+        static final int CONFIGURE = 0;
+        static final int STATUS = 1;
+        static final int CUSTOM_DATA = 2;
+
+        final int kind;
+        final BlufiProfile profile;
+        final byte[] data;
+
+        private Operation(int kind, BlufiProfile profile, byte[] data) {
+            this.kind = kind;
+            this.profile = profile;
+            this.data = data;
+        }
+
+        static Operation configure(BlufiProfile profile) {
+            return new Operation(CONFIGURE, profile, null);
+        }
+
+        static Operation status() {
+            return new Operation(STATUS, null, null);
+        }
+
+        static Operation customData(byte[] data) {
+            return new Operation(CUSTOM_DATA, null, data);
+        }
+    }
+
+    /**
+     * Does the work of the recovery, all the methods are invoked on the handler thread.
+     */
+    interface Reconnector {
+        /**
+         * Open a new connection to the device, the result is reported by {@link #onReconnected(String)}
+         * or {@link #onReconnectFailed(String)}.
+         */
+        void reconnect(BluetoothDevice device);
+
+        /**
+         * Negotiate the security on the new connection, the result is reported by
+         * {@link #onSecurityRestored(String, boolean)}.
+         */
+        void negotiateSecurity(String address);
+
+        /**
+         * Drop the new connection, it will be reported by {@link #onReconnectFailed(String)}.
+         */
+        void disconnect(String address);
+
+        /**
+         * The connection is restored.
+         *
+         * @param operation the interrupted operation to post again, or null if there was none
+         * @param recoveryTime from the link loss to now, in milliseconds
+         */
+        void onRecovered(BluetoothDevice device, Operation operation, long recoveryTime);
+
+        /**
+         * All the attempts failed.
+         */
+        void onGiveUp(BluetoothDevice device);
+    }
+}
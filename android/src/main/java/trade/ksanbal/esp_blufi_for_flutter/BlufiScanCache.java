@@ -0,0 +1,125 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import trade.ksanbal.esp_blufi_for_flutter.constants.BlufiConstants;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
+
+/**
+ * Cache the last Wi-Fi scan results of each device.
+ * <p>
+ * Duplicate SSIDs are merged by keeping the strongest RSSI, and the entries are kept sorted by
+ * RSSI in descending order. A completed scan is served from the cache until the TTL expires.
+ */
+class BlufiScanCache {
+    private static final Comparator<Item> RSSI_DESCENDING = (o1, o2) -> Integer.compare(o2.rssi, o1.rssi);
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mTtl = BlufiConstants.SCAN_CACHE_TTL;
+
+    /**
+     * @param ttl in milliseconds, 0 or negative disable the cache
+     */
+    synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * Get the completed scan results if they have not expired.
+     *
+     * @param address device address
+     * @return sorted results, or null if there is no fresh results
+     */
+    synchronized List<Item> getFresh(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry == null || entry.completeTime < 0 || mTtl <= 0) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.completeTime >= mTtl) {
+            return null;
+        }
+        return new ArrayList<>(entry.items);
+    }
+
+    /**
+     * Start collecting a new scan of the device, the old results are dropped.
+     */
+    synchronized void beginScan(String address) {
+        mEntries.put(address, new Entry());
+    }
+
+    /**
+     * Merge the received scan results.
+     *
+     * @param address device address
+     * @param results received results
+     * @return the items that are new or got a stronger RSSI, sorted by RSSI
+     */
+    synchronized List<Item> merge(String address, BlufiScanList results) {
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(address, entry);
+        }
+
+        List<Item> changed = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            String ssid = results.getSsid(i);
+            int rssi = results.getRssi(i);
+            Item item = entry.itemMap.get(ssid);
+            if (item == null) {
+                item = new Item(ssid, rssi);
+                entry.itemMap.put(ssid, item);
+                entry.items.add(item);
+                changed.add(item);
+            } else if (rssi > item.rssi) {
+                item.rssi = rssi;
+                if (!changed.contains(item)) {
+                    changed.add(item);
+                }
+            }
+        }
+        if (!changed.isEmpty()) {
+            Collections.sort(entry.items, RSSI_DESCENDING);
+            Collections.sort(changed, RSSI_DESCENDING);
+        }
+        return changed;
+    }
+
+    /**
+     * Mark the scan of the device complete, the TTL starts now.
+     */
+    synchronized void complete(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry != null) {
+            entry.completeTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized void invalidate(String address) {
+        mEntries.remove(address);
+    }
+
+    static class Item {
+        final String ssid;
+        int rssi;
+
+        Item(String ssid, int rssi) {
+            this.ssid = ssid;
+            this.rssi = rssi;
+        }
+    }
+
+    private static class Entry {
+        final List<Item> items = new ArrayList<>();
+        final Map<String, Item> itemMap = new HashMap<>();
+        long completeTime = -1;
+    }
+}
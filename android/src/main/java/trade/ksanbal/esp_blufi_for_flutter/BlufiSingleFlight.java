@@ -0,0 +1,68 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesce identical requests while one of them is in flight.
+ * <p>
+ * The first caller issues the request, the following callers only join it until the response
+ * arrives. A request without response for longer than the stale timeout is issued again, the
+ * waiters joined before are kept.
+ */
+class BlufiSingleFlight {
+    private final long mStaleTimeoutNanos;
+    private final BlufiClock mClock;
+
+    private int mWaiters;
+    private long mIssueTime;
+
+    private long mIssuedCount;
+    private long mCoalescedCount;
+
+    /**
+     * @param staleTimeout in milliseconds
+     */
+    BlufiSingleFlight(long staleTimeout, BlufiClock clock) {
+        mStaleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(staleTimeout);
+        mClock = clock;
+    }
+
+    /**
+     * Join the request.
+     *
+     * @return true if the caller should issue the request, false if it joined the one in flight
+     */
+    synchronized boolean join() {
+        long now = mClock.nanoTime();
+        if (mWaiters > 0 && now - mIssueTime < mStaleTimeoutNanos) {
+            mWaiters++;
+            mCoalescedCount++;
+            return false;
+        }
+
+        mWaiters++;
+        mIssueTime = now;
+        mIssuedCount++;
+        return true;
+    }
+
+    /**
+     * Complete the request in flight.
+     *
+     * @return the count of callers waiting for the response, at least 1 so that an unsolicited
+     * response is still delivered once
+     */
+    synchronized int complete() {
+        int waiters = mWaiters;
+        mWaiters = 0;
+        return Math.max(waiters, 1);
+    }
+
+    synchronized long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
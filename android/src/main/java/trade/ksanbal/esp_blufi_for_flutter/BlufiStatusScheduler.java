@@ -0,0 +1,150 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
+
+/**
+ * Polls the WiFi status of all the ready sessions of the pool on a cadence and keeps the latest
+ * status of every device.
+ * <p>
+ * One device is polled per tick and the ticks are spread evenly over the interval, so with n devices
+ * a request goes out every interval / n instead of all of them at once. The device polled the
+ * longest ago goes first. Only a status which differs from the previous one of the device is
+ * reported to the listener.
+ */
+class BlufiStatusScheduler {
+    private final Handler mHandler;
+    private final BlufiClientPool mPool;
+    private final Listener mListener;
+    private final Runnable mTickRunnable;
+
+    private final Map<String, BlufiStatusResponse> mStatuses = new ConcurrentHashMap<>();
+    private final Set<String> mPending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The time of the last poll per device, only touched on the handler thread.
+     */
+    private final Map<String, Long> mPollTimes = new HashMap<>();
+
+    private volatile long mInterval = -1;
+
+    BlufiStatusScheduler(Handler handler, BlufiClientPool pool, Listener listener) {
+        mHandler = handler;
+        mPool = pool;
+        mListener = listener;
+        mTickRunnable = this::tick;
+    }
+
+    /**
+     * Start polling, or change the cadence of the running polling.
+     *
+     * @param interval the time between two polls of the same device in milliseconds
+     */
+    void start(long interval) {
+        mInterval = interval;
+        mHandler.removeCallbacks(mTickRunnable);
+        mHandler.post(mTickRunnable);
+    }
+
+    void stop() {
+        mInterval = -1;
+        mHandler.removeCallbacks(mTickRunnable);
+        mPending.clear();
+    }
+
+    boolean isRunning() {
+        return mInterval > 0;
+    }
+
+    /**
+     * @return the latest status of the device, or null if none was received
+     */
+    BlufiStatusResponse getStatus(String address) {
+        return mStatuses.get(address);
+    }
+
+    /**
+     * @return the latest status of every device
+     */
+    Map<String, BlufiStatusResponse> getStatuses() {
+        return new HashMap<>(mStatuses);
+    }
+
+    /**
+     * A status result of the device arrived, whether it was requested by a poll or not.
+     *
+     * @param response the decoded status, or null if the request failed
+     */
+    void onStatus(String address, BlufiStatusResponse response) {
+        mPending.remove(address);
+        if (response == null) {
+            return;
+        }
+        BlufiStatusResponse previous = mStatuses.put(address, response);
+        if (!response.equals(previous)) {
+            mListener.onStatusChanged(address, response);
+        }
+    }
+
+    /**
+     * The session of the device is closed, forget its status.
+     */
+    void remove(String address) {
+        mPending.remove(address);
+        mStatuses.remove(address);
+    }
+
+    private void tick() {
+        long interval = mInterval;
+        if (interval <= 0) {
+            return;
+        }
+        List<BlufiClientPool.Session> sessions = mPool.getReadySessions();
+        mPollTimes.keySet().retainAll(addressesOf(sessions));
+
+        BlufiClientPool.Session next = null;
+        long nextPollTime = Long.MAX_VALUE;
+        for (BlufiClientPool.Session session : sessions) {
+            Long pollTime = mPollTimes.get(session.device.getAddress());
+            long time = pollTime == null ? Long.MIN_VALUE : pollTime;
+            if (time < nextPollTime) {
+                next = session;
+                nextPollTime = time;
+            }
+        }
+        if (next != null) {
+            String address = next.device.getAddress();
+            mPollTimes.put(address, SystemClock.elapsedRealtime());
+            // Don't stack the requests on a device which doesn't answer, its deadline fails it
+            if (mPending.add(address)) {
+                next.client.requestDeviceStatus();
+            }
+        }
+
+        mHandler.postDelayed(mTickRunnable, interval / Math.max(sessions.size(), 1));
+    }
+
+    private static Set<String> addressesOf(List<BlufiClientPool.Session> sessions) {
+        Set<String> addresses = new HashSet<>();
+        for (BlufiClientPool.Session session : sessions) {
+            addresses.add(session.device.getAddress());
+        }
+        return addresses;
+    }
+
+    interface Listener {
+        /**
+         * Invoked on the thread the status results are delivered on.
+         */
+        void onStatusChanged(String address, BlufiStatusResponse response);
+    }
+}
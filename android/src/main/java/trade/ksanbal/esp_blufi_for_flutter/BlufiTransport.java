@@ -0,0 +1,32 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+/**
+ * The link that carries the Blufi frames between BlufiClientImpl and the device.
+ * <p>
+ * The GATT connection is the transport in production, a simulated device or a recorded session can
+ * take its place to run the protocol without radios.
+ */
+interface BlufiTransport {
+    /**
+     * Start the transport, the frames received and the write results are reported to the listener.
+     */
+    void open(Listener listener);
+
+    /**
+     * Start writing a frame, the result is reported by {@link Listener#onWritten(boolean)}.
+     *
+     * @return false if the link is not ready to write at all, nothing is reported then
+     */
+    boolean write(byte[] frame);
+
+    /**
+     * @return the negotiated MTU, or -1 if it is unknown
+     */
+    int getMtu();
+
+    interface Listener {
+        void onWritten(boolean success);
+
+        void onReceived(byte[] frame);
+    }
+}
@@ -7,4 +7,26 @@ import java.util.UUID;
 public final class BlufiConstants {
     public static final int DEFAULT_MTU_LENGTH = 270;
     public static final long GATT_WRITE_TIMEOUT = 10000L;
+    public static final long CONNECT_TIMEOUT = 30000L;
+    public static final long OPERATION_TIMEOUT = 20000L;
+
+    public static final int FRAME_RETRIES = 3;
+    public static final int MESSAGE_RETRIES = 8;
+    public static final long RETRY_BACKOFF = 20L;
+
+    public static final int RECONNECT_MAX_ATTEMPTS = 5;
+    public static final long RECONNECT_INITIAL_BACKOFF = 500L;
+    public static final long RECONNECT_MAX_BACKOFF = 8000L;
+
+    public static final long STATUS_POLL_INTERVAL = 10000L;
+
+    public static final int CONNECTION_POOL_MAX_SIZE = 4;
+    public static final long CONNECTION_POOL_IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+    public static final int SCAN_RESULT_BATCH_SIZE = 8;
+    public static final long SCAN_CACHE_TTL = 30 * 1000L;
+
+    public static final int AUTO_PROVISION_CONCURRENCY = 2;
+    public static final int AUTO_PROVISION_QUEUE_CAPACITY = 16;
+    public static final long AUTO_PROVISION_TIMEOUT = 60 * 1000L;
 }
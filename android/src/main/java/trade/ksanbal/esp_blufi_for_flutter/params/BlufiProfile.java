@@ -0,0 +1,121 @@
+package trade.ksanbal.esp_blufi_for_flutter.params;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A named set of configure parameters whose fields are already encoded to the payloads posted to the
+ * device, so a batch can configure every device with the same profile without encoding anything per
+ * device.
+ * <p>
+ * A profile is immutable. The payload arrays are shared by every configure with the profile and must
+ * not be modified.
+ */
+public final class BlufiProfile {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String mName;
+    private final int mOpMode;
+
+    private final byte[] mStaSSID;
+    private final byte[] mStaPassword;
+
+    private final int mSoftAPSecurity;
+    private final byte[] mSoftAPSSID;
+    private final byte[] mSoftAPPassword;
+    private final int mSoftAPChannel;
+    private final int mSoftAPMaxConnection;
+
+    /**
+     * @param name the profile name, null for a profile which is not stored
+     * @param staSSID the UTF-8 station SSID, null if none
+     * @param staPassword the UTF-8 station password, null if none
+     * @param softAPSSID the UTF-8 soft AP SSID, null or empty to keep the device's
+     * @param softAPPassword the UTF-8 soft AP password, null or empty to keep the device's
+     * @param softAPChannel 0 or negative to keep the device's
+     * @param softAPMaxConnection 0 or negative to keep the device's
+     */
+    public BlufiProfile(String name, int opMode, byte[] staSSID, byte[] staPassword, int softAPSecurity,
+                        byte[] softAPSSID, byte[] softAPPassword, int softAPChannel, int softAPMaxConnection) {
+        mName = name;
+        mOpMode = opMode;
+        mStaSSID = staSSID == null ? EMPTY : staSSID;
+        mStaPassword = staPassword == null ? EMPTY : staPassword;
+        mSoftAPSecurity = softAPSecurity;
+        mSoftAPSSID = softAPSSID == null ? EMPTY : softAPSSID;
+        mSoftAPPassword = softAPPassword == null ? EMPTY : softAPPassword;
+        mSoftAPChannel = softAPChannel;
+        mSoftAPMaxConnection = softAPMaxConnection;
+    }
+
+    /**
+     * Encode the parameters once into a profile.
+     *
+     * @param name the profile name, null for a profile which is not stored
+     */
+    public static BlufiProfile from(String name, BlufiConfigureParams params) {
+        return new BlufiProfile(name,
+                params.getOpMode(),
+                params.getStaSSIDBytes(),
+                encode(params.getStaPassword()),
+                params.getSoftAPSecurity(),
+                encode(params.getSoftAPSSID()),
+                encode(params.getSoftAPPassword()),
+                params.getSoftAPChannel(),
+                params.getSoftAPMaxConnection());
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getOpMode() {
+        return mOpMode;
+    }
+
+    public byte[] getStaSSID() {
+        return mStaSSID;
+    }
+
+    public byte[] getStaPassword() {
+        return mStaPassword;
+    }
+
+    public int getSoftAPSecurity() {
+        return mSoftAPSecurity;
+    }
+
+    public byte[] getSoftAPSSID() {
+        return mSoftAPSSID;
+    }
+
+    public byte[] getSoftAPPassword() {
+        return mSoftAPPassword;
+    }
+
+    public int getSoftAPChannel() {
+        return mSoftAPChannel;
+    }
+
+    public int getSoftAPMaxConnection() {
+        return mSoftAPMaxConnection;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "name = %s, op mode = %d, sta ssid = %s, softap security = %d, softap ssid = %s," +
+                        " softap channel = %d, softap max connection = %d",
+                mName,
+                mOpMode,
+                new String(mStaSSID, StandardCharsets.UTF_8),
+                mSoftAPSecurity,
+                new String(mSoftAPSSID, StandardCharsets.UTF_8),
+                mSoftAPChannel,
+                mSoftAPMaxConnection);
+    }
+}
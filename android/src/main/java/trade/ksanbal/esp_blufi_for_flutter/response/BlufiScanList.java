@@ -0,0 +1,198 @@
+package trade.ksanbal.esp_blufi_for_flutter.response;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Wi-Fi scan list decoded in place over the received bytes.
+ * <p>
+ * Each access point is a {@code [length][rssi][ssid]} record. The records are kept as primitive
+ * columns, RSSI in a byte array and the SSID as offset and length into the original bytes. The SSID
+ * string is only decoded when it is accessed.
+ */
+public class BlufiScanList {
+    public static final BlufiScanList EMPTY = new BlufiScanList(new byte[0], new byte[0], new int[0], new int[0], 0, 0);
+
+    private static final SsidCache SSID_CACHE = new SsidCache();
+
+    private final byte[] mData;
+    private final byte[] mRssi;
+    private final int[] mSsidOffset;
+    private final int[] mSsidLength;
+    private final int mSize;
+    private final int mEnd;
+
+    private String[] mSsids;
+
+    private BlufiScanList(byte[] data, byte[] rssi, int[] ssidOffset, int[] ssidLength, int size, int end) {
+        mData = data;
+        mRssi = rssi;
+        mSsidOffset = ssidOffset;
+        mSsidLength = ssidLength;
+        mSize = size;
+        mEnd = end;
+    }
+
+    /**
+     * Decode all the complete records in the data.
+     *
+     * @param data the reassembled scan list data, it is referenced but not copied
+     * @return the decoded list
+     */
+    public static BlufiScanList decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decode the complete records between offset and end.
+     *
+     * @param data the scan list data, it is referenced but not copied
+     * @param offset the position of the first record
+     * @param end the end position of the data
+     * @return the decoded list
+     */
+    public static BlufiScanList decode(byte[] data, int offset, int end) {
+        int count = 0;
+        int position = offset;
+        while (position < end) {
+            int length = data[position] & 0xff;
+            if (length < 1 || position + 1 + length > end) {
+                break;
+            }
+            position += 1 + length;
+            count++;
+        }
+
+        byte[] rssi = new byte[count];
+        int[] ssidOffset = new int[count];
+        int[] ssidLength = new int[count];
+        position = offset;
+        for (int i = 0; i < count; i++) {
+            int length = data[position] & 0xff;
+            rssi[i] = data[position + 1];
+            ssidOffset[i] = position + 2;
+            ssidLength[i] = length - 1;
+            position += 1 + length;
+        }
+
+        return new BlufiScanList(data, rssi, ssidOffset, ssidLength, count, position);
+    }
+
+    /**
+     * @return the position after the last complete record
+     */
+    public int getEnd() {
+        return mEnd;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getRssi(int index) {
+        checkIndex(index);
+        return mRssi[index];
+    }
+
+    public String getSsid(int index) {
+        checkIndex(index);
+        if (mSsids == null) {
+            mSsids = new String[mSize];
+        }
+        String ssid = mSsids[index];
+        if (ssid == null) {
+            ssid = SSID_CACHE.get(mData, mSsidOffset[index], mSsidLength[index]);
+            mSsids[index] = ssid;
+        }
+        return ssid;
+    }
+
+    /**
+     * @return the data the SSID offsets refer to
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getSsidOffset(int index) {
+        checkIndex(index);
+        return mSsidOffset[index];
+    }
+
+    public int getSsidLength(int index) {
+        checkIndex(index);
+        return mSsidLength[index];
+    }
+
+    /**
+     * @return a list view, the BlufiScanResult is created when an element is accessed
+     */
+    public List<BlufiScanResult> asList() {
+        return new ResultList();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+
+    private class ResultList extends AbstractList<BlufiScanResult> implements RandomAccess {
+        @Override
+        public BlufiScanResult get(int index) {
+            BlufiScanResult result = new BlufiScanResult();
+            result.setType(BlufiScanResult.TYPE_WIFI);
+            result.setRssi(getRssi(index));
+            result.setSsid(getSsid(index));
+            return result;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * A small direct-mapped cache, nearby access points show up in every scan.
+     */
+    private static class SsidCache {
+        private static final int SIZE = 64;
+
+        private final byte[][] mKeys = new byte[SIZE][];
+        private final String[] mValues = new String[SIZE];
+
+        synchronized String get(byte[] data, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + data[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+
+            byte[] key = mKeys[slot];
+            if (key != null && regionEquals(key, data, offset, length)) {
+                return mValues[slot];
+            }
+
+            String value = new String(data, offset, length);
+            key = new byte[length];
+            System.arraycopy(data, offset, key, 0, length);
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            return value;
+        }
+
+        private static boolean regionEquals(byte[] key, byte[] data, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
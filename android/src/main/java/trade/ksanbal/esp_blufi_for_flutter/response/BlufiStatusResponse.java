@@ -1,5 +1,7 @@
 package trade.ksanbal.esp_blufi_for_flutter.response;
 
+import java.util.Objects;
+
 import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
 
 public class BlufiStatusResponse {
@@ -253,4 +255,34 @@ public class BlufiStatusResponse {
 
         return info.toString();
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BlufiStatusResponse)) {
+            return false;
+        }
+        BlufiStatusResponse that = (BlufiStatusResponse) o;
+        return mOpMode == that.mOpMode &&
+                mSoftAPSecurity == that.mSoftAPSecurity &&
+                mSoftAPConnCount == that.mSoftAPConnCount &&
+                mSoftAPMaxConnCount == that.mSoftAPMaxConnCount &&
+                mSoftAPChannel == that.mSoftAPChannel &&
+                mStaConnectionStatus == that.mStaConnectionStatus &&
+                mConnectionMaxRetry == that.mConnectionMaxRetry &&
+                mConnectionEndReason == that.mConnectionEndReason &&
+                mConnectionRssi == that.mConnectionRssi &&
+                Objects.equals(mSoftAPPassword, that.mSoftAPPassword) &&
+                Objects.equals(mSoftAPSSID, that.mSoftAPSSID) &&
+                Objects.equals(mStaBSSID, that.mStaBSSID) &&
+                Objects.equals(mStaSSID, that.mStaSSID) &&
+                Objects.equals(mStaPassword, that.mStaPassword);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mOpMode, mStaConnectionStatus, mStaBSSID, mStaSSID, mSoftAPSSID, mSoftAPConnCount);
+    }
 }
@@ -0,0 +1,217 @@
+package trade.ksanbal.esp_blufi_for_flutter.response;
+
+import java.util.Arrays;
+
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
+
+/**
+ * A reusable view over the Wi-Fi connection state data.
+ * <p>
+ * Wrapping the data only indexes the {@code [type][length][value]} fields. The numeric fields are
+ * read as primitives and the string fields are decoded when they are accessed.
+ * The view is reused for following responses, call {@link #toResponse()} to keep a copy.
+ */
+public class BlufiStatusView {
+    private static final int HEADER_LENGTH = 3;
+    private static final int TYPE_COUNT = 32;
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private byte[] mData;
+    private final int[] mOffsets = new int[TYPE_COUNT];
+    private final int[] mLengths = new int[TYPE_COUNT];
+    private final String[] mStrings = new String[TYPE_COUNT];
+
+    /**
+     * Wrap the data, it is referenced but not copied.
+     *
+     * @param data the connection state data, at least 3 bytes
+     * @return true if all the fields are complete, false if the last field is truncated
+     */
+    public boolean wrap(byte[] data) {
+        if (data.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Status data length less than " + HEADER_LENGTH);
+        }
+        mData = data;
+        Arrays.fill(mLengths, -1);
+        Arrays.fill(mStrings, null);
+
+        int position = HEADER_LENGTH;
+        while (position < data.length) {
+            if (position + 2 > data.length) {
+                return false;
+            }
+            int type = data[position] & 0xff;
+            int length = data[position + 1] & 0xff;
+            int offset = position + 2;
+            if (offset + length > data.length) {
+                return false;
+            }
+            if (type < TYPE_COUNT) {
+                mOffsets[type] = offset;
+                mLengths[type] = length;
+            }
+            position = offset + length;
+        }
+        return true;
+    }
+
+    public boolean hasField(int type) {
+        return type >= 0 && type < TYPE_COUNT && mLengths[type] >= 0;
+    }
+
+    /**
+     * Compare a field with the bytes without decoding it.
+     *
+     * @return true if the field is present and holds exactly the bytes
+     */
+    public boolean fieldEquals(int type, byte[] value) {
+        if (!hasField(type) || mLengths[type] != value.length) {
+            return false;
+        }
+        int offset = mOffsets[type];
+        for (int i = 0; i < value.length; i++) {
+            if (mData[offset + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getOpMode() {
+        return mData[0] & 0xff;
+    }
+
+    public int getStaConnectionStatus() {
+        return mData[1] & 0xff;
+    }
+
+    public boolean isStaConnectWifi() {
+        return getStaConnectionStatus() == BlufiParameter.STA_CONN_SUCCESS;
+    }
+
+    public int getSoftAPConnectionCount() {
+        return mData[2] & 0xff;
+    }
+
+    public int getSoftAPSecurity() {
+        return getUnsignedByte(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_AUTH_MODE, -1);
+    }
+
+    public int getSoftAPChannel() {
+        return getUnsignedByte(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_CHANNEL, -1);
+    }
+
+    public int getSoftAPMaxConnectionCount() {
+        return getUnsignedByte(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT, -1);
+    }
+
+    public int getMaxRetry() {
+        return getUnsignedByte(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_MAX_CONN_RETRY, -1);
+    }
+
+    public int getEndReason() {
+        return getUnsignedByte(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_END_REASON, -1);
+    }
+
+    /**
+     * @return the rssi when the connection ended, -128 if it is not available
+     */
+    public int getRssi() {
+        int type = BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_RSSI;
+        if (mLengths[type] < 1) {
+            return -128;
+        }
+        return mData[mOffsets[type]];
+    }
+
+    public String getStaBSSID() {
+        int type = BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_BSSID;
+        if (mLengths[type] < 0) {
+            return null;
+        }
+        if (mStrings[type] == null) {
+            int offset = mOffsets[type];
+            int length = mLengths[type];
+            char[] chars = new char[length * 2];
+            for (int i = 0; i < length; i++) {
+                int b = mData[offset + i] & 0xff;
+                chars[i * 2] = HEX_CHARS[b >>> 4];
+                chars[i * 2 + 1] = HEX_CHARS[b & 0x0f];
+            }
+            mStrings[type] = new String(chars);
+        }
+        return mStrings[type];
+    }
+
+    public String getStaSSID() {
+        return getString(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID);
+    }
+
+    public String getStaPassword() {
+        return getString(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
+    }
+
+    public String getSoftAPSSID() {
+        return getString(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
+    }
+
+    public String getSoftAPPassword() {
+        return getString(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
+    }
+
+    /**
+     * @return a new BlufiStatusResponse holding all the fields of the view
+     */
+    public BlufiStatusResponse toResponse() {
+        BlufiStatusResponse response = new BlufiStatusResponse();
+        response.setOpMode(getOpMode());
+        response.setStaConnectionStatus(getStaConnectionStatus());
+        response.setSoftAPConnectionCount(getSoftAPConnectionCount());
+
+        response.setStaBSSID(getStaBSSID());
+        response.setStaSSID(getStaSSID());
+        response.setStaPassword(getStaPassword());
+        response.setSoftAPSSID(getSoftAPSSID());
+        response.setSoftAPPassword(getSoftAPPassword());
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_AUTH_MODE)) {
+            response.setSoftAPSecrity(getSoftAPSecurity());
+        }
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_CHANNEL)) {
+            response.setSoftAPChannel(getSoftAPChannel());
+        }
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT)) {
+            response.setSoftAPMaxConnectionCount(getSoftAPMaxConnectionCount());
+        }
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_MAX_CONN_RETRY)) {
+            response.setMaxRetry(getMaxRetry());
+        }
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_END_REASON)) {
+            response.setEndReason(getEndReason());
+        }
+        if (hasByteField(BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_RSSI)) {
+            response.setRssi(getRssi());
+        }
+        return response;
+    }
+
+    private boolean hasByteField(int type) {
+        return mLengths[type] >= 1;
+    }
+
+    private int getUnsignedByte(int type, int defaultValue) {
+        if (mLengths[type] < 1) {
+            return defaultValue;
+        }
+        return mData[mOffsets[type]] & 0xff;
+    }
+
+    private String getString(int type) {
+        if (mLengths[type] < 0) {
+            return null;
+        }
+        if (mStrings[type] == null) {
+            mStrings[type] = new String(mData, mOffsets[type], mLengths[type]);
+        }
+        return mStrings[type];
+    }
+}
@@ -0,0 +1,125 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BlufiChannelMuxTest {
+    private final List<byte[]> mFragments = new ArrayList<>();
+    private final List<Integer> mPostedChannels = new ArrayList<>();
+    private final List<byte[]> mReceived = new ArrayList<>();
+
+    private BlufiChannelMux mMux;
+
+    @Before
+    public void setUp() {
+        mMux = new BlufiChannelMux(BlufiClock.SYSTEM, new BlufiChannelMux.Host() {
+            @Override
+            public void postFragment(byte[] fragment, BlufiDeadline deadline) {
+                mFragments.add(fragment);
+            }
+
+            @Override
+            public void onPosted(int channel, int status, byte[] data) {
+                mPostedChannels.add(status == BlufiCallback.STATUS_SUCCESS ? channel : -channel);
+            }
+
+            @Override
+            public void onReceived(int channel, byte[] data) {
+                mReceived.add(data);
+            }
+        });
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * Complete the fragments as they are posted and feed them back as received.
+     */
+    private void echoAll() {
+        while (!mFragments.isEmpty()) {
+            byte[] fragment = mFragments.remove(0);
+            mMux.onFragmentPosted(BlufiCallback.STATUS_SUCCESS);
+            assertTrue(mMux.onReceive(fragment));
+        }
+    }
+
+    @Test
+    public void messageIsFragmentedAndReassembled() {
+        mMux.open(1, 1);
+        byte[] message = data(BlufiChannelMux.FRAGMENT_LENGTH * 2 + 10, 3);
+        mMux.post(1, message, BlufiDeadline.NONE);
+
+        byte[] first = mFragments.get(0);
+        assertEquals(BlufiChannelMux.HEADER_LENGTH + BlufiChannelMux.FRAGMENT_LENGTH, first.length);
+        assertArrayEquals(BlufiChannelMux.MAGIC, Arrays.copyOf(first, BlufiChannelMux.MAGIC.length));
+        assertEquals(1, first[BlufiChannelMux.MAGIC.length]);
+
+        echoAll();
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(message, mReceived.get(0));
+        assertEquals(Integer.valueOf(1), mPostedChannels.get(0));
+        assertEquals(message.length, mMux.getSentBytes(1));
+        assertEquals(message.length, mMux.getReceivedBytes(1));
+    }
+
+    @Test
+    public void unmarkedCustomDataIsNotTaken() {
+        mMux.open(1, 1);
+        mMux.open(2, 1);
+        // App payloads starting with an open channel id, even with valid flags
+        assertFalse(mMux.onReceive(new byte[]{1, 0b11, 'h', 'i'}));
+        assertFalse(mMux.onReceive(new byte[]{2, 0, 0, 0, 0, 0}));
+        assertFalse(mMux.onReceive(new byte[]{'B', 'F'}));
+        assertTrue(mReceived.isEmpty());
+    }
+
+    @Test
+    public void fragmentOfClosedChannelIsNotTaken() {
+        mMux.open(1, 1);
+        mMux.post(1, data(8, 1), BlufiDeadline.NONE);
+        byte[] fragment = mFragments.remove(0);
+        mMux.onFragmentPosted(BlufiCallback.STATUS_SUCCESS);
+        mMux.close(1);
+        assertFalse(mMux.onReceive(fragment));
+    }
+
+    @Test
+    public void heavierChannelGetsMoreTurns() {
+        mMux.open(1, 1);
+        mMux.open(2, 4);
+        mMux.post(1, data(BlufiChannelMux.FRAGMENT_LENGTH * 8, 1), BlufiDeadline.NONE);
+        for (int i = 0; i < 4; i++) {
+            mMux.post(2, data(BlufiChannelMux.FRAGMENT_LENGTH, i), BlufiDeadline.NONE);
+        }
+        echoAll();
+        // The four messages of the heavier channel all complete within its first turn
+        assertEquals(5, mPostedChannels.size());
+        assertEquals(Integer.valueOf(1), mPostedChannels.get(4));
+    }
+
+    @Test
+    public void queuedMessagesFailOnDisconnect() {
+        mMux.open(1, 1);
+        mMux.post(1, data(8, 1), BlufiDeadline.NONE);
+        mMux.post(1, data(8, 2), BlufiDeadline.NONE);
+        mMux.onDisconnected();
+        assertEquals(2, mPostedChannels.size());
+        assertEquals(Integer.valueOf(-1), mPostedChannels.get(0));
+        assertEquals(Integer.valueOf(-1), mPostedChannels.get(1));
+    }
+}
@@ -0,0 +1,72 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlufiCompressionTest {
+    private static byte[] repetitive() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            json.append("{\"level\":\"info\",\"message\":\"wifi connected\"},");
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void compressibleDataIsDeflated() {
+        byte[] data = repetitive();
+        byte[] encoded = BlufiCompression.encode(data);
+        assertEquals(BlufiCompression.CODEC_DEFLATE, encoded[0]);
+        assertTrue(encoded.length < data.length);
+        assertArrayEquals(data, BlufiCompression.decode(encoded));
+    }
+
+    @Test
+    public void incompressibleDataIsPostedRaw() {
+        byte[] data = new byte[600];
+        new Random(7).nextBytes(data);
+        byte[] encoded = BlufiCompression.encode(data);
+        assertEquals(BlufiCompression.CODEC_NONE, encoded[0]);
+        assertEquals(data.length + 1, encoded.length);
+        assertArrayEquals(data, BlufiCompression.decode(encoded));
+    }
+
+    @Test
+    public void shortDataIsPostedRaw() {
+        byte[] data = {1, 1, 1, 1};
+        byte[] encoded = BlufiCompression.encode(data);
+        assertArrayEquals(BlufiCompression.wrap(data), encoded);
+        assertArrayEquals(data, BlufiCompression.decode(encoded));
+    }
+
+    @Test
+    public void malformedPayloadIsRejected() {
+        assertNull(BlufiCompression.decode(new byte[0]));
+        assertNull(BlufiCompression.decode(new byte[]{9, 1, 2}));
+
+        byte[] encoded = BlufiCompression.encode(repetitive());
+        assertNull(BlufiCompression.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+    }
+
+    @Test
+    public void negotiationMessages() {
+        assertTrue(BlufiCompression.isRequest(BlufiCompression.REQUEST));
+        assertFalse(BlufiCompression.isRequest(BlufiCompression.RESPONSE));
+        assertTrue(BlufiCompression.isResponse(BlufiCompression.RESPONSE));
+        assertFalse(BlufiCompression.isResponse(BlufiCompression.REQUEST));
+
+        // A device which accepts no codec the client knows
+        byte[] response = BlufiCompression.RESPONSE.clone();
+        response[response.length - 1] = 0;
+        assertFalse(BlufiCompression.isResponse(response));
+    }
+}
@@ -0,0 +1,93 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BlufiPackageLengthTunerTest {
+    private static final int MIN_LENGTH = 20;
+    private static final int MAX_LENGTH = 240;
+
+    /**
+     * Post two fragmented transfers at the probed length, the goodput is the length in bytes per
+     * microsecond unless the length is the fast one.
+     */
+    private static void sample(BlufiPackageLengthTuner tuner, int fastLength) {
+        int length = tuner.getLength();
+        int dataLength = length * 4;
+        long nanos = dataLength * 1000L / (length == fastLength ? length * 2 : length);
+        tuner.onTransfer(length, dataLength, nanos);
+        tuner.onTransfer(length, dataLength, nanos);
+    }
+
+    @Test
+    public void settlesOnTheFastestLength() {
+        BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner("24:0A:C4:00:00:01", MIN_LENGTH);
+        tuner.setMaxLength(MAX_LENGTH);
+        // 240, 182, 128, 64
+        for (int i = 0; i < 4; i++) {
+            assertEquals(-1, tuner.getSettledLength());
+            sample(tuner, 128);
+        }
+        assertEquals(128, tuner.getSettledLength());
+        assertEquals(128, tuner.getLength());
+    }
+
+    @Test
+    public void settledLengthIsRememberedPerAddress() {
+        BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner("24:0A:C4:00:00:02", MIN_LENGTH);
+        tuner.setMaxLength(MAX_LENGTH);
+        for (int i = 0; i < 4; i++) {
+            sample(tuner, 182);
+        }
+
+        BlufiPackageLengthTuner same = new BlufiPackageLengthTuner("24:0A:C4:00:00:02", MIN_LENGTH);
+        same.setMaxLength(MAX_LENGTH);
+        assertEquals(182, same.getSettledLength());
+
+        // Another board of the same model probes on its own
+        BlufiPackageLengthTuner other = new BlufiPackageLengthTuner("24:0A:C4:00:00:03", MIN_LENGTH);
+        other.setMaxLength(MAX_LENGTH);
+        assertEquals(-1, other.getSettledLength());
+        assertEquals(MAX_LENGTH, other.getLength());
+    }
+
+    @Test
+    public void lengthWithWriteFailureIsNotChosen() {
+        BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner("24:0A:C4:00:00:04", MIN_LENGTH);
+        tuner.setMaxLength(MAX_LENGTH);
+        // The largest length would be the fastest, but its frames can't be written
+        assertEquals(MAX_LENGTH, tuner.getLength());
+        tuner.onWriteFailure(MAX_LENGTH);
+        for (int i = 0; i < 3; i++) {
+            sample(tuner, MAX_LENGTH);
+        }
+        assertEquals(182, tuner.getSettledLength());
+    }
+
+    @Test
+    public void fallbackIsNotRemembered() {
+        BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner("24:0A:C4:00:00:05", MIN_LENGTH);
+        tuner.setMaxLength(MAX_LENGTH);
+        for (int i = 0; i < 4; i++) {
+            tuner.onWriteFailure(tuner.getLength());
+        }
+        assertEquals(MIN_LENGTH, tuner.getSettledLength());
+
+        BlufiPackageLengthTuner next = new BlufiPackageLengthTuner("24:0A:C4:00:00:05", MIN_LENGTH);
+        next.setMaxLength(MAX_LENGTH);
+        assertEquals(-1, next.getSettledLength());
+        assertEquals(MAX_LENGTH, next.getLength());
+    }
+
+    @Test
+    public void unfragmentedTransfersAreNotSampled() {
+        BlufiPackageLengthTuner tuner = new BlufiPackageLengthTuner(null, MIN_LENGTH);
+        tuner.setMaxLength(MAX_LENGTH);
+        for (int i = 0; i < 10; i++) {
+            tuner.onTransfer(MAX_LENGTH, MAX_LENGTH, 1000000L);
+        }
+        assertEquals(-1, tuner.getSettledLength());
+        assertEquals(MAX_LENGTH, tuner.getLength());
+    }
+}
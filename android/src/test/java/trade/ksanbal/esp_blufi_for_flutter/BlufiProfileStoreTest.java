@@ -0,0 +1,146 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiProfile;
+
+public class BlufiProfileStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static BlufiProfile station(String name, String ssid, String password) {
+        return new BlufiProfile(name, BlufiParameter.OP_MODE_STA, utf8(ssid), utf8(password),
+                0, null, null, 0, 0);
+    }
+
+    @Test
+    public void profilesSurviveSaveAndLoad() throws IOException {
+        File file = new File(mFolder.getRoot(), "profiles.bin");
+        BlufiProfileStore store = new BlufiProfileStore(file);
+        store.put(station("home", "HomeNetwork", "correct-horse-battery"));
+        store.put(new BlufiProfile("hotspot", BlufiParameter.OP_MODE_STASOFTAP, utf8("家庭网络"), utf8("密码"),
+                BlufiParameter.SOFTAP_SECURITY_WPA2, utf8("ESP-AP"), utf8("soft-ap-pass"), 6, 4));
+        store.save();
+
+        BlufiProfileStore loaded = new BlufiProfileStore(file);
+        loaded.load();
+        assertEquals(Arrays.asList("home", "hotspot"), loaded.getNames());
+
+        BlufiProfile home = loaded.get("home");
+        assertEquals(BlufiParameter.OP_MODE_STA, home.getOpMode());
+        assertArrayEquals(utf8("HomeNetwork"), home.getStaSSID());
+        assertArrayEquals(utf8("correct-horse-battery"), home.getStaPassword());
+        assertEquals(0, home.getSoftAPSSID().length);
+
+        BlufiProfile hotspot = loaded.get("hotspot");
+        assertEquals(BlufiParameter.OP_MODE_STASOFTAP, hotspot.getOpMode());
+        assertArrayEquals(utf8("家庭网络"), hotspot.getStaSSID());
+        assertArrayEquals(utf8("密码"), hotspot.getStaPassword());
+        assertEquals(BlufiParameter.SOFTAP_SECURITY_WPA2, hotspot.getSoftAPSecurity());
+        assertArrayEquals(utf8("ESP-AP"), hotspot.getSoftAPSSID());
+        assertArrayEquals(utf8("soft-ap-pass"), hotspot.getSoftAPPassword());
+        assertEquals(6, hotspot.getSoftAPChannel());
+        assertEquals(4, hotspot.getSoftAPMaxConnection());
+    }
+
+    @Test
+    public void fileLayout() throws IOException {
+        File file = new File(mFolder.getRoot(), "profiles.bin");
+        BlufiProfileStore store = new BlufiProfileStore(file);
+        store.put(station("a", "s", "pw"));
+        store.save();
+
+        byte[] expected = {
+                'B', 'F', 'P', 'S', 0, 0, 0, 1, 0, 0, 0, 1,
+                0, 1, 'a',
+                BlufiParameter.OP_MODE_STA, 0, 0, 0,
+                0, 1, 's',
+                0, 2, 'p', 'w',
+                0, 0,
+                0, 0
+        };
+        byte[] actual = new byte[(int) file.length()];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.readFully(actual);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void replaceAndRemove() throws IOException {
+        File file = new File(mFolder.getRoot(), "profiles.bin");
+        BlufiProfileStore store = new BlufiProfileStore(file);
+        store.put(station("home", "HomeNetwork", "old"));
+        store.put(station("office", "OfficeNetwork", "pw"));
+        store.put(station("home", "HomeNetwork", "new"));
+        assertTrue(store.remove("office"));
+        assertFalse(store.remove("office"));
+        store.save();
+
+        BlufiProfileStore loaded = new BlufiProfileStore(file);
+        loaded.load();
+        assertEquals(Arrays.asList("home"), loaded.getNames());
+        assertArrayEquals(utf8("new"), loaded.get("home").getStaPassword());
+        assertNull(loaded.get("office"));
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        BlufiProfileStore store = new BlufiProfileStore(new File(mFolder.getRoot(), "missing.bin"));
+        store.load();
+        assertTrue(store.getNames().isEmpty());
+    }
+
+    @Test
+    public void foreignAndTruncatedFilesAreRejected() throws IOException {
+        File foreign = mFolder.newFile("foreign.bin");
+        try (FileOutputStream out = new FileOutputStream(foreign)) {
+            out.write(utf8("not a profile store"));
+        }
+        assertLoadFails(foreign);
+
+        File file = new File(mFolder.getRoot(), "profiles.bin");
+        BlufiProfileStore store = new BlufiProfileStore(file);
+        store.put(station("home", "HomeNetwork", "correct-horse-battery"));
+        store.save();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 4);
+        }
+        assertLoadFails(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unnamedProfileIsRejected() {
+        new BlufiProfileStore(new File(mFolder.getRoot(), "profiles.bin")).put(station(null, "s", "pw"));
+    }
+
+    private static void assertLoadFails(File file) {
+        try {
+            new BlufiProfileStore(file).load();
+            fail("Loaded " + file.getName());
+        } catch (IOException expected) {
+            // The file is not a valid profile store
+        }
+    }
+}
@@ -0,0 +1,1073 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiConfigureParams;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter.Type;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiScanList;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiStatusResponse;
+import trade.ksanbal.esp_blufi_for_flutter.response.BlufiVersionResponse;
+
+/**
+ * Run Blufi sessions against the client without radios and report the timings of each stage.
+ * <p>
+ * {@link #simulate(Scenario, boolean)} runs a built-in session, including security negotiation,
+ * against {@link BlufiSimulatedDevice}. {@link #replay(File, boolean)} replays a frame trace dumped
+ * by {@link BlufiClient#dumpFrameTrace(OutputStream)}: the operations are rebuilt from the posted
+ * frames, the recorded notifications are delivered in the recorded order and the posted frames are
+ * compared with the recorded ones. Sessions with negotiated security can't be replayed, the key is
+ * not in the trace. Without realtime the recorded delays and the client frame pacing are skipped to
+ * run as fast as possible. The sessions are run by {@link BlufiReplayTest}.
+ * <p>
+ * The main is a tool for the trace files:
+ * <ul>
+ * <li>{@code record <dir>} runs the built-in sessions without security against the simulated
+ * device and writes their frame traces into the directory</li>
+ * <li>{@code timeline <trace>...} prints the frame level timeline of the traces</li>
+ * </ul>
+ */
+final class BlufiReplay {
+    private static final long STAGE_TIMEOUT = 30000L;
+
+    private BlufiReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("record")) {
+            record(new File(args[1]), System.out);
+        } else if (args.length >= 2 && args[0].equals("timeline")) {
+            for (int i = 1; i < args.length; i++) {
+                System.out.println(args[i]);
+                printTimeline(readTrace(new File(args[i])), System.out);
+            }
+        } else {
+            System.out.println("Usage: BlufiReplay record <dir>");
+            System.out.println("       BlufiReplay timeline <trace>...");
+        }
+    }
+
+    static List<BlufiFrameTrace.Frame> readTrace(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return BlufiFrameTrace.read(in);
+        }
+    }
+
+    /**
+     * Print the frame level timeline of the frames.
+     */
+    static void printTimeline(List<BlufiFrameTrace.Frame> frames, PrintStream out) {
+        long lastTime = frames.isEmpty() ? 0 : frames.get(0).timestamp;
+        for (BlufiFrameTrace.Frame frame : frames) {
+            out.println(String.format(Locale.ENGLISH, "%12.3f ms  +%9.3f ms  %s  %s",
+                    frame.timestamp / 1e6, (frame.timestamp - lastTime) / 1e6,
+                    frame.mtu ? "  " : frame.direction == BlufiFrameTrace.DIRECTION_SENT ? "->" : "<-", frame));
+            lastTime = frame.timestamp;
+        }
+    }
+
+    /**
+     * Run the built-in sessions without security against the simulated device at real speed and
+     * write their frame traces.
+     */
+    static void record(File dir, PrintStream out) throws IOException, InterruptedException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        for (Scenario scenario : Scenario.builtIn(false)) {
+            BlufiSimulatedDevice device = scenario.createDevice(true);
+            Session session = new Session(new MeteredTransport(device), true);
+            Report report = new Report(scenario.name + " (mtu " + scenario.mtu + ", record)");
+            session.runAll(scenario.steps, null, report);
+            report.errors += device.getErrorCount();
+            report.print(out);
+
+            File file = new File(dir, scenario.name + ".btsnoop");
+            try (OutputStream os = new FileOutputStream(file)) {
+                session.client.dumpFrameTrace(os);
+            }
+            session.close();
+            device.shutdown();
+        }
+    }
+
+    /**
+     * Replay a frame trace, it is successful if the client posted the recorded frames and every stage
+     * completed.
+     *
+     * @throws IOException if the trace can't be read or replayed
+     */
+    static Report replay(File file, boolean realtime) throws IOException, InterruptedException {
+        ReplayPeer peer = new ReplayPeer(readTrace(file), realtime);
+        List<Step> steps;
+        try {
+            steps = peer.buildSteps();
+        } catch (IOException e) {
+            peer.shutdown();
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        }
+
+        Session session = new Session(new MeteredTransport(peer), realtime);
+        Report report = new Report(String.format(Locale.ENGLISH, "%s (mtu %d, replay %s)",
+                file.getName(), peer.mMtu, realtime ? "realtime" : "fast"));
+        session.runAll(steps, peer, report);
+        session.close();
+        peer.shutdown();
+
+        report.mismatches = peer.getMismatchCount();
+        return report;
+    }
+
+    static Report simulate(Scenario scenario, boolean realtime) throws InterruptedException {
+        BlufiSimulatedDevice device = scenario.createDevice(realtime);
+        Session session = new Session(new MeteredTransport(device), realtime);
+        int[] minVersion = scenario.compressionMinVersion;
+        if (minVersion == null) {
+            session.client.setCustomDataCompression(scenario.compression);
+        } else {
+            session.client.setCustomDataCompression(scenario.compression, minVersion[0], minVersion[1]);
+        }
+        session.client.setConfigureIfChanged(scenario.configureIfChanged);
+        session.client.setFrameRetransmission(scenario.frameRetries, 16, realtime ? 20L : 0L);
+        Report report = new Report(String.format(Locale.ENGLISH, "%s (mtu %d, simulate %s)",
+                scenario.name, scenario.mtu, realtime ? "realtime" : "fast"));
+        session.runAll(scenario.steps, null, report);
+        session.close();
+        device.shutdown();
+
+        report.errors += device.getErrorCount();
+        if (scenario.isCompressionProbed()) {
+            if (device.getCompressedCount() == 0) {
+                // The device never received a compressed payload
+                report.errors++;
+            }
+        } else if (device.getCompressionRequestCount() > 0) {
+            // The request reached a device which must not be asked
+            report.errors++;
+        }
+        return report;
+    }
+
+    /**
+     * @return CPU time of the process in nanoseconds, or -1 if it is not available on this VM
+     */
+    private static long getProcessCpuTime() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getOperatingSystemMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.OperatingSystemMXBean");
+            if (!beanClass.isInstance(bean)) {
+                return -1;
+            }
+            Method method = beanClass.getMethod("getProcessCpuTime");
+            return (Long) method.invoke(bean);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * An operation of the session and the callbacks that complete it.
+     */
+    static final class Step {
+        static final int NEGOTIATE = 0;
+        static final int VERSION = 1;
+        static final int STATUS = 2;
+        static final int SCAN = 3;
+        static final int CONFIGURE = 4;
+        static final int CUSTOM = 5;
+        static final int CLOSE = 6;
+        static final int CHANNELS = 7;
+
+        /**
+         * The channels step posts one bulk message on this channel of weight 1 and the small messages
+         * on {@link #CHANNEL_SMALL} of weight {@link #CHANNEL_SMALL_WEIGHT} at the same time.
+         */
+        static final int CHANNEL_BULK = 1;
+        static final int CHANNEL_SMALL = 2;
+        static final int CHANNEL_SMALL_WEIGHT = 4;
+
+        private static final String[] NAMES = {
+                "negotiate", "version", "status", "scan", "configure", "custom", "close", "channels"
+        };
+
+        final int kind;
+        BlufiConfigureParams params;
+        // The configure path expected when the scenario configures the changed fields only
+        int configurePath = -1;
+        byte[] data;
+        byte[][] smallData;
+        // The step is expected to fail, the session must go on after it
+        boolean fails;
+
+        // Replay only, the posted frames of the step and the count of notifications before the next step
+        int firstFrame;
+        int lastFrame = -1;
+        int receivedEnd;
+
+        Step(int kind) {
+            this.kind = kind;
+        }
+
+        static Step configure(String ssid, String password) {
+            Step step = new Step(CONFIGURE);
+            step.params = new BlufiConfigureParams();
+            step.params.setOpMode(BlufiParameter.OP_MODE_STA);
+            step.params.setStaSSIDBytes(ssid.getBytes());
+            step.params.setStaPassword(password);
+            return step;
+        }
+
+        static Step configure(String ssid, String password, int path) {
+            Step step = configure(ssid, password);
+            step.configurePath = path;
+            return step;
+        }
+
+        static Step custom(byte[] data) {
+            Step step = new Step(CUSTOM);
+            step.data = data;
+            return step;
+        }
+
+        static Step channels(byte[] bulk, byte[]... small) {
+            Step step = new Step(CHANNELS);
+            step.data = bulk;
+            step.smallData = small;
+            return step;
+        }
+
+        String getName() {
+            return NAMES[kind];
+        }
+
+        boolean waitsStatusReport() {
+            int opMode = params.getOpMode();
+            return opMode == BlufiParameter.OP_MODE_STA || opMode == BlufiParameter.OP_MODE_STASOFTAP;
+        }
+    }
+
+    /**
+     * A built-in session run against the simulated device.
+     */
+    static final class Scenario {
+        final String name;
+        final int mtu;
+        final int apCount;
+        final List<Step> steps = new ArrayList<>();
+        int writeFailureInterval;
+        // The only write that fails, counted from 1, 0 for none
+        int failedWrite;
+        // Retransmissions of a failed frame, 0 to fail the message at once
+        int frameRetries = 3;
+        int duplicateInterval;
+        int dropInterval;
+        boolean compression;
+        // The lowest device version asked for the compression, {major, minor}, null to ask any
+        int[] compressionMinVersion;
+        boolean configureIfChanged;
+
+        Scenario(String name, int mtu, int apCount) {
+            this.name = name;
+            this.mtu = mtu;
+            this.apCount = apCount;
+        }
+
+        /**
+         * @param simulate true to include the sessions which can only be simulated: the negotiated
+         *                 security and the lost frames can't be replayed from a trace
+         */
+        static List<Scenario> builtIn(boolean simulate) {
+            List<Scenario> scenarios = new ArrayList<>();
+
+            Scenario provision = new Scenario("provision", 185, 12);
+            provision.steps.add(new Step(Step.VERSION));
+            provision.steps.add(new Step(Step.STATUS));
+            provision.steps.add(new Step(Step.SCAN));
+            provision.steps.add(Step.configure("HomeNetwork", "correct-horse-battery"));
+            provision.steps.add(new Step(Step.STATUS));
+            scenarios.add(provision);
+
+            Scenario scan = new Scenario("scan_small_mtu", 23, 40);
+            scan.steps.add(new Step(Step.SCAN));
+            scan.steps.add(new Step(Step.SCAN));
+            scenarios.add(scan);
+
+            Scenario custom = new Scenario("custom_data", 247, 0);
+            byte[] data = new byte[600];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31 + 7);
+            }
+            for (int i = 0; i < 3; i++) {
+                custom.steps.add(Step.custom(data));
+            }
+            scenarios.add(custom);
+
+            if (simulate) {
+                Scenario secure = new Scenario("secure_provision", 185, 12);
+                secure.steps.add(new Step(Step.NEGOTIATE));
+                secure.steps.add(new Step(Step.VERSION));
+                secure.steps.add(Step.configure("HomeNetwork", "correct-horse-battery"));
+                secure.steps.add(new Step(Step.STATUS));
+                scenarios.add(secure);
+
+                Scenario lossy = new Scenario("lossy_provision", 23, 12);
+                lossy.writeFailureInterval = 7;
+                lossy.steps.add(Step.configure("HomeNetwork", "correct-horse-battery"));
+                lossy.steps.add(Step.custom(data));
+                lossy.steps.add(new Step(Step.STATUS));
+                scenarios.add(lossy);
+
+                // The second frame of the configure burst is lost and never retransmitted, the
+                // frames after it are not written and the status request must still be accepted
+                Scenario burstFailure = new Scenario("burst_failure", 185, 0);
+                burstFailure.failedWrite = 2;
+                burstFailure.frameRetries = 0;
+                Step failed = Step.configure("HomeNetwork", "correct-horse-battery");
+                failed.fails = true;
+                burstFailure.steps.add(failed);
+                burstFailure.steps.add(new Step(Step.STATUS));
+                burstFailure.steps.add(Step.custom(data));
+                scenarios.add(burstFailure);
+
+                Scenario channels = new Scenario("channels", 185, 0);
+                byte[] bulk = new byte[4096];
+                for (int i = 0; i < bulk.length; i++) {
+                    bulk[i] = (byte) (i * 13 + 5);
+                }
+                byte[][] small = new byte[8][];
+                for (int i = 0; i < small.length; i++) {
+                    small[i] = String.format(Locale.ENGLISH, "telemetry-%d", i).getBytes();
+                }
+                channels.steps.add(Step.channels(bulk, small));
+                scenarios.add(channels);
+
+                Scenario compressed = new Scenario("compressed_custom", 185, 0);
+                compressed.compression = true;
+                StringBuilder json = new StringBuilder("{\"log\":[");
+                for (int i = 0; i < 40; i++) {
+                    json.append(String.format(Locale.ENGLISH,
+                            "{\"time\":%d,\"level\":\"info\",\"message\":\"wifi rssi %d dBm\"},", 1000 + i, -40 - i % 30));
+                }
+                json.append("{}]}");
+                byte[] noise = new byte[600];
+                new Random(7).nextBytes(noise);
+                compressed.steps.add(Step.custom(json.toString().getBytes()));
+                compressed.steps.add(Step.custom(noise));
+                compressed.steps.add(Step.custom(json.toString().getBytes()));
+                scenarios.add(compressed);
+
+                // The device reports the lowest version supporting the compression
+                Scenario gated = new Scenario("compressed_min_version", 185, 0);
+                gated.compression = true;
+                gated.compressionMinVersion = BlufiSimulatedDevice.VERSION;
+                gated.steps.add(Step.custom(json.toString().getBytes()));
+                gated.steps.add(Step.custom(json.toString().getBytes()));
+                scenarios.add(gated);
+
+                // The device is older than the version supporting the compression, it is never asked
+                Scenario older = new Scenario("compression_older_device", 185, 0);
+                older.compression = true;
+                older.compressionMinVersion = new int[]{BlufiSimulatedDevice.VERSION[0], BlufiSimulatedDevice.VERSION[1] + 1};
+                older.steps.add(Step.custom(json.toString().getBytes()));
+                older.steps.add(Step.custom(json.toString().getBytes()));
+                scenarios.add(older);
+
+                Scenario reprovision = new Scenario("reprovision", 185, 0);
+                reprovision.configureIfChanged = true;
+                reprovision.steps.add(Step.configure("HomeNetwork", "correct-horse-battery", BlufiCallback.CONFIGURE_FULL));
+                reprovision.steps.add(Step.configure("HomeNetwork", "correct-horse-battery", BlufiCallback.CONFIGURE_UNCHANGED));
+                reprovision.steps.add(Step.configure("OfficeNetwork", "battery-staple", BlufiCallback.CONFIGURE_PARTIAL));
+                scenarios.add(reprovision);
+
+                Scenario unreliable = new Scenario("unreliable_notify", 23, 40);
+                unreliable.duplicateInterval = 5;
+                unreliable.dropInterval = 50;
+                unreliable.steps.add(new Step(Step.SCAN));
+                unreliable.steps.add(new Step(Step.SCAN));
+                unreliable.steps.add(new Step(Step.STATUS));
+                unreliable.steps.add(new Step(Step.VERSION));
+                scenarios.add(unreliable);
+            }
+            return scenarios;
+        }
+
+        /**
+         * @return the built-in session of the name, including the simulate only ones
+         */
+        static Scenario builtIn(String name) {
+            for (Scenario scenario : builtIn(true)) {
+                if (scenario.name.equals(name)) {
+                    return scenario;
+                }
+            }
+            throw new IllegalArgumentException("No scenario " + name);
+        }
+
+        /**
+         * @return true if the device is asked for the compression
+         */
+        boolean isCompressionProbed() {
+            if (!compression) {
+                return false;
+            }
+            if (compressionMinVersion == null) {
+                return true;
+            }
+            int[] version = BlufiSimulatedDevice.VERSION;
+            return version[0] != compressionMinVersion[0] ? version[0] > compressionMinVersion[0]
+                    : version[1] >= compressionMinVersion[1];
+        }
+
+        BlufiSimulatedDevice createDevice(boolean realtime) {
+            BlufiSimulatedDevice device = realtime ? new BlufiSimulatedDevice(mtu, 8, 12)
+                    : new BlufiSimulatedDevice(mtu, 0, 0);
+            device.setConnectDelay(realtime ? 300 : 0);
+            device.setWriteFailureInterval(writeFailureInterval);
+            device.setFailedWrite(failedWrite);
+            device.setNotificationFaults(duplicateInterval, dropInterval);
+            String[] ssids = new String[apCount];
+            int[] rssi = new int[apCount];
+            for (int i = 0; i < apCount; i++) {
+                ssids[i] = String.format(Locale.ENGLISH, "ESP-AP-%02d", i);
+                rssi[i] = -40 - (i * 37 % 50);
+            }
+            device.setScanList(ssids, rssi);
+            return device;
+        }
+    }
+
+    /**
+     * Count the frames posted and received through a transport.
+     */
+    private static final class MeteredTransport implements BlufiTransport {
+        private final BlufiTransport mTransport;
+        private int mWritten;
+        private int mReceived;
+
+        MeteredTransport(BlufiTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public void open(Listener listener) {
+            mTransport.open(new Listener() {
+                @Override
+                public void onWritten(boolean success) {
+                    synchronized (MeteredTransport.this) {
+                        mWritten++;
+                        MeteredTransport.this.notifyAll();
+                    }
+                    listener.onWritten(success);
+                }
+
+                @Override
+                public void onReceived(byte[] frame) {
+                    synchronized (MeteredTransport.this) {
+                        mReceived++;
+                    }
+                    listener.onReceived(frame);
+                }
+            });
+        }
+
+        @Override
+        public boolean write(byte[] frame) {
+            return mTransport.write(frame);
+        }
+
+        @Override
+        public int getMtu() {
+            return mTransport.getMtu();
+        }
+
+        synchronized int getWritten() {
+            return mWritten;
+        }
+
+        synchronized int getReceived() {
+            return mReceived;
+        }
+
+        synchronized boolean awaitWritten(int count, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (mWritten < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drive a client through the steps and wait for the callbacks that complete them.
+     */
+    private static final class Session extends BlufiCallback {
+        final BlufiClient client;
+        private final MeteredTransport mTransport;
+        private final Semaphore[] mDone = new Semaphore[Step.NAMES.length];
+        private final Semaphore mCustomReceived = new Semaphore(0);
+        private final Semaphore mChannelReceived = new Semaphore(0);
+        private volatile byte[] mExpectedCustom;
+        private volatile int mConfigurePath = -1;
+        private volatile int mExpectedFailure = -1;
+        private volatile int mFailures;
+        private volatile int mErrors;
+
+        Session(MeteredTransport transport, boolean realtime) {
+            for (int i = 0; i < mDone.length; i++) {
+                mDone[i] = new Semaphore(0);
+            }
+            mTransport = transport;
+            client = new BlufiClient(transport, BlufiClock.SYSTEM, Runnable::run);
+            if (!realtime) {
+                client.setFramePacing(0L);
+            }
+            client.setFrameRetransmission(3, 16, realtime ? 20L : 0L);
+            client.setReceiveResync(true);
+            client.setBlufiCallback(this);
+        }
+
+        void runAll(List<Step> steps, ReplayPeer peer, Report report) throws InterruptedException {
+            for (Step step : steps) {
+                Stage stage = run(step, peer);
+                report.stages.add(stage);
+                if (stage.timeout) {
+                    break;
+                }
+            }
+            report.failures = mFailures;
+            report.retransmits = client.getRetransmittedFrameCount();
+            report.resyncs = client.getResyncCount();
+            report.linkGrade = client.getLinkGrade();
+            for (int priority = 0; priority < report.throughputs.length; priority++) {
+                report.throughputs[priority] = client.getLinkThroughput(priority);
+            }
+            report.errors += mErrors;
+            report.compressionRatio = client.getCompressionRatio();
+            report.goodput = client.getCustomDataGoodput();
+            report.bulkThroughput = client.getChannelThroughput(Step.CHANNEL_BULK);
+            report.smallThroughput = client.getChannelThroughput(Step.CHANNEL_SMALL);
+        }
+
+        private Stage run(Step step, ReplayPeer peer) throws InterruptedException {
+            Stage stage = new Stage(step.getName());
+            int written = mTransport.getWritten();
+            int received = mTransport.getReceived();
+            long cpuTime = getProcessCpuTime();
+            long startTime = System.nanoTime();
+            mExpectedFailure = step.fails ? step.kind : -1;
+
+            switch (step.kind) {
+                case Step.NEGOTIATE:
+                    client.negotiateSecurity();
+                    break;
+                case Step.VERSION:
+                    client.requestDeviceVersion();
+                    break;
+                case Step.STATUS:
+                    client.requestDeviceStatus();
+                    break;
+                case Step.SCAN:
+                    client.requestDeviceWifiScan();
+                    break;
+                case Step.CONFIGURE:
+                    mConfigurePath = -1;
+                    client.configure(step.params);
+                    break;
+                case Step.CUSTOM:
+                    mExpectedCustom = step.data;
+                    client.postCustomData(step.data);
+                    break;
+                case Step.CLOSE:
+                    client.requestCloseConnection();
+                    break;
+                case Step.CHANNELS:
+                    client.openChannel(Step.CHANNEL_BULK, 1);
+                    client.openChannel(Step.CHANNEL_SMALL, Step.CHANNEL_SMALL_WEIGHT);
+                    client.postChannelData(Step.CHANNEL_BULK, step.data);
+                    for (byte[] data : step.smallData) {
+                        client.postChannelData(Step.CHANNEL_SMALL, data);
+                    }
+                    break;
+            }
+
+            boolean done;
+            if (step.kind == Step.CLOSE) {
+                done = mTransport.awaitWritten(written + 1, STAGE_TIMEOUT);
+            } else if (step.kind == Step.CHANNELS) {
+                // Every message is posted and echoed back whole on its channel
+                int count = step.smallData.length + 1;
+                done = mDone[Step.CHANNELS].tryAcquire(count, STAGE_TIMEOUT, TimeUnit.MILLISECONDS)
+                        && mChannelReceived.tryAcquire(count, STAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } else {
+                done = acquire(mDone[step.kind]);
+                if (done && step.kind == Step.CONFIGURE) {
+                    if (step.configurePath >= 0 && mConfigurePath != step.configurePath) {
+                        mErrors++;
+                    }
+                    // The device reports the connection only if it was told to connect
+                    if (step.waitsStatusReport() && !step.fails && mConfigurePath != CONFIGURE_UNCHANGED) {
+                        done = acquire(mDone[Step.STATUS]);
+                    }
+                }
+                if (done && step.kind == Step.CUSTOM && peer == null) {
+                    done = acquire(mCustomReceived);
+                }
+            }
+            if (done && peer != null) {
+                done = peer.awaitDelivered(step.receivedEnd, STAGE_TIMEOUT);
+                stage.recordedNanos = peer.getRecordedDuration(step);
+            }
+
+            stage.wallNanos = System.nanoTime() - startTime;
+            long cpuEnd = getProcessCpuTime();
+            stage.cpuNanos = cpuTime < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuTime;
+            stage.written = mTransport.getWritten() - written;
+            stage.received = mTransport.getReceived() - received;
+            stage.timeout = !done;
+            return stage;
+        }
+
+        private boolean acquire(Semaphore semaphore) throws InterruptedException {
+            return semaphore.tryAcquire(STAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        private void complete(int kind, int status) {
+            if ((status != STATUS_SUCCESS) != (kind == mExpectedFailure)) {
+                mFailures++;
+            }
+            mDone[kind].release();
+        }
+
+        void close() {
+            client.close();
+        }
+
+        @Override
+        public void onNegotiateSecurityResult(BlufiClient client, int status) {
+            complete(Step.NEGOTIATE, status);
+        }
+
+        @Override
+        public void onPostConfigureParams(BlufiClient client, int status) {
+            complete(Step.CONFIGURE, status);
+        }
+
+        @Override
+        public void onConfigurePath(BlufiClient client, int path) {
+            mConfigurePath = path;
+        }
+
+        @Override
+        public void onDeviceStatusResponse(BlufiClient client, int status, BlufiStatusResponse response) {
+            complete(Step.STATUS, status);
+        }
+
+        @Override
+        public void onDeviceScanList(BlufiClient client, int status, BlufiScanList results) {
+            complete(Step.SCAN, status);
+        }
+
+        @Override
+        public void onDeviceVersionResponse(BlufiClient client, int status, BlufiVersionResponse response) {
+            complete(Step.VERSION, status);
+        }
+
+        @Override
+        public void onPostCustomDataResult(BlufiClient client, int status, byte[] data) {
+            complete(Step.CUSTOM, status);
+        }
+
+        @Override
+        public void onReceiveCustomData(BlufiClient client, int status, byte[] data) {
+            // The device echoes the custom data
+            if (!Arrays.equals(data, mExpectedCustom)) {
+                mErrors++;
+            }
+            mCustomReceived.release();
+        }
+
+        @Override
+        public void onPostChannelDataResult(BlufiClient client, int channel, int status, byte[] data) {
+            complete(Step.CHANNELS, status);
+        }
+
+        @Override
+        public void onReceiveChannelData(BlufiClient client, int channel, byte[] data) {
+            mChannelReceived.release();
+        }
+
+        @Override
+        public void onError(BlufiClient client, int errCode) {
+            // A resync is recovered by the client, it is reported by the resync count
+            if (errCode != BlufiCallback.CODE_NOTIFICATION_RESYNC) {
+                mErrors++;
+            }
+        }
+    }
+
+    /**
+     * Play the device side of a frame trace.
+     * <p>
+     * The notifications recorded between two posted frames are delivered after the first of them is
+     * written. At real speed the write result and the notifications keep their recorded delays.
+     */
+    private static final class ReplayPeer implements BlufiTransport {
+        private final boolean mRealtime;
+        private final ScheduledExecutorService mRadio;
+        private int mMtu = -1;
+
+        private final List<byte[]> mSent = new ArrayList<>();
+        private final List<Long> mSentTimes = new ArrayList<>();
+        // The received frames and their times, grouped by the count of frames posted before them
+        private final List<List<byte[]>> mReceived = new ArrayList<>();
+        private final List<List<Long>> mReceivedTimes = new ArrayList<>();
+
+        private Listener mListener;
+        private int mWriteIndex;
+        private int mMismatchCount;
+        private int mDelivered;
+
+        ReplayPeer(List<BlufiFrameTrace.Frame> frames, boolean realtime) {
+            mRealtime = realtime;
+            mRadio = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "BlufiReplayPeer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            mReceived.add(new ArrayList<>());
+            mReceivedTimes.add(new ArrayList<>());
+            for (BlufiFrameTrace.Frame frame : frames) {
+                if (frame.mtu) {
+                    if (mMtu < 0) {
+                        mMtu = frame.getMtu();
+                    }
+                } else if (frame.direction == BlufiFrameTrace.DIRECTION_SENT) {
+                    mSent.add(frame.data);
+                    mSentTimes.add(frame.timestamp);
+                    mReceived.add(new ArrayList<>());
+                    mReceivedTimes.add(new ArrayList<>());
+                } else {
+                    mReceived.get(mSent.size()).add(frame.data);
+                    mReceivedTimes.get(mSent.size()).add(frame.timestamp);
+                }
+            }
+        }
+
+        /**
+         * Rebuild the operations of the session from the posted frames.
+         */
+        List<Step> buildSteps() throws IOException {
+            List<BlufiSimulatedDevice.Message> messages = new ArrayList<>();
+            List<int[]> ranges = BlufiSimulatedDevice.indexMessages(mSent, messages);
+            List<Step> steps = new ArrayList<>();
+            Step configure = null;
+            for (int i = 0; i < messages.size(); i++) {
+                BlufiSimulatedDevice.Message message = messages.get(i);
+                int lastFrame = ranges.get(i)[1];
+                if (message.encrypted) {
+                    throw new IOException("Security is negotiated, the encrypted frames can't be replayed");
+                }
+                Step step = null;
+                byte[] data = message.data;
+                if (message.pkgType == Type.Ctrl.PACKAGE_VALUE) {
+                    switch (message.subType) {
+                        case Type.Ctrl.SUBTYPE_GET_VERSION:
+                            step = new Step(Step.VERSION);
+                            break;
+                        case Type.Ctrl.SUBTYPE_GET_WIFI_STATUS:
+                            step = new Step(Step.STATUS);
+                            break;
+                        case Type.Ctrl.SUBTYPE_GET_WIFI_LIST:
+                            step = new Step(Step.SCAN);
+                            break;
+                        case Type.Ctrl.SUBTYPE_CLOSE_CONNECTION:
+                            step = new Step(Step.CLOSE);
+                            break;
+                        case Type.Ctrl.SUBTYPE_SET_OP_MODE:
+                            configure = new Step(Step.CONFIGURE);
+                            configure.params = new BlufiConfigureParams();
+                            configure.params.setOpMode(data.length > 0 ? data[0] : BlufiParameter.OP_MODE_NULL);
+                            if (configure.params.getOpMode() == BlufiParameter.OP_MODE_NULL) {
+                                step = configure;
+                            }
+                            break;
+                        case Type.Ctrl.SUBTYPE_CONNECT_WIFI:
+                            if (configure != null && configure.params.getOpMode() == BlufiParameter.OP_MODE_STA) {
+                                step = configure;
+                            }
+                            break;
+                        case Type.Ctrl.SUBTYPE_SET_SEC_MODE:
+                            throw new IOException("Security mode is set, the session can't be replayed");
+                    }
+                } else {
+                    switch (message.subType) {
+                        case Type.Data.SUBTYPE_NEG:
+                            throw new IOException("Security is negotiated, the session can't be replayed");
+                        case Type.Data.SUBTYPE_CUSTOM_DATA:
+                            step = Step.custom(data);
+                            break;
+                        case Type.Data.SUBTYPE_STA_WIFI_SSID:
+                            requireConfigure(configure).params.setStaSSIDBytes(data);
+                            break;
+                        case Type.Data.SUBTYPE_STA_WIFI_PASSWORD:
+                            requireConfigure(configure).params.setStaPassword(new String(data));
+                            break;
+                        case Type.Data.SUBTYPE_SOFTAP_WIFI_SSID:
+                            requireConfigure(configure).params.setSoftAPSSID(new String(data));
+                            break;
+                        case Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD:
+                            requireConfigure(configure).params.setSoftAPPAssword(new String(data));
+                            break;
+                        case Type.Data.SUBTYPE_SOFTAP_CHANNEL:
+                            requireConfigure(configure).params.setSoftAPChannel(data[0] & 0xff);
+                            break;
+                        case Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT:
+                            requireConfigure(configure).params.setSoftAPMaxConnection(data[0] & 0xff);
+                            break;
+                        case Type.Data.SUBTYPE_SOFTAP_AUTH_MODE:
+                            requireConfigure(configure).params.setSoftAPSecurity(data[0] & 0xff);
+                            step = configure;
+                            break;
+                    }
+                }
+
+                if (step != null) {
+                    if (step == configure) {
+                        configure = null;
+                    }
+                    step.lastFrame = lastFrame;
+                    steps.add(step);
+                }
+            }
+
+            int firstFrame = 0;
+            for (Step step : steps) {
+                step.firstFrame = firstFrame;
+                step.receivedEnd = countReceivedBefore(step.lastFrame + 1);
+                firstFrame = step.lastFrame + 1;
+            }
+            if (!steps.isEmpty()) {
+                steps.get(steps.size() - 1).receivedEnd = countReceivedBefore(mSent.size());
+            }
+            return steps;
+        }
+
+        private static Step requireConfigure(Step configure) throws IOException {
+            if (configure == null) {
+                throw new IOException("Configure data is posted before the op mode");
+            }
+            return configure;
+        }
+
+        private int countReceivedBefore(int sentCount) {
+            int count = 0;
+            for (int i = 0; i <= sentCount && i < mReceived.size(); i++) {
+                count += mReceived.get(i).size();
+            }
+            return count;
+        }
+
+        long getRecordedDuration(Step step) {
+            long start = mSentTimes.get(step.firstFrame);
+            long end = mSentTimes.get(step.lastFrame);
+            List<Long> received = mReceivedTimes.get(step.lastFrame + 1);
+            if (!received.isEmpty()) {
+                end = Math.max(end, received.get(received.size() - 1));
+            }
+            return end - start;
+        }
+
+        @Override
+        public void open(Listener listener) {
+            mListener = listener;
+            for (byte[] frame : mReceived.get(0)) {
+                mRadio.execute(() -> deliver(frame));
+            }
+        }
+
+        @Override
+        public synchronized boolean write(byte[] frame) {
+            int index = mWriteIndex++;
+            if (index >= mSent.size()) {
+                mMismatchCount++;
+                mRadio.execute(() -> mListener.onWritten(true));
+                return true;
+            }
+            if (!Arrays.equals(frame, mSent.get(index))) {
+                mMismatchCount++;
+            }
+
+            long sentTime = mSentTimes.get(index);
+            List<byte[]> received = mReceived.get(index + 1);
+            List<Long> receivedTimes = mReceivedTimes.get(index + 1);
+            long nextTime = index + 1 < mSent.size() ? mSentTimes.get(index + 1) : sentTime;
+            if (!receivedTimes.isEmpty()) {
+                nextTime = Math.min(nextTime, receivedTimes.get(0));
+            }
+            schedule(nextTime - sentTime, () -> mListener.onWritten(true));
+            for (int i = 0; i < received.size(); i++) {
+                byte[] data = received.get(i);
+                schedule(receivedTimes.get(i) - sentTime, () -> deliver(data));
+            }
+            return true;
+        }
+
+        @Override
+        public int getMtu() {
+            return mMtu;
+        }
+
+        private void schedule(long delayNanos, Runnable runnable) {
+            if (mRealtime && delayNanos > 0) {
+                mRadio.schedule(runnable, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                mRadio.execute(runnable);
+            }
+        }
+
+        private void deliver(byte[] frame) {
+            mListener.onReceived(frame);
+            synchronized (this) {
+                mDelivered++;
+                notifyAll();
+            }
+        }
+
+        synchronized boolean awaitDelivered(int count, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (mDelivered < count) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+
+        synchronized int getMismatchCount() {
+            return mMismatchCount + Math.max(mSent.size() - mWriteIndex, 0);
+        }
+
+        void shutdown() {
+            mRadio.shutdownNow();
+        }
+    }
+
+    static final class Stage {
+        final String name;
+        int written;
+        int received;
+        long wallNanos;
+        long cpuNanos;
+        long recordedNanos = -1;
+        boolean timeout;
+
+        Stage(String name) {
+            this.name = name;
+        }
+    }
+
+    static final class Report {
+        final String title;
+        final List<Stage> stages = new ArrayList<>();
+        int failures;
+        int errors;
+        int mismatches;
+        long retransmits;
+        long resyncs;
+        /**
+         * Link throughput in bytes per second, indexed by connection priority.
+         */
+        final long[] throughputs = {-1, -1, -1};
+        int linkGrade;
+        long bulkThroughput = -1;
+        long smallThroughput = -1;
+        float compressionRatio = -1f;
+        long goodput = -1;
+
+        Report(String title) {
+            this.title = title;
+        }
+
+        boolean isSuccess() {
+            for (Stage stage : stages) {
+                if (stage.timeout) {
+                    return false;
+                }
+            }
+            return failures == 0 && errors == 0 && mismatches == 0;
+        }
+
+        @Override
+        public String toString() {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(os);
+            print(out);
+            out.flush();
+            return os.toString();
+        }
+
+        void print(PrintStream out) {
+            out.println(title);
+            out.println(String.format(Locale.ENGLISH, "  %-10s %5s %5s %11s %11s %12s",
+                    "stage", "out", "in", "wall ms", "cpu ms", "recorded ms"));
+            long wall = 0;
+            long cpu = 0;
+            long recorded = 0;
+            for (Stage stage : stages) {
+                out.println(String.format(Locale.ENGLISH, "  %-10s %5d %5d %11.2f %11s %12s%s",
+                        stage.name, stage.written, stage.received, stage.wallNanos / 1e6,
+                        formatMillis(stage.cpuNanos), formatMillis(stage.recordedNanos),
+                        stage.timeout ? "  TIMEOUT" : ""));
+                wall += stage.wallNanos;
+                cpu = cpu < 0 || stage.cpuNanos < 0 ? -1 : cpu + stage.cpuNanos;
+                recorded = recorded < 0 || stage.recordedNanos < 0 ? -1 : recorded + stage.recordedNanos;
+            }
+            out.println(String.format(Locale.ENGLISH, "  %-10s %5s %5s %11.2f %11s %12s",
+                    "total", "", "", wall / 1e6, formatMillis(cpu), formatMillis(recorded)));
+            out.println(String.format(Locale.ENGLISH,
+                    "  failures: %d, errors: %d, mismatched frames: %d, retransmitted frames: %d, resyncs: %d, %s",
+                    failures, errors, mismatches, retransmits, resyncs, isSuccess() ? "PASS" : "FAIL"));
+            out.println(String.format(Locale.ENGLISH,
+                    "  link grade: %d, link throughput B/s, high: %d, balanced: %d, low power: %d",
+                    linkGrade, throughputs[1], throughputs[0], throughputs[2]));
+            if (compressionRatio >= 0) {
+                out.println(String.format(Locale.ENGLISH, "  custom data compression ratio: %.3f, goodput B/s: %d",
+                        compressionRatio, goodput));
+            }
+            if (bulkThroughput >= 0 || smallThroughput >= 0) {
+                out.println(String.format(Locale.ENGLISH, "  channel throughput B/s, bulk: %d, small: %d",
+                        bulkThroughput, smallThroughput));
+            }
+        }
+
+        private static String formatMillis(long nanos) {
+            return nanos < 0 ? "-" : String.format(Locale.ENGLISH, "%.2f", nanos / 1e6);
+        }
+    }
+}
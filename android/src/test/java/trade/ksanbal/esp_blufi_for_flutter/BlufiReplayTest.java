@@ -0,0 +1,102 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Runs the {@link BlufiReplay} sessions against the simulated device and replays the traces in
+ * {@code android/traces}.
+ */
+public class BlufiReplayTest {
+    private static final File TRACES_DIR = new File("traces");
+
+    private static BlufiReplay.Report simulate(String name) throws InterruptedException {
+        BlufiReplay.Report report = BlufiReplay.simulate(BlufiReplay.Scenario.builtIn(name), false);
+        assertTrue(report.toString(), report.isSuccess());
+        return report;
+    }
+
+    @Test
+    public void provision() throws Exception {
+        simulate("provision");
+    }
+
+    @Test
+    public void scanWithSmallMtu() throws Exception {
+        simulate("scan_small_mtu");
+    }
+
+    @Test
+    public void customDataIsEchoed() throws Exception {
+        simulate("custom_data");
+    }
+
+    @Test
+    public void secureProvision() throws Exception {
+        simulate("secure_provision");
+    }
+
+    @Test
+    public void lostWritesAreRetransmitted() throws Exception {
+        // The configure is posted as a burst, every 7th write of it fails
+        BlufiReplay.Report report = simulate("lossy_provision");
+        assertTrue(report.toString(), report.retransmits > 0);
+    }
+
+    @Test
+    public void sessionContinuesAfterFailedBurst() throws Exception {
+        // The configure fails at its second frame, the device error count must stay zero
+        simulate("burst_failure");
+    }
+
+    @Test
+    public void lostNotificationsAreResynced() throws Exception {
+        BlufiReplay.Report report = simulate("unreliable_notify");
+        assertTrue(report.toString(), report.resyncs > 0);
+    }
+
+    @Test
+    public void channelsShareTheLink() throws Exception {
+        BlufiReplay.Report report = simulate("channels");
+        assertTrue(report.toString(), report.bulkThroughput > 0 && report.smallThroughput > 0);
+    }
+
+    @Test
+    public void customDataIsCompressed() throws Exception {
+        BlufiReplay.Report report = simulate("compressed_custom");
+        assertTrue(report.toString(), report.compressionRatio > 0 && report.compressionRatio < 1);
+    }
+
+    @Test
+    public void compressionIsAskedFromTheMinVersion() throws Exception {
+        BlufiReplay.Report report = simulate("compressed_min_version");
+        assertTrue(report.toString(), report.compressionRatio > 0 && report.compressionRatio < 1);
+    }
+
+    @Test
+    public void compressionIsNotAskedFromOlderDevices() throws Exception {
+        simulate("compression_older_device");
+    }
+
+    @Test
+    public void reprovisionPostsTheChangedFieldsOnly() throws Exception {
+        simulate("reprovision");
+    }
+
+    @Test
+    public void replayTraces() throws Exception {
+        File[] traces = TRACES_DIR.listFiles((dir, name) -> name.endsWith(".btsnoop"));
+        assertNotNull("No traces in " + TRACES_DIR.getAbsolutePath(), traces);
+        assertTrue("No traces in " + TRACES_DIR.getAbsolutePath(), traces.length > 0);
+        Arrays.sort(traces);
+        for (File trace : traces) {
+            BlufiReplay.Report report = BlufiReplay.replay(trace, false);
+            assertTrue(report.toString(), report.isSuccess());
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package trade.ksanbal.esp_blufi_for_flutter;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter;
+import trade.ksanbal.esp_blufi_for_flutter.params.BlufiParameter.Type;
+import trade.ksanbal.esp_blufi_for_flutter.security.BlufiAES;
+import trade.ksanbal.esp_blufi_for_flutter.security.BlufiCRC;
+import trade.ksanbal.esp_blufi_for_flutter.security.BlufiDH;
+import trade.ksanbal.esp_blufi_for_flutter.security.BlufiMD5;
+
+/**
+ * The device side of the Blufi protocol, it runs in place of the GATT connection.
+ * <p>
+ * It answers the version, status and Wi-Fi scan requests, acknowledges the frames requiring ack,
+ * negotiates security, accepts the configure frames and echoes the custom data. It accepts the custom
+ * data compression, verifies the compressed payloads decode and echoes them compressed. The write result
+ * and notifications are delivered on its own thread after the configured latencies.
+ */
+class BlufiSimulatedDevice implements BlufiTransport {
+    private static final String AES_TRANSFORMATION = "AES/CFB/NoPadding";
+    private static final int DH_LENGTH = 1024;
+    /**
+     * The version the device reports, {major, minor}.
+     */
+    static final int[] VERSION = {1, 3};
+
+    private final int mMtu;
+    private final long mWriteLatency;
+    private final long mNotifyLatency;
+    private volatile int mWriteFailureInterval;
+    private volatile int mFailedWrite;
+    private int mWriteCount;
+    private volatile int mDuplicateInterval;
+    private volatile int mDropInterval;
+    private int mNotifyCount;
+    private int mDataNotifyCount;
+    private final ScheduledExecutorService mRadio;
+
+    private Listener mListener;
+
+    private int mReadSequence = -1;
+    private int mSendSequence = -1;
+    private final FrameReader mFrameReader = new FrameReader();
+
+    private byte[] mAESKey;
+    private boolean mDataEncrypted;
+    private boolean mDataChecksum;
+    private boolean mCtrlEncrypted;
+    private boolean mCtrlChecksum;
+
+    private int mOpMode = BlufiParameter.OP_MODE_NULL;
+    private byte[] mStaSSID;
+    private boolean mStaConnected;
+    private long mConnectDelay = 200L;
+
+    private String[] mScanSSIDs = new String[0];
+    private int[] mScanRssi = new int[0];
+
+    private volatile int mErrorCount;
+
+    private volatile boolean mCompressionSupported = true;
+    private boolean mCompressionNegotiated;
+    private volatile int mCompressedCount;
+    private volatile int mCompressionRequestCount;
+
+    /**
+     * @param mtu the MTU reported to the client
+     * @param writeLatency milliseconds before a write completes, 0 completes as soon as possible
+     * @param notifyLatency milliseconds before a response is notified
+     */
+    BlufiSimulatedDevice(int mtu, long writeLatency, long notifyLatency) {
+        mMtu = mtu;
+        mWriteLatency = writeLatency;
+        mNotifyLatency = notifyLatency;
+        mRadio = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BlufiSimulatedDevice");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set the access points reported by the Wi-Fi scan.
+     */
+    synchronized void setScanList(String[] ssids, int[] rssi) {
+        mScanSSIDs = ssids;
+        mScanRssi = rssi;
+    }
+
+    /**
+     * @param delay milliseconds between the connect request and the connection state report
+     */
+    synchronized void setConnectDelay(long delay) {
+        mConnectDelay = delay;
+    }
+
+    /**
+     * Fail every n-th write, the frame is lost as if the radio dropped it.
+     *
+     * @param interval 0 to never fail
+     */
+    void setWriteFailureInterval(int interval) {
+        mWriteFailureInterval = interval;
+    }
+
+    /**
+     * Fail the n-th write only, counted from 1, the frame is lost as if the radio dropped it.
+     *
+     * @param index 0 to never fail
+     */
+    void setFailedWrite(int index) {
+        mFailedWrite = index;
+    }
+
+    /**
+     * Send every n-th notification twice and lose every m-th data notification, ctrl notifications are
+     * never lost so the acks always arrive.
+     *
+     * @param duplicateInterval 0 to never duplicate
+     * @param dropInterval 0 to never lose
+     */
+    void setNotificationFaults(int duplicateInterval, int dropInterval) {
+        mDuplicateInterval = duplicateInterval;
+        mDropInterval = dropInterval;
+    }
+
+    /**
+     * @param supported false to echo the compression request like any custom data
+     */
+    void setCompressionSupported(boolean supported) {
+        mCompressionSupported = supported;
+    }
+
+    /**
+     * @return the count of custom data payloads received compressed and decoded
+     */
+    int getCompressedCount() {
+        return mCompressedCount;
+    }
+
+    /**
+     * @return the count of compression requests received, supported or not
+     */
+    int getCompressionRequestCount() {
+        return mCompressionRequestCount;
+    }
+
+    /**
+     * @return the count of frames that failed to parse, such as wrong sequence or checksum
+     */
+    int getErrorCount() {
+        return mErrorCount;
+    }
+
+    void shutdown() {
+        mRadio.shutdownNow();
+    }
+
+    @Override
+    public void open(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public boolean write(byte[] frame) {
+        byte[] copy = frame.clone();
+        schedule(mWriteLatency, () -> {
+            mWriteCount++;
+            if ((mWriteFailureInterval > 0 && mWriteCount % mWriteFailureInterval == 0)
+                    || mWriteCount == mFailedWrite) {
+                mListener.onWritten(false);
+                return;
+            }
+            mListener.onWritten(true);
+            onFrame(copy);
+        });
+        return true;
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    private void schedule(long delay, Runnable runnable) {
+        if (delay > 0) {
+            mRadio.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+        } else {
+            mRadio.execute(runnable);
+        }
+    }
+
+    private synchronized void onFrame(byte[] frame) {
+        if (frame.length < 4 || (frame[2] & 0xff) != (++mReadSequence & 0xff)) {
+            mErrorCount++;
+            return;
+        }
+        int sequence = frame[2] & 0xff;
+        FrameCtrlData frameCtrl = new FrameCtrlData(frame[1] & 0xff);
+        if (frameCtrl.isAckRequirement()) {
+            notifyDevice(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_ACK, new byte[]{(byte) sequence});
+        }
+
+        Message message = mFrameReader.read(frame, mAESKey);
+        if (message == FrameReader.INVALID) {
+            mErrorCount++;
+        } else if (message != null) {
+            onMessage(message);
+        }
+    }
+
+    private void onMessage(Message message) {
+        byte[] data = message.data;
+        if (message.pkgType == Type.Ctrl.PACKAGE_VALUE) {
+            switch (message.subType) {
+                case Type.Ctrl.SUBTYPE_SET_SEC_MODE:
+                    int mode = data.length > 0 ? data[0] : 0;
+                    mDataChecksum = (mode & 1) != 0;
+                    mDataEncrypted = (mode & 0b10) != 0;
+                    mCtrlChecksum = (mode & 0b10000) != 0;
+                    mCtrlEncrypted = (mode & 0b100000) != 0;
+                    break;
+                case Type.Ctrl.SUBTYPE_SET_OP_MODE:
+                    mOpMode = data.length > 0 ? data[0] : BlufiParameter.OP_MODE_NULL;
+                    break;
+                case Type.Ctrl.SUBTYPE_CONNECT_WIFI:
+                    mStaConnected = mStaSSID != null && mStaSSID.length > 0;
+                    mRadio.schedule(() -> {
+                        synchronized (BlufiSimulatedDevice.this) {
+                            notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, getStatus());
+                        }
+                    }, mConnectDelay + mNotifyLatency, TimeUnit.MILLISECONDS);
+                    break;
+                case Type.Ctrl.SUBTYPE_DISCONNECT_WIFI:
+                    mStaConnected = false;
+                    break;
+                case Type.Ctrl.SUBTYPE_GET_WIFI_STATUS:
+                    notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_WIFI_CONNECTION_STATE, getStatus());
+                    break;
+                case Type.Ctrl.SUBTYPE_GET_VERSION:
+                    notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_VERSION,
+                            new byte[]{(byte) VERSION[0], (byte) VERSION[1]});
+                    break;
+                case Type.Ctrl.SUBTYPE_GET_WIFI_LIST:
+                    notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_WIFI_LIST, getScanList());
+                    break;
+            }
+        } else {
+            switch (message.subType) {
+                case Type.Data.SUBTYPE_NEG:
+                    onNegotiation(data);
+                    break;
+                case Type.Data.SUBTYPE_STA_WIFI_SSID:
+                    mStaSSID = data;
+                    break;
+                case Type.Data.SUBTYPE_CUSTOM_DATA:
+                    onCustomData(data);
+                    break;
+            }
+        }
+    }
+
+    private void onCustomData(byte[] data) {
+        if (BlufiCompression.isRequest(data)) {
+            mCompressionRequestCount++;
+        }
+        if (mCompressionSupported && !mCompressionNegotiated && BlufiCompression.isRequest(data)) {
+            mCompressionNegotiated = true;
+            notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA, BlufiCompression.RESPONSE);
+            return;
+        }
+        if (!mCompressionNegotiated) {
+            notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA, data);
+            return;
+        }
+        byte[] decoded = BlufiCompression.decode(data);
+        if (decoded == null) {
+            mErrorCount++;
+            return;
+        }
+        if (data[0] == BlufiCompression.CODEC_DEFLATE) {
+            mCompressedCount++;
+        }
+        notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA, BlufiCompression.encode(decoded));
+    }
+
+    private void onNegotiation(byte[] data) {
+        if (data.length == 0 || data[0] != 0x01) {
+            // The total length of the parameters, nothing to prepare
+            return;
+        }
+        int offset = 1;
+        BigInteger[] values = new BigInteger[3];
+        for (int i = 0; i < values.length; i++) {
+            int length = (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+            offset += 2;
+            byte[] value = new byte[length];
+            System.arraycopy(data, offset, value, 0, length);
+            offset += length;
+            values[i] = new BigInteger(1, value);
+        }
+
+        BlufiDH dh = new BlufiDH(values[0], values[1], DH_LENGTH);
+        dh.generateSecretKey(values[2]);
+        mAESKey = BlufiMD5.getMD5Bytes(dh.getSecretKey());
+
+        DHPublicKey publicKey = dh.getPublicKey();
+        byte[] y = publicKey.getY().toByteArray();
+        byte[] key = new byte[128];
+        int copy = Math.min(y.length, key.length);
+        System.arraycopy(y, y.length - copy, key, key.length - copy, copy);
+        notifyDevice(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG, key);
+    }
+
+    private byte[] getStatus() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(mOpMode);
+        os.write(mStaConnected ? BlufiParameter.STA_CONN_SUCCESS : BlufiParameter.STA_CONN_FAIL);
+        os.write(0);
+        if (mStaConnected) {
+            os.write(Type.Data.SUBTYPE_STA_WIFI_BSSID);
+            os.write(6);
+            os.write(new byte[]{0x24, 0x0a, (byte) 0xc4, 0x12, 0x34, 0x56}, 0, 6);
+        }
+        if (mStaSSID != null) {
+            os.write(Type.Data.SUBTYPE_STA_WIFI_SSID);
+            os.write(mStaSSID.length);
+            os.write(mStaSSID, 0, mStaSSID.length);
+        }
+        if (!mStaConnected) {
+            os.write(Type.Data.SUBTYPE_STA_WIFI_CONN_END_REASON);
+            os.write(1);
+            os.write(BlufiParameter.WIFI_REASON_NO_AP_FOUND);
+        }
+        return os.toByteArray();
+    }
+
+    private byte[] getScanList() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 0; i < mScanSSIDs.length; i++) {
+            byte[] ssid = mScanSSIDs[i].getBytes(StandardCharsets.UTF_8);
+            os.write(ssid.length + 1);
+            os.write(mScanRssi[i]);
+            os.write(ssid, 0, ssid.length);
+        }
+        return os.toByteArray();
+    }
+
+    private void notifyDevice(int pkgType, int subType, byte[] data) {
+        boolean ctrl = pkgType == Type.Ctrl.PACKAGE_VALUE;
+        boolean encrypt = mAESKey != null && (ctrl ? mCtrlEncrypted : mDataEncrypted);
+        boolean checksum = ctrl ? mCtrlChecksum : mDataChecksum;
+        int type = (subType << 2) | pkgType;
+
+        int limit = Math.min(mMtu - 4, 255) - 4 - 2 - (checksum ? 2 : 0);
+        int offset = 0;
+        do {
+            int remain = data.length - offset;
+            int length = remain - limit <= 2 ? remain : limit;
+            boolean frag = length < remain;
+            byte[] content;
+            if (frag) {
+                content = new byte[length + 2];
+                content[0] = (byte) remain;
+                content[1] = (byte) (remain >> 8);
+                System.arraycopy(data, offset, content, 2, length);
+            } else {
+                content = new byte[length];
+                System.arraycopy(data, offset, content, 0, length);
+            }
+            offset += length;
+
+            byte[] frame = buildFrame(type, encrypt, checksum, frag, ++mSendSequence & 0xff, content);
+            if (!ctrl && mDropInterval > 0 && ++mDataNotifyCount % mDropInterval == 0) {
+                continue;
+            }
+            schedule(mNotifyLatency, () -> mListener.onReceived(frame));
+            if (mDuplicateInterval > 0 && ++mNotifyCount % mDuplicateInterval == 0) {
+                schedule(mNotifyLatency, () -> mListener.onReceived(frame));
+            }
+        } while (offset < data.length);
+    }
+
+    private byte[] buildFrame(int type, boolean encrypt, boolean checksum, boolean frag, int sequence, byte[] data) {
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(encrypt, checksum, BlufiParameter.DIRECTION_INPUT, false, frag);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(type);
+        os.write(frameCtrl);
+        os.write(sequence);
+        os.write(data.length);
+
+        int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) data.length});
+        crc = BlufiCRC.calcCRC(crc, data);
+        byte[] payload = encrypt ? new BlufiAES(mAESKey, AES_TRANSFORMATION, generateAESIV(sequence)).encrypt(data) : data;
+        os.write(payload, 0, payload.length);
+        if (checksum) {
+            os.write(crc & 0xff);
+            os.write(crc >> 8 & 0xff);
+        }
+        return os.toByteArray();
+    }
+
+    private static byte[] generateAESIV(int sequence) {
+        byte[] result = new byte[16];
+        result[0] = (byte) sequence;
+        return result;
+    }
+
+    /**
+     * A reassembled message of the frames posted by the client.
+     */
+    static class Message {
+        final int pkgType;
+        final int subType;
+        final byte[] data;
+        final boolean encrypted;
+
+        Message(int pkgType, int subType, byte[] data, boolean encrypted) {
+            this.pkgType = pkgType;
+            this.subType = subType;
+            this.data = data;
+            this.encrypted = encrypted;
+        }
+    }
+
+    /**
+     * Reassemble the frames posted by the client into messages.
+     */
+    static class FrameReader {
+        static final Message INVALID = new Message(-1, -1, new byte[0], false);
+
+        private final ByteArrayOutputStream mContent = new ByteArrayOutputStream();
+        private boolean mEncrypted;
+
+        /**
+         * @param frame a frame posted by the client
+         * @param aesKey the negotiated key, null if it is not negotiated
+         * @return the message if the frame completes it, null if more fragments follow, or
+         * {@link #INVALID} if the frame is broken or can't be decrypted
+         */
+        Message read(byte[] frame, byte[] aesKey) {
+            if (frame.length < 4) {
+                return INVALID;
+            }
+            int type = frame[0] & 0xff;
+            int sequence = frame[2] & 0xff;
+            int length = frame[3] & 0xff;
+            if (frame.length < 4 + length) {
+                return INVALID;
+            }
+            FrameCtrlData frameCtrl = new FrameCtrlData(frame[1] & 0xff);
+            byte[] data = new byte[length];
+            System.arraycopy(frame, 4, data, 0, length);
+            if (frameCtrl.isEncrypted()) {
+                if (aesKey == null) {
+                    mContent.reset();
+                    mEncrypted = true;
+                    return frameCtrl.hasFrag() ? null : new Message(type & 0b11, type >> 2, new byte[0], true);
+                }
+                data = new BlufiAES(aesKey, AES_TRANSFORMATION, generateAESIV(sequence)).decrypt(data);
+            }
+            if (frameCtrl.isChecksum()) {
+                if (frame.length < 4 + length + 2) {
+                    return INVALID;
+                }
+                int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) length});
+                crc = BlufiCRC.calcCRC(crc, data);
+                if ((frame[4 + length] & 0xff) != (crc & 0xff) || (frame[5 + length] & 0xff) != (crc >> 8 & 0xff)) {
+                    mContent.reset();
+                    return INVALID;
+                }
+            }
+
+            int offset = frameCtrl.hasFrag() ? 2 : 0;
+            mContent.write(data, offset, data.length - offset);
+            if (frameCtrl.hasFrag()) {
+                return null;
+            }
+            Message message = new Message(type & 0b11, type >> 2, mContent.toByteArray(), mEncrypted);
+            mContent.reset();
+            mEncrypted = false;
+            return message;
+        }
+    }
+
+    /**
+     * Split the frames posted by the client into messages, keeping the index of the last frame of
+     * each message.
+     */
+    static List<int[]> indexMessages(List<byte[]> frames, List<Message> messages) {
+        FrameReader reader = new FrameReader();
+        List<int[]> ranges = new ArrayList<>();
+        int first = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            Message message = reader.read(frames.get(i), null);
+            if (message == null) {
+                continue;
+            }
+            messages.add(message);
+            ranges.add(new int[]{first, i});
+            first = i + 1;
+        }
+        return ranges;
+    }
+}
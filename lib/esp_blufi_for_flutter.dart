@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:flutter/services.dart';
 
@@ -52,11 +53,60 @@ class BlufiPlugin {
     await _channel!.invokeMethod('stopScan');
   }
 
+  /// 开始自动配网（仅 Android）
+  /// 扫描到名称匹配的设备后直接放入配网队列，使用扫描结果中的设备连接并配网，扫描同时继续进行
+  /// 每台设备在一次自动配网中只配网一次，完成后断开连接
+  /// 进度通过 auto_provision 消息通知，state 为 started、success、connect_failed、
+  /// configure_failed、wifi_failed 或 timeout
+  /// [filter] 设备名称过滤字符串，不能为空
+  /// [profile] 已保存的配网方案名称，为空时使用 [username] 和 [password]
+  /// [username] WiFi SSID（WiFi名称）
+  /// [password] WiFi 密码
+  /// [concurrency] 同时配网的设备数量，默认 2
+  /// [capacity] 等待配网的设备数量上限，队列满时忽略新发现的设备，之后的广播会再次加入，默认 16
+  /// [timeout] 每台设备从连接到设备报告 WiFi 连接结果的超时时间，默认 60 秒
+  Future<bool?> startAutoProvision(
+      {required String filter,
+      String? profile,
+      String? username,
+      String? password,
+      int? concurrency,
+      int? capacity,
+      Duration? timeout}) async {
+    return await _channel!
+        .invokeMethod<bool>('startAutoProvision', <String, dynamic>{
+      'filter': filter,
+      'profile': profile,
+      'username': username,
+      'password': password,
+      'concurrency': concurrency,
+      'capacity': capacity,
+      if (timeout != null) 'timeout': timeout.inMilliseconds,
+    });
+  }
+
+  /// 停止自动配网和扫描，正在配网的设备继续完成（仅 Android）
+  Future stopAutoProvision() async {
+    await _channel!.invokeMethod('stopAutoProvision');
+  }
+
+  /// 获取自动配网的统计（仅 Android）
+  /// 返回 running、queued（等待中）、active（配网中）、succeeded、failed 和 dropped（队列满时忽略的次数）
+  Future<Map<dynamic, dynamic>?> getAutoProvisionStats() async {
+    return await _channel!
+        .invokeMethod<Map<dynamic, dynamic>>('getAutoProvisionStats');
+  }
+
   /// 连接蓝牙设备
   /// [peripheralAddress] 设备地址（MAC地址）
-  Future<bool?> connectPeripheral({String? peripheralAddress}) async {
+  /// [timeout] 等待连接结果的超时时间，默认 30 秒
+  Future<bool?> connectPeripheral(
+      {String? peripheralAddress, Duration? timeout}) async {
     final bool? result = await _channel!.invokeMethod<bool>('connectPeripheral',
-        <String, dynamic>{'peripheral': peripheralAddress});
+        <String, dynamic>{
+          'peripheral': peripheralAddress,
+          if (timeout != null) 'timeout': timeout.inMilliseconds,
+        });
     return result ?? false;
   }
 
@@ -87,6 +137,50 @@ class BlufiPlugin {
     return result ?? false;
   }
 
+  /// 设置配网时只发送变化的参数（仅 Android）
+  /// 开启后配网前先查询设备状态，设备已连接到目标 WiFi 时不再发送任何参数，避免设备断开重连；
+  /// 否则只发送与设备当前状态不同的参数，工作模式不同或查询不到状态时全部发送
+  /// 实际的方式通过 configure_path 消息通知：full、partial 或 unchanged
+  /// [enable] 是否开启，默认关闭，对当前和之后的连接生效
+  Future setConfigureIfChanged(bool enable) async {
+    await _channel!.invokeMethod(
+        'setConfigureIfChanged', <String, dynamic>{'enable': enable});
+  }
+
+  /// 保存 Station 模式的配网方案（仅 Android）
+  /// 方案以二进制格式保存在应用私有目录，WiFi 名称和密码只编码一次，同名方案会被替换
+  /// [name] 方案名称
+  /// [username] WiFi SSID（WiFi名称）
+  /// [password] WiFi 密码
+  Future<bool?> saveProfile(
+      {required String name, required String username, String? password}) async {
+    return await _channel!.invokeMethod<bool>('saveProfile', <String, dynamic>{
+      'name': name,
+      'username': username,
+      'password': password
+    });
+  }
+
+  /// 删除配网方案（仅 Android）
+  /// 返回 false 表示方案不存在
+  Future<bool?> removeProfile(String name) async {
+    return await _channel!
+        .invokeMethod<bool>('removeProfile', <String, dynamic>{'name': name});
+  }
+
+  /// 获取所有配网方案名称（仅 Android）
+  Future<List<String>?> getProfileNames() async {
+    return await _channel!.invokeListMethod<String>('getProfileNames');
+  }
+
+  /// 使用已保存的配网方案配置当前设备（仅 Android）
+  /// 批量配网时每台设备直接发送方案中已编码的数据，结果通过 configure_params 消息通知
+  /// [name] 方案名称
+  Future configProfile(String name) async {
+    await _channel!
+        .invokeMethod('configProfile', <String, dynamic>{'name': name});
+  }
+
   /// 请求设备当前状态
   /// 可以查询设备是否已连接到WiFi等信息
   Future requestDeviceStatus() async {
@@ -94,9 +188,76 @@ class BlufiPlugin {
   }
 
   /// 请求设备扫描WiFi列表
-  /// 获取设备扫描到的附近WiFi网络列表
-  Future requestDeviceScan() async {
-    await _channel!.invokeMethod('requestDeviceScan');
+  /// 获取设备扫描到的附近WiFi网络列表，Android 端在缓存有效期内直接返回缓存结果
+  /// [forceRefresh] true 忽略缓存，让设备重新扫描
+  Future requestDeviceScan({bool forceRefresh = false}) async {
+    await _channel!.invokeMethod(
+        'requestDeviceScan', <String, dynamic>{'forceRefresh': forceRefresh});
+  }
+
+  /// 设置WiFi扫描结果缓存时间（仅 Android）
+  /// [ttl] 缓存有效时间（毫秒），小于等于 0 表示不使用缓存
+  Future setScanCacheTtl(int ttl) async {
+    await _channel!.invokeMethod('setScanCacheTtl', <String, dynamic>{'ttl': ttl});
+  }
+
+  /// 导出当前设备最近收发的帧记录（仅 Android）
+  /// 返回 btsnoop 格式文件的路径，未连接时返回 null
+  Future<String?> dumpFrameTrace() async {
+    return await _channel!.invokeMethod<String>('dumpFrameTrace');
+  }
+
+  /// 获取当前发送的包长度（仅 Android）
+  /// 连接后会使用协商的 MTU，并自动探测最快且可靠的包长度
+  Future<int?> getPackageLength() async {
+    return await _channel!.invokeMethod<int>('getPackageLength');
+  }
+
+  /// 获取当前连接的链路质量等级（仅 Android）
+  /// 0 良好，1 一般，2 较差，未连接时返回 -1
+  /// 等级由信号强度、写入延迟和失败率得出，信号弱时自动减小包长度并增加发送间隔，
+  /// 等级变化时通过 link_grade 消息通知
+  Future<int?> getLinkGrade() async {
+    return await _channel!.invokeMethod<int>('getLinkGrade');
+  }
+
+  /// 设置连接池参数（仅 Android）
+  /// 最近使用的设备连接会被保留，再次连接同一设备时跳过连接、服务发现和 MTU 协商
+  /// [maxSize] 最多保留的连接数量，超出时关闭最久未使用的连接
+  /// [idleTimeout] 连接空闲超时时间（毫秒），小于等于 0 表示不因空闲关闭
+  Future setConnectionPool({int? maxSize, int? idleTimeout}) async {
+    await _channel!.invokeMethod('setConnectionPool',
+        <String, dynamic>{'maxSize': maxSize, 'idleTimeout': idleTimeout});
+  }
+
+  /// 定时查询连接池中所有已连接设备的状态（仅 Android）
+  /// 各设备的查询在间隔内均匀错开，状态变化时通过 fleet_status 消息通知
+  /// [interval] 同一设备两次查询的间隔，默认 10 秒，Duration.zero 表示停止查询
+  Future setStatusPolling({Duration? interval}) async {
+    await _channel!.invokeMethod('setStatusPolling',
+        <String, dynamic>{'interval': interval?.inMilliseconds});
+  }
+
+  /// 获取所有设备最近一次查询到的状态（仅 Android）
+  /// 返回以设备地址为键的状态表，包含 opMode、staConnectionStatus、wifiConnected、ssid、bssid
+  Future<Map<dynamic, dynamic>?> getFleetStatus() async {
+    return await _channel!.invokeMethod<Map<dynamic, dynamic>>('getFleetStatus');
+  }
+
+  /// 设置连接意外断开后的自动重连（仅 Android）
+  /// 重连后恢复 MTU 和安全协商，并重新发送被中断的配网、状态查询或自定义数据
+  /// 结果通过 peripheral_reconnect 消息通知，恢复耗时通过 reconnect_time 消息通知（毫秒）
+  /// [enable] 是否自动重连，默认开启
+  /// [maxAttempts] 放弃前最多尝试连接的次数
+  Future setAutoReconnect({bool enable = true, int? maxAttempts}) async {
+    await _channel!.invokeMethod('setAutoReconnect',
+        <String, dynamic>{'enable': enable, 'maxAttempts': maxAttempts});
+  }
+
+  /// 获取最近一次自动重连从断开到恢复操作的耗时（毫秒，仅 Android）
+  /// 尚未发生过重连时返回 -1
+  Future<int?> getLastRecoveryTime() async {
+    return await _channel!.invokeMethod<int>('getLastRecoveryTime');
   }
 
   /// 发送自定义数据到设备
@@ -106,6 +267,58 @@ class BlufiPlugin {
         'postCustomData', <String, dynamic>{'custom_data': dataStr});
   }
 
+  /// 设置自定义数据的 DEFLATE 压缩（仅 Android）
+  /// 每次连接后首次发送自定义数据前与设备协商，设备不支持时按原样发送，压缩后不变短的数据也按原样发送
+  /// 逻辑通道的数据同样会被压缩，设置对当前和之后的连接生效
+  /// 协商请求作为自定义数据发送，不支持压缩的设备会收到一条 6 字节的 "BFZ?" 开头的自定义数据
+  /// [enable] 是否压缩，默认关闭
+  /// [minVersion] 支持压缩的最低设备版本，如 "1.3"，设置后先读取设备版本，只向不低于该版本的设备发送协商请求
+  Future setCustomDataCompression(bool enable, {String? minVersion}) async {
+    await _channel!.invokeMethod('setCustomDataCompression',
+        <String, dynamic>{'enable': enable, 'minVersion': minVersion});
+  }
+
+  /// 获取当前连接的自定义数据压缩统计（仅 Android）
+  /// 返回 compressed（设备是否接受压缩）、ratio（实际发送字节数与原始字节数之比）和
+  /// goodput（每秒发送的原始字节数），尚未发送自定义数据时 ratio 和 goodput 为 -1，未连接时返回 null
+  Future<Map<dynamic, dynamic>?> getCompressionStats() async {
+    return await _channel!
+        .invokeMethod<Map<dynamic, dynamic>>('getCompressionStats');
+  }
+
+  /// 在自定义数据上打开逻辑通道（仅 Android）
+  /// 打开后带通道头的自定义数据按通道分别有序收发，收到的完整消息通过 channel_data 消息通知（Base64 编码）
+  /// 通道头以保留标记 "BFM" 开头，其他自定义数据不会被当作通道数据
+  /// [channel] 通道号，0 ~ 255
+  /// [weight] 多个通道同时发送时占用链路的权重，至少为 1
+  Future<bool?> openChannel(int channel, {int weight = 1}) async {
+    return await _channel!.invokeMethod<bool>(
+        'openChannel', <String, dynamic>{'channel': channel, 'weight': weight});
+  }
+
+  /// 关闭逻辑通道，未发送的消息会失败（仅 Android）
+  /// [channel] 通道号
+  Future closeChannel(int channel) async {
+    await _channel!
+        .invokeMethod('closeChannel', <String, dynamic>{'channel': channel});
+  }
+
+  /// 在逻辑通道上发送数据（仅 Android）
+  /// 同一通道的消息按顺序发送，结果通过 post_channel_data 消息通知
+  /// [channel] 已打开的通道号
+  /// [data] 数据
+  Future postChannelData(int channel, Uint8List data) async {
+    await _channel!.invokeMethod(
+        'postChannelData', <String, dynamic>{'channel': channel, 'data': data});
+  }
+
+  /// 获取逻辑通道的收发统计（仅 Android）
+  /// 返回 sentBytes、receivedBytes 和 throughput（有消息待发送期间的发送速率，字节/秒），通道未打开时为 -1
+  Future<Map<dynamic, dynamic>?> getChannelStats(int channel) async {
+    return await _channel!.invokeMethod<Map<dynamic, dynamic>>(
+        'getChannelStats', <String, dynamic>{'channel': channel});
+  }
+
   speechResultsHandler(dynamic event) {
     if (_resultSuccessCallback != null) _resultSuccessCallback!(event);
   }